@@ -0,0 +1,146 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.reporting.MultiBarChart;
+import com.activiti.domain.reporting.PieChartDataRepresentation;
+import com.activiti.domain.reporting.SingleBarChartDataRepresentation;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.elasticsearch.search.aggregations.metrics.SumAggregationBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cost of converting search responses into the charts of the fruit orders report, for synthetic responses with the
+ * given number of buckets. The multi series chart spreads its buckets over {@link #CUSTOMERS_PER_MONTH} customers
+ * in each month.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChartConversionBenchmark {
+
+    static final int CUSTOMERS_PER_MONTH = 10;
+
+    private static final YearMonth FIRST_MONTH = YearMonth.of(1970, 1);
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int buckets;
+
+    private final CustomVariablesReportGenerator reportGenerator = new CustomVariablesReportGenerator();
+
+    private SearchResponse customerOrders;
+
+    private SearchResponse quantitiesByMonth;
+
+    private SearchResponse ordersByDueDate;
+
+    private SearchResponse ordersByCustomerAndMonth;
+
+    @Setup
+    public void buildResponses() throws IOException {
+        reportGenerator.reportDefinitions = ReportDefinitions.load(ReportDefinitions.DEFAULT_LOCATIONS);
+        customerOrders = response(StringTerms.NAME, "customerOrders", terms(buckets, 0));
+
+        List<Map<String, Object>> quantities = new ArrayList<>();
+        List<Map<String, Object>> dueDates = new ArrayList<>();
+        for (int i = 0; i < buckets; i++) {
+            Map<String, Object> quantity = monthBucket(i, 3);
+            quantity.put(SumAggregationBuilder.NAME + Aggregation.TYPED_KEYS_DELIMITER + "totalItems",
+                         Collections.singletonMap("value", 12.0));
+            quantities.add(quantity);
+            dueDates.add(monthBucket(i, 3));
+        }
+        quantitiesByMonth = response(DateHistogramAggregationBuilder.NAME, "ordersByMonth", histogram(quantities));
+        ordersByDueDate = response(DateHistogramAggregationBuilder.NAME, "ordersByMonthDue", histogram(dueDates));
+
+        List<Map<String, Object>> months = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, buckets / CUSTOMERS_PER_MONTH); i++) {
+            int customers = Math.min(buckets, CUSTOMERS_PER_MONTH);
+            Map<String, Object> month = monthBucket(i, customers);
+            month.put(StringTerms.NAME + Aggregation.TYPED_KEYS_DELIMITER + "customerName", terms(customers, 0));
+            months.add(month);
+        }
+        ordersByCustomerAndMonth = response(DateHistogramAggregationBuilder.NAME, "ordersByMonth", histogram(months));
+    }
+
+    @Benchmark
+    public PieChartDataRepresentation customerOrdersPieChart() {
+        return reportGenerator.generateCustomerOrdersPieChart(customerOrders);
+    }
+
+    @Benchmark
+    public SingleBarChartDataRepresentation orderQuantitiesByMonthChart() {
+        return reportGenerator.generateOrderQuantitiesByMonthChart(quantitiesByMonth);
+    }
+
+    @Benchmark
+    public SingleBarChartDataRepresentation ordersByDueDateChart() {
+        return reportGenerator.generateOrdersByDueDateChart(ordersByDueDate);
+    }
+
+    @Benchmark
+    public MultiBarChart orderQuantitiesByMonthAndCustomerChart() {
+        return reportGenerator.generateOrderQuantitiesByMonthAndCustomerChart(ordersByCustomerAndMonth);
+    }
+
+    static SearchResponse response(String type, String name, Map<String, Object> aggregation)
+            throws IOException {
+        return ReportResponses.withAggregations(0, 0, Collections.singletonMap(
+                type + Aggregation.TYPED_KEYS_DELIMITER + name, aggregation));
+    }
+
+    static Map<String, Object> terms(int count, long offset) {
+        List<Map<String, Object>> buckets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> bucket = new LinkedHashMap<>();
+            bucket.put("key", "Customer " + (offset + i));
+            bucket.put("doc_count", count - i);
+            buckets.add(bucket);
+        }
+        Map<String, Object> terms = new LinkedHashMap<>();
+        terms.put("doc_count_error_upper_bound", 0);
+        terms.put("sum_other_doc_count", 0);
+        terms.put("buckets", buckets);
+        return terms;
+    }
+
+    static Map<String, Object> histogram(List<Map<String, Object>> buckets) {
+        return Collections.singletonMap("buckets", buckets);
+    }
+
+    static Map<String, Object> monthBucket(int index, long docCount) {
+        YearMonth month = FIRST_MONTH.plusMonths(index);
+        Map<String, Object> bucket = new LinkedHashMap<>();
+        bucket.put("key_as_string", month.toString());
+        bucket.put("key", month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli());
+        bucket.put("doc_count", docCount);
+        return bucket;
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cost of building the queries of the fruit orders report, and of rendering them from query templates instead. Run
+ * with <code>-prof gc</code> to compare the bytes allocated for each report by {@link #plannedReportQueries()} and
+ * {@link #templatedReportQueries()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBuildingBenchmark {
+
+    private final CustomVariablesReportGenerator reportGenerator = new CustomVariablesReportGenerator();
+
+    private ReportParameters parameters;
+
+    private final List<QueryTemplate> templates = new ArrayList<>();
+
+    @Setup
+    public void loadDefinitions() throws IOException {
+        reportGenerator.reportDefinitions = ReportDefinitions.load(ReportDefinitions.DEFAULT_LOCATIONS);
+        parameters = new ReportParameters(reportGenerator.getProcessDefinitionKey());
+        for (SearchSourceBuilder search : ReportQueryPlan.plan(reportGenerator.reportQueries(parameters.asTemplate()))
+                .getSearches().values()) {
+            templates.add(QueryTemplate.compile(search));
+        }
+    }
+
+    @Benchmark
+    public SearchSourceBuilder customerOrderCountsQuery() {
+        return reportGenerator.customerOrderCountsQuery();
+    }
+
+    @Benchmark
+    public SearchSourceBuilder totalQuantityByMonthQuery() {
+        return reportGenerator.totalQuantityByMonthQuery();
+    }
+
+    @Benchmark
+    public SearchSourceBuilder totalOrdersByDueDateQuery() {
+        return reportGenerator.totalOrdersByDueDateQuery();
+    }
+
+    @Benchmark
+    public SearchSourceBuilder numOrdersByCustomerAndMonthQuery() {
+        return reportGenerator.numOrdersByCustomerAndMonthQuery();
+    }
+
+    /**
+     * All queries of the report, planned into merged searches and serialised as they are sent
+     */
+    @Benchmark
+    public int plannedReportQueries() {
+        int length = 0;
+        for (SearchSourceBuilder search : ReportQueryPlan.plan(reportGenerator.reportQueries()).getSearches().values()) {
+            length += search.toString().length();
+        }
+        return length;
+    }
+
+    /**
+     * The same searches rendered from their templates, as they are sent in template mode
+     */
+    @Benchmark
+    public int templatedReportQueries() {
+        Map<String, String> values = parameters.templateValues();
+        int length = 0;
+        for (QueryTemplate template : templates) {
+            length += template.render(values).length;
+        }
+        return length;
+    }
+
+    @Benchmark
+    public Map<String, SearchSourceBuilder> reportQueries() {
+        return reportGenerator.reportQueries();
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Cost of parsing the canned search responses used by the integration tests, in full and as a stream keeping only
+ * the aggregations
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+
+    @Param({
+            "variables-customer-orders.json",
+            "variables-quantities-by-month.json",
+            "variables-orders-by-duedate.json",
+            "variables-count-orders-by-customer-month.json",
+            "variables-customer-orders-and-by-month.json"
+    })
+    public String fixture;
+
+    private byte[] json;
+
+    @Setup
+    public void loadFixture() throws IOException {
+        try (InputStream in = getClass().getResourceAsStream("/elasticsearch/" + fixture)) {
+            json = StreamUtils.copyToByteArray(in);
+        }
+    }
+
+    @Benchmark
+    public SearchResponse fullParse() throws IOException {
+        return ReportResponses.parse(new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public SearchResponse aggregationsOnly() throws IOException {
+        return ReportResponses.parseAggregationsOnly(new ByteArrayInputStream(json));
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.activiti.service.reporting.example.ChartConversionBenchmark.CUSTOMERS_PER_MONTH;
+
+/**
+ * Memory taken by turning a response body into a chart, by parsing it into aggregations and converting those, or by
+ * streaming its buckets straight into the chart. Run it with the GC profiler: <code>gc.alloc.rate.norm</code> is the
+ * number of bytes allocated for each chart, and the responses are those of {@link ChartConversionBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamingConversionBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int buckets;
+
+    private CompiledReport.CompiledChart customerOrdersChart;
+
+    private CompiledReport.CompiledChart ordersByCustomerAndMonthChart;
+
+    private byte[] customerOrders;
+
+    private byte[] ordersByCustomerAndMonth;
+
+    @Setup
+    public void buildResponses() throws IOException {
+        CompiledReport report = ReportDefinitions.load(ReportDefinitions.DEFAULT_LOCATIONS)
+                .get(CustomVariablesReportGenerator.ID);
+        customerOrdersChart = report.chart(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS);
+        ordersByCustomerAndMonthChart = report.chart(CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH);
+
+        customerOrders = json(ChartConversionBenchmark.response(StringTerms.NAME,
+                                                                customerOrdersChart.getAggregationName(),
+                                                                ChartConversionBenchmark.terms(buckets, 0)));
+
+        List<Map<String, Object>> months = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, buckets / CUSTOMERS_PER_MONTH); i++) {
+            int customers = Math.min(buckets, CUSTOMERS_PER_MONTH);
+            Map<String, Object> month = ChartConversionBenchmark.monthBucket(i, customers);
+            month.put(StringTerms.NAME + Aggregation.TYPED_KEYS_DELIMITER
+                              + ordersByCustomerAndMonthChart.getSeries().getName(),
+                      ChartConversionBenchmark.terms(customers, 0));
+            months.add(month);
+        }
+        ordersByCustomerAndMonth = json(ChartConversionBenchmark.response(
+                DateHistogramAggregationBuilder.NAME,
+                ordersByCustomerAndMonthChart.getAggregationName(),
+                ChartConversionBenchmark.histogram(months)));
+    }
+
+    @Benchmark
+    public Object parsedCustomerOrdersChart() throws IOException {
+        return customerOrdersChart.convert(ReportResponses.parse(new ByteArrayInputStream(customerOrders)));
+    }
+
+    @Benchmark
+    public Object streamedCustomerOrdersChart() throws IOException {
+        return customerOrdersChart.convert(
+                ReportResponses.parseAggregationsOnly(new ByteArrayInputStream(customerOrders)));
+    }
+
+    @Benchmark
+    public Object parsedOrdersByCustomerAndMonthChart() throws IOException {
+        return ordersByCustomerAndMonthChart.convert(
+                ReportResponses.parse(new ByteArrayInputStream(ordersByCustomerAndMonth)));
+    }
+
+    @Benchmark
+    public Object streamedOrdersByCustomerAndMonthChart() throws IOException {
+        return ordersByCustomerAndMonthChart.convert(
+                ReportResponses.parseAggregationsOnly(new ByteArrayInputStream(ordersByCustomerAndMonth)));
+    }
+
+    private static byte[] json(SearchResponse response) throws IOException {
+        return ReportResponses.toJson(response).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.extension.rest;
+
+import com.activiti.domain.idm.User;
+import com.activiti.security.SecurityUtils;
+import com.activiti.service.api.ReportingIndexManager;
+import com.activiti.service.reporting.example.CustomVariablesReportGenerator;
+import com.activiti.service.reporting.example.OrderFactsProjector;
+import com.activiti.service.reporting.example.ReportAdmission;
+import com.activiti.service.reporting.example.ReportBusyException;
+import com.activiti.service.reporting.example.ReportDefinitions;
+import com.activiti.service.reporting.example.ReportExporter;
+import com.activiti.service.reporting.example.ReportParameters;
+import com.activiti.service.reporting.searchClient.AnalyticsClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.activiti.service.reporting.generators.ElasticSearchConstants.INDEX_VARIABLES;
+
+/**
+ * Streams the rows behind the Fruit orders overview report to the response, see {@link ReportExporter}. Takes the
+ * same parameters as the report, for the reporting index of the current user. Exports are admitted by
+ * {@link ReportAdmission} like the reports, and are refused with 503 when the tenant has too many waiting.
+ */
+@RestController
+public class FruitOrdersExportResource {
+
+    private static final Logger logger = LoggerFactory.getLogger(FruitOrdersExportResource.class);
+
+    @Autowired
+    protected ReportExporter reportExporter;
+
+    @Autowired
+    protected OrderFactsProjector orderFacts;
+
+    @Autowired
+    protected ReportingIndexManager indexManager;
+
+    @Autowired
+    protected AnalyticsClient analyticsClient;
+
+    @Autowired
+    protected ReportAdmission reportAdmission;
+
+    @Autowired
+    protected ReportDefinitions reportDefinitions;
+
+    @RequestMapping(value = "/rest/reporting/fruit-orders/export/{dataset}", method = RequestMethod.GET)
+    public void export(@PathVariable String dataset,
+                       @RequestParam(value = "format", defaultValue = ReportExporter.FORMAT_CSV) String format,
+                       @RequestParam(value = "startDate", required = false) String startDate,
+                       @RequestParam(value = "endDate", required = false) String endDate,
+                       @RequestParam(value = "customer", required = false) String customer,
+                       @RequestParam(value = "processDefinition", required = false) String processDefinition,
+                       HttpServletResponse response) throws IOException {
+        ReportExporter.validate(dataset, format);
+        User user = SecurityUtils.getCurrentUserObject();
+        String index = indexManager.getIndexForUser(user, INDEX_VARIABLES);
+
+        Map<String, Object> values = new HashMap<>();
+        Map<String, Object> dateRange = new HashMap<>();
+        dateRange.put(ReportParameters.START_DATE, startDate);
+        dateRange.put(ReportParameters.END_DATE, endDate);
+        values.put(ReportParameters.PARAMETER_DATE_RANGE, dateRange);
+        values.put(ReportParameters.PARAMETER_CUSTOMER, customer);
+        values.put(ReportParameters.PARAMETER_PROCESS_DEFINITION, processDefinition);
+        ReportParameters parameters = ReportParameters.from(values,
+                                                            reportDefinitions.get(CustomVariablesReportGenerator.ID)
+                                                                    .getProcessDefinitionKey())
+                .forTenant(orderFacts.tenantOf(user));
+
+        // An export pages through the cluster for as long as a report, so it waits its turn with the reports
+        long rows;
+        try {
+            rows = reportAdmission.run(CustomVariablesReportGenerator.ID, index, () -> {
+                try {
+                    response.setContentType(ReportExporter.contentType(format));
+                    response.setHeader("Content-Disposition",
+                                       "attachment; filename=\"fruit-orders-" + dataset + "." + format + "\"");
+                    return reportExporter.export(analyticsClient, index, parameters, dataset, format,
+                                                 response.getOutputStream());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        logger.debug("Exported " + rows + " " + dataset + " of " + index + " for " + parameters);
+    }
+
+    @ExceptionHandler(ReportBusyException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public Map<String, String> busy(ReportBusyException e) {
+        return Collections.singletonMap("message", e.getMessage());
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public Map<String, String> badRequest(IllegalArgumentException e) {
+        return Collections.singletonMap("message", e.getMessage());
+    }
+}
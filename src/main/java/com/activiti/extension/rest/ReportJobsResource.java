@@ -0,0 +1,84 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.extension.rest;
+
+import com.activiti.domain.idm.User;
+import com.activiti.security.SecurityUtils;
+import com.activiti.service.api.ReportingIndexManager;
+import com.activiti.service.reporting.example.ReportJob;
+import com.activiti.service.reporting.example.ReportJobs;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.activiti.service.reporting.generators.ElasticSearchConstants.INDEX_VARIABLES;
+
+/**
+ * Lets the report page poll a report generated in the background by its job id, see {@link ReportJobs}
+ *
+ * A job is only found by users of the index it reports on, so that the reports of other tenants cannot be read by
+ * guessing their job ids.
+ */
+@RestController
+@RequestMapping("/rest/reporting/jobs")
+public class ReportJobsResource {
+
+    @Autowired
+    protected ReportJobs reportJobs;
+
+    @Autowired
+    protected ReportingIndexManager indexManager;
+
+    /**
+     * The status of the job and the progress of each of its charts, with the report once it is done
+     */
+    @RequestMapping(value = "/{jobId}", method = RequestMethod.GET)
+    public Map<String, Object> getJob(@PathVariable("jobId") String jobId) {
+        ReportJob job = reportJobs.get(jobId);
+        User user = SecurityUtils.getCurrentUserObject();
+        if (job == null || user == null
+                || !job.getKey().getIndex().equals(indexManager.getIndexForUser(user, INDEX_VARIABLES))) {
+            throw new JobNotFoundException("No report job " + jobId);
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("id", job.getId());
+        result.put("generatorId", job.getGeneratorId());
+        result.put("status", job.getStatus());
+        result.put("submittedAt", job.getSubmittedAt());
+        result.put("completedAt", job.getCompletedAt() > 0 ? job.getCompletedAt() : null);
+        result.put("charts", job.getCharts());
+        result.put("chartsCompleted", job.getChartsCompleted());
+        if (job.getStatus() == ReportJob.Status.DONE) {
+            result.put("report", job.getReport());
+            job.markDelivered();
+        }
+        return result;
+    }
+
+    @ExceptionHandler(JobNotFoundException.class)
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    public Map<String, String> notFound(JobNotFoundException e) {
+        return Collections.singletonMap("message", e.getMessage());
+    }
+
+    protected static class JobNotFoundException extends RuntimeException {
+
+        public JobNotFoundException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.extension.rest;
+
+import com.activiti.domain.idm.Capabilities;
+import com.activiti.security.SecurityUtils;
+import com.activiti.service.api.ReportingIndexManager;
+import com.activiti.service.reporting.example.PeriodIndices;
+import com.activiti.service.reporting.example.SearchProfiler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.activiti.service.reporting.generators.ElasticSearchConstants.INDEX_VARIABLES;
+
+/**
+ * Lets operators switch the profiling of report searches on and off and look at the slowest profiles of each chart,
+ * see {@link SearchProfiler}
+ *
+ * Profiling applies to the whole cluster, so only system admins may change it or forget the profiles. Tenant admins
+ * may look at the profiles of the searches on the index of their tenant, system admins at all of them.
+ */
+@RestController
+@RequestMapping("/rest/reporting/search-profiles")
+public class SearchProfilesResource {
+
+    @Autowired
+    protected SearchProfiler searchProfiler;
+
+    @Autowired
+    protected ReportingIndexManager indexManager;
+
+    @Autowired
+    protected PeriodIndices periodIndices;
+
+    /**
+     * The settings of the profiler, with the slowest profiles kept for each chart the current user may see
+     */
+    @RequestMapping(method = RequestMethod.GET)
+    public Map<String, Object> getProfiles() {
+        Map<String, List<SearchProfiler.SearchProfile>> profiles;
+        if (hasCapability(Capabilities.TENANT_MGMT)) {
+            profiles = searchProfiler.getProfiles();
+        } else if (hasCapability(Capabilities.TENANT_ADMIN)) {
+            // The searches on the tenant index, or on the indices of its periods
+            String index = indexManager.getIndexForUser(SecurityUtils.getCurrentUserObject(), INDEX_VARIABLES);
+            profiles = searchProfiler.getProfiles(indices -> periodIndices.isOf(indices, index));
+        } else {
+            throw new AccessDeniedException("Only admins may look at the profiles of report searches");
+        }
+        Map<String, Object> settings = settings();
+        settings.put("profiles", profiles);
+        return settings;
+    }
+
+    /**
+     * Change the settings which are given, leaving the others as they are
+     */
+    @RequestMapping(method = RequestMethod.PUT)
+    public Map<String, Object> updateSettings(@RequestParam(value = "enabled", required = false) Boolean enabled,
+                                              @RequestParam(value = "sampleRate", required = false) Double sampleRate,
+                                              @RequestParam(value = "slowest", required = false) Integer slowest) {
+        requireSystemAdmin();
+        if (sampleRate != null) {
+            searchProfiler.setSampleRate(sampleRate);
+        }
+        if (slowest != null) {
+            searchProfiler.setSlowest(slowest);
+        }
+        if (enabled != null) {
+            searchProfiler.setEnabled(enabled);
+        }
+        return settings();
+    }
+
+    /**
+     * Forget the profiles kept so far
+     */
+    @RequestMapping(method = RequestMethod.DELETE)
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void clearProfiles() {
+        requireSystemAdmin();
+        searchProfiler.clear();
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public Map<String, String> badRequest(IllegalArgumentException e) {
+        return Collections.singletonMap("message", e.getMessage());
+    }
+
+    @ExceptionHandler(AccessDeniedException.class)
+    @ResponseStatus(HttpStatus.FORBIDDEN)
+    public Map<String, String> forbidden(AccessDeniedException e) {
+        return Collections.singletonMap("message", e.getMessage());
+    }
+
+    protected void requireSystemAdmin() {
+        if (!hasCapability(Capabilities.TENANT_MGMT)) {
+            throw new AccessDeniedException("Only system admins may change the profiling of report searches");
+        }
+    }
+
+    /**
+     * Whether the current user has the capability, which is one of the authorities of its authentication
+     */
+    protected boolean hasCapability(String capability) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null) {
+            return false;
+        }
+        for (GrantedAuthority authority : authentication.getAuthorities()) {
+            if (capability.equals(authority.getAuthority())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected Map<String, Object> settings() {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("enabled", searchProfiler.isEnabled());
+        settings.put("sampleRate", searchProfiler.getSampleRate());
+        settings.put("slowest", searchProfiler.getSlowest());
+        return settings;
+    }
+}
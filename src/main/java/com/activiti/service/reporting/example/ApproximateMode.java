@@ -0,0 +1,271 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.service.reporting.searchClient.AnalyticsClient;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.lucene.search.function.CombineFunction;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.bucket.sampler.Sampler;
+import org.elasticsearch.search.aggregations.bucket.sampler.SamplerAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.Cardinality;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate charts for tenants with so many orders that exact aggregations take too long.
+ *
+ * Whether a report is approximate is decided by counting the orders it covers first. The count stops at the
+ * threshold, so it stays cheap however many orders there are, and it is kept for a while for a bounded number of
+ * indices and sets of parameters. Charts made approximate aggregate a random sample of the orders on each shard
+ * instead of all of them, and their counts are scaled back up to the number of orders. The random sample is drawn by
+ * giving every order a random score with a fixed seed, of which the sampler keeps the best, so the same orders are
+ * sampled each time. The random score replaces the score of the filter, which is the same for every order.
+ * Distinct customers are counted per month with a cardinality sketch.
+ *
+ * The error bounds handed out are those of the sample shares at a 95% confidence level, and the standard error of
+ * the cardinality sketch.
+ */
+@Component
+public class ApproximateMode implements InitializingBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ApproximateMode.class);
+
+    /**
+     * Seed of the random scores picking the sample, fixed so that a chart does not change from one refresh to the next
+     */
+    protected static final int SAMPLE_SEED = 20190101;
+
+    @Value("${custom.report.approximate.enabled:false}")
+    protected boolean enabled;
+
+    @Value("${custom.report.approximate.threshold:10000000}")
+    protected int threshold;
+
+    @Value("${custom.report.approximate.sample-size:10000}")
+    protected int sampleSize;
+
+    @Value("${custom.report.approximate.precision-threshold:3000}")
+    protected long precisionThreshold;
+
+    @Value("${custom.report.approximate.count-ttl:300000}")
+    protected long countTtlMillis;
+
+    @Value("${custom.report.approximate.max-counts:1000}")
+    protected int maxCounts;
+
+    @Autowired
+    protected ReportSearchExecutor searchExecutor;
+
+    /**
+     * The number of orders counted for each index and set of parameters, up to the threshold
+     */
+    protected BoundedCache<String, Long> counts;
+
+    @Override
+    public void afterPropertiesSet() {
+        counts = new BoundedCache<>(maxCounts, countTtlMillis);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Whether a report should be approximate, which it is if enabled and the orders selected by the given filter
+     * reach the threshold. If the orders cannot be counted by the deadline of the report, the report is exact.
+     */
+    public boolean isApproximate(AnalyticsClient analyticsClient,
+                                 String generatorId,
+                                 String index,
+                                 ReportParameters parameters,
+                                 QueryBuilder filter,
+                                 long deadline) {
+        if (!enabled) {
+            return false;
+        }
+        String key = generatorId + "/" + index + "/" + parameters;
+        Long count = counts.get(key);
+        if (count == null) {
+            SearchResponse response = searchExecutor.search(analyticsClient,
+                                                            generatorId,
+                                                            "count",
+                                                            index,
+                                                            countQuery(filter),
+                                                            deadline);
+            if (response == null || response.getHits().getTotalHits() == null) {
+                return false;
+            }
+            count = response.getHits().getTotalHits().value;
+            counts.put(key, count);
+            logger.debug("Counted " + count + " orders for " + key);
+        }
+        return count >= threshold;
+    }
+
+    /**
+     * A search counting the orders selected by the filter, which stops counting at the threshold
+     */
+    public SearchSourceBuilder countQuery(QueryBuilder filter) {
+        return new SearchSourceBuilder()
+                .size(0)
+                .trackTotalHitsUpTo(threshold)
+                .query(filter);
+    }
+
+    /**
+     * A search aggregating a random sample of the orders selected by the filter on each shard. The total number of
+     * orders is counted, to scale the sample back up.
+     */
+    public SearchSourceBuilder sampledQuery(QueryBuilder filter, String samplerName, AggregationBuilder aggregation) {
+        SamplerAggregationBuilder sampler = AggregationBuilders.sampler(samplerName)
+                .shardSize(sampleSize)
+                .subAggregation(aggregation);
+        return ReportSearchExecutor.aggregationsOnly()
+                .trackTotalHits(true)
+                .query(QueryBuilders.functionScoreQuery(filter,
+                                                        ScoreFunctionBuilders.randomFunction()
+                                                                .seed(SAMPLE_SEED)
+                                                                .setField("_seq_no"))
+                               // The filter scores every order 0, which would leave nothing random to sample by
+                               .boostMode(CombineFunction.REPLACE))
+                .aggregation(sampler);
+    }
+
+    /**
+     * Count the distinct values of a field in each month with a cardinality sketch
+     */
+    public AggregationBuilder distinctPerMonth(String name, String dateField, String distinctName, String field) {
+        return AggregationBuilders.dateHistogram(name)
+                .field(dateField)
+                .format("yyyy-MM")
+                .calendarInterval(DateHistogramInterval.MONTH)
+                .subAggregation(AggregationBuilders.cardinality(distinctName)
+                                        .field(field)
+                                        .precisionThreshold(precisionThreshold));
+    }
+
+    /**
+     * The number of orders sampled by the given sampler, or <code>0</code> if it is not in the response
+     */
+    public static long sampledCount(SearchResponse response, String samplerName) {
+        if (response == null || response.getAggregations() == null) {
+            return 0;
+        }
+        Aggregation sampler = response.getAggregations().get(samplerName);
+        return sampler instanceof Sampler ? ((Sampler) sampler).getDocCount() : 0;
+    }
+
+    /**
+     * The largest count of the given cardinality in the months of a histogram, or <code>0</code> if it is not in
+     * the response
+     */
+    public static long maxPerMonth(SearchResponse response, String histogramName, String distinctName) {
+        if (response == null || response.getAggregations() == null) {
+            return 0;
+        }
+        Aggregation histogram = response.getAggregations().get(histogramName);
+        long max = 0;
+        if (histogram instanceof Histogram) {
+            for (Histogram.Bucket bucket : ((Histogram) histogram).getBuckets()) {
+                Aggregation distinct = bucket.getAggregations().get(distinctName);
+                if (distinct instanceof Cardinality) {
+                    max = Math.max(max, ((Cardinality) distinct).getValue());
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * The largest error of a share of a sample of the given size, in percentage points at a 95% confidence level
+     */
+    public static double sampleErrorPercent(long sampledCount) {
+        return sampledCount > 0 ? 100 * 1.96 * 0.5 / Math.sqrt(sampledCount) : 100;
+    }
+
+    /**
+     * The standard error of the cardinality sketch in percent, for counts beyond the precision threshold. Counts
+     * below the threshold are close to exact. The precision of the sketch is derived from the threshold in the same
+     * way as Elasticsearch does.
+     */
+    public double cardinalityErrorPercent() {
+        long hashTableEntries = (long) Math.ceil(precisionThreshold / 0.75);
+        int precision = 64 - Long.numberOfLeadingZeros(hashTableEntries * 4);
+        precision = Math.max(4, Math.min(18, precision));
+        return 100 * 1.04 / Math.sqrt(1L << precision);
+    }
+
+    /**
+     * Move the aggregations of each sampler in the response up to the top level, where the chart converters look
+     * for them, scaling their counts up from the sample to the total number of orders
+     */
+    @SuppressWarnings("unchecked")
+    public static SearchResponse unsample(SearchResponse response) throws IOException {
+        if (response == null || response.getHits().getTotalHits() == null) {
+            return response;
+        }
+        long total = response.getHits().getTotalHits().value;
+        Map<String, Object> json = ReportResponses.toMap(response);
+        Map<String, Object> aggregations = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> aggregation : ((Map<String, Object>) json.get("aggregations")).entrySet()) {
+            if (!aggregation.getKey().startsWith(SamplerAggregationBuilder.NAME + Aggregation.TYPED_KEYS_DELIMITER)) {
+                aggregations.put(aggregation.getKey(), aggregation.getValue());
+                continue;
+            }
+            Map<String, Object> sampler = (Map<String, Object>) aggregation.getValue();
+            long sampled = ((Number) sampler.get("doc_count")).longValue();
+            double factor = sampled > 0 ? (double) total / sampled : 0;
+            for (Map.Entry<String, Object> sampledAggregation : sampler.entrySet()) {
+                if (sampledAggregation.getValue() instanceof Map) {
+                    scale((Map<String, Object>) sampledAggregation.getValue(), factor);
+                    aggregations.put(sampledAggregation.getKey(), sampledAggregation.getValue());
+                }
+            }
+        }
+        return ReportResponses.withAggregations(response.getTook().millis(), total, aggregations);
+    }
+
+    /**
+     * Scale the document counts in an aggregation and its buckets
+     */
+    @SuppressWarnings("unchecked")
+    protected static void scale(Map<String, Object> aggregation, double factor) {
+        for (Map.Entry<String, Object> field : aggregation.entrySet()) {
+            Object value = field.getValue();
+            if (("doc_count".equals(field.getKey()) || "sum_other_doc_count".equals(field.getKey()))
+                    && value instanceof Number) {
+                field.setValue(Math.round(((Number) value).longValue() * factor));
+            } else if (value instanceof Map) {
+                scale((Map<String, Object>) value, factor);
+            } else if (value instanceof List) {
+                for (Object element : (List<Object>) value) {
+                    if (element instanceof Map) {
+                        scale((Map<String, Object>) element, factor);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Keeps a bounded number of values, evicting the least recently used one when full, each for a time to live.
+ *
+ * This is for state kept per index and set of report parameters, which would otherwise grow with every tenant and
+ * date range ever asked for. All access is synchronized, the values should be cheap to compute again.
+ */
+public class BoundedCache<K, V> {
+
+    protected final int maxEntries;
+
+    protected final long ttlMillis;
+
+    protected final AtomicLong evictions = new AtomicLong();
+
+    protected final Map<K, Entry<V>> entries;
+
+    /**
+     * @param maxEntries the number of values kept
+     * @param ttlMillis  the time in milliseconds for which a value is kept, <code>0</code> or less to keep it until
+     *                   it is evicted
+     */
+    public BoundedCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > BoundedCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The value of the key, or <code>null</code> if there is none or it has expired
+     */
+    public V get(K key) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && entry.isExpired()) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                return null;
+            }
+            return entry != null ? entry.value : null;
+        }
+    }
+
+    public void put(K key, V value) {
+        synchronized (entries) {
+            entries.put(key, new Entry<>(value, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE));
+        }
+    }
+
+    public void remove(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Drop the values of the keys matching the predicate
+     */
+    public void removeIf(Predicate<? super K> predicate) {
+        synchronized (entries) {
+            entries.keySet().removeIf(predicate);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * The keys held, including those of values which have expired but were not asked for since
+     */
+    public List<K> keys() {
+        synchronized (entries) {
+            return new ArrayList<>(entries.keySet());
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    protected static class Entry<V> {
+
+        protected final V value;
+        protected final long expiresAt;
+
+        protected Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        protected boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
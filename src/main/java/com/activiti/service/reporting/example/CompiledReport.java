@@ -0,0 +1,344 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.reporting.MultiBarChart;
+import com.activiti.domain.reporting.PieChartDataRepresentation;
+import com.activiti.domain.reporting.ReportDataRepresentation;
+import com.activiti.domain.reporting.SingleBarChartDataRepresentation;
+import com.activiti.service.reporting.converter.AggsToMultiSeriesChartConverter;
+import com.activiti.service.reporting.converter.AggsToSimpleChartBasicConverter;
+import com.activiti.service.reporting.converter.AggsToSimpleDateBasedChartBasicConverter;
+import com.activiti.service.reporting.converter.BucketExtractors;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ReportDefinition} compiled into what is needed to run it: the aggregations of each chart, built once and
+ * shared by all requests, and the conversion of each response into its chart.
+ *
+ * Only the filters depend on the parameters of a request, so that is all which is built for each report. Queries
+ * are handed out as new builders, which may be changed by the caller, but the aggregations in them must not be.
+ */
+public class CompiledReport {
+
+    /**
+     * Description given to a chart instead of its own when its search failed, so that the rest of the report can
+     * still be shown
+     */
+    public static final String CHART_UNAVAILABLE = "The data for this chart could not be loaded, please try again later";
+
+    protected final String id;
+
+    protected final String name;
+
+    protected final String processDefinitionKey;
+
+    protected final Map<String, CompiledChart> charts;
+
+    public CompiledReport(String id, String name, String processDefinitionKey, List<CompiledChart> charts) {
+        this.id = id;
+        this.name = name;
+        this.processDefinitionKey = processDefinitionKey;
+        Map<String, CompiledChart> chartsById = new LinkedHashMap<>();
+        for (CompiledChart chart : charts) {
+            chartsById.put(chart.getId(), chart);
+        }
+        this.charts = Collections.unmodifiableMap(chartsById);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getProcessDefinitionKey() {
+        return processDefinitionKey;
+    }
+
+    /**
+     * The charts in the order of the report
+     */
+    public List<CompiledChart> getCharts() {
+        return new ArrayList<>(charts.values());
+    }
+
+    /**
+     * The ids of the charts in the order of the report
+     */
+    public List<String> getChartIds() {
+        return new ArrayList<>(charts.keySet());
+    }
+
+    public CompiledChart chart(String chartId) {
+        CompiledChart chart = charts.get(chartId);
+        if (chart == null) {
+            throw new IllegalArgumentException("Report " + id + " has no chart " + chartId);
+        }
+        return chart;
+    }
+
+    /**
+     * The queries of all charts for the given parameters, keyed by chart in the order of the report
+     */
+    public Map<String, SearchSourceBuilder> queries(ReportParameters parameters) {
+        Map<String, SearchSourceBuilder> queries = new LinkedHashMap<>();
+        for (CompiledChart chart : charts.values()) {
+            queries.put(chart.getId(), chart.query(parameters));
+        }
+        return queries;
+    }
+
+    public static class CompiledChart {
+
+        protected final ReportDefinition.ChartDefinition definition;
+
+        protected final AggregationBuilder aggregation;
+
+        protected final String source;
+
+        public CompiledChart(ReportDefinition.ChartDefinition definition, AggregationBuilder aggregation) {
+            this(definition, aggregation, ReportDefinition.SOURCE_VARIABLES);
+        }
+
+        public CompiledChart(ReportDefinition.ChartDefinition definition, AggregationBuilder aggregation, String source) {
+            this.definition = definition;
+            this.aggregation = aggregation;
+            this.source = source;
+        }
+
+        public String getId() {
+            return definition.getId();
+        }
+
+        public String getType() {
+            return definition.getType();
+        }
+
+        public String getDescription() {
+            return definition.getDescription();
+        }
+
+        /**
+         * The variable the chart is about
+         */
+        public String getVariable() {
+            return definition.getVariable();
+        }
+
+        /**
+         * The buckets of the chart
+         */
+        public ReportDefinition.BucketsDefinition getBuckets() {
+            return definition.getBuckets();
+        }
+
+        /**
+         * The series within each bucket of a multi bar chart, or <code>null</code>
+         */
+        public ReportDefinition.BucketsDefinition getSeries() {
+            return definition.getSeries();
+        }
+
+        /**
+         * Name of the aggregation holding the buckets of the chart
+         */
+        public String getAggregationName() {
+            return aggregation.getName();
+        }
+
+        public AggregationBuilder getAggregation() {
+            return aggregation;
+        }
+
+        /**
+         * The query of the chart, selecting its variables with the given parameters in filter context and only
+         * asking for its aggregation
+         */
+        public SearchSourceBuilder query(ReportParameters parameters) {
+            return ReportSearchExecutor.aggregationsOnly()
+                    .query(filter(parameters))
+                    .aggregation(aggregation);
+        }
+
+        /**
+         * The filter selecting the variables, or the orders, of the chart with the given parameters
+         */
+        public QueryBuilder filter(ReportParameters parameters) {
+            if (ReportDefinition.SOURCE_ORDER_FACTS.equals(source)) {
+                return parameters.orderFactsFilter(OrderFactsProjector.FIELD_CUSTOMER.equals(definition.getVariable()));
+            }
+            return ReportParameters.CUSTOMER_VARIABLE.equals(definition.getVariable())
+                    ? parameters.customerFilter()
+                    : parameters.filter(definition.getVariable());
+        }
+
+        /**
+         * Convert the response of the chart's query into the chart. A missing response leaves the chart empty,
+         * saying that its data could not be loaded.
+         */
+        public Object convert(SearchResponse response) {
+            switch (definition.getType()) {
+                case ReportDefinition.CHART_PIE:
+                    return convertPie(response);
+                case ReportDefinition.CHART_BAR:
+                    return convertBar(response);
+                default:
+                    return convertMultiBar(response);
+            }
+        }
+
+        /**
+         * Convert the response of the chart's query into the chart and add it to the report. The chart is given the
+         * description unless it is <code>null</code>, instead of its own or of saying that its data could not be
+         * loaded.
+         */
+        public void addTo(ReportDataRepresentation reportData, SearchResponse response, String description) {
+            switch (definition.getType()) {
+                case ReportDefinition.CHART_PIE:
+                    PieChartDataRepresentation pie = convertPie(response);
+                    if (description != null) {
+                        pie.setDescription(description);
+                    }
+                    reportData.addReportDataElement(pie);
+                    break;
+                case ReportDefinition.CHART_BAR:
+                    SingleBarChartDataRepresentation bar = convertBar(response);
+                    if (description != null) {
+                        bar.setDescription(description);
+                    }
+                    reportData.addReportDataElement(bar);
+                    break;
+                default:
+                    MultiBarChart multiBar = convertMultiBar(response);
+                    if (description != null) {
+                        multiBar.setDescription(description);
+                    }
+                    reportData.addReportDataElement(multiBar);
+            }
+        }
+
+        protected PieChartDataRepresentation convertPie(SearchResponse response) {
+            PieChartDataRepresentation chart = new PieChartDataRepresentation();
+            chart.setTitle(definition.getTitle());
+            chart.setDescription(definition.getDescription());
+
+            if (response == null) {
+                chart.setDescription(CHART_UNAVAILABLE);
+            } else if (response instanceof StreamedSearchResponse) {
+                stream(response, null, (series, key, value) -> chart.addPieElement(String.valueOf(key), value));
+            } else if (isSum()) {
+                new AggsToSimpleChartBasicConverter(response, getAggregationName()).setChartData(
+                        chart,
+                        new BucketExtractors.BucketKeyExtractor(),
+                        new BucketExtractors.BucketAggValueExtractor(definition.getValue().getName())
+                );
+            } else {
+                new AggsToSimpleChartBasicConverter(response, getAggregationName()).setChartData(
+                        chart,
+                        new BucketExtractors.BucketKeyExtractor(),
+                        new BucketExtractors.BucketDocCountExtractor()
+                );
+            }
+            return chart;
+        }
+
+        protected SingleBarChartDataRepresentation convertBar(SearchResponse response) {
+            SingleBarChartDataRepresentation chart = new SingleBarChartDataRepresentation();
+            chart.setTitle(definition.getTitle());
+            chart.setDescription(definition.getDescription());
+            chart.setyAxisType(definition.getyAxisType());
+            chart.setxAxisType(definition.getxAxisType());
+
+            if (response == null) {
+                chart.setDescription(CHART_UNAVAILABLE);
+            } else if (response instanceof StreamedSearchResponse) {
+                stream(response, null, (series, key, value) -> chart.addValue(date(key), value));
+            } else if (isSum()) {
+                new AggsToSimpleDateBasedChartBasicConverter(response, getAggregationName()).setChartData(
+                        chart,
+                        new BucketExtractors.DateHistogramBucketExtractor(),
+                        new BucketExtractors.BucketAggValueExtractor(definition.getValue().getName())
+                );
+            } else {
+                new AggsToSimpleDateBasedChartBasicConverter(response, getAggregationName()).setChartData(
+                        chart,
+                        new BucketExtractors.DateHistogramBucketExtractor(),
+                        new BucketExtractors.BucketDocCountExtractor()
+                );
+            }
+            return chart;
+        }
+
+        protected MultiBarChart convertMultiBar(SearchResponse response) {
+            MultiBarChart chart = new MultiBarChart();
+            chart.setTitle(definition.getTitle());
+            chart.setDescription(definition.getDescription());
+            chart.setyAxisType(definition.getyAxisType());
+            chart.setxAxisType(definition.getxAxisType());
+
+            if (response == null) {
+                chart.setDescription(CHART_UNAVAILABLE);
+            } else if (response instanceof StreamedSearchResponse) {
+                stream(response,
+                       definition.getSeries().getName(),
+                       (series, key, value) -> chart.addValue(series, date(key), value));
+            } else {
+                new AggsToMultiSeriesChartConverter(response, getAggregationName(), definition.getSeries().getName())
+                        .setChartData(
+                                chart,
+                                new BucketExtractors.DateHistogramBucketExtractor(),
+                                new BucketExtractors.BucketDocCountExtractor()
+                        );
+            }
+            return chart;
+        }
+
+        /**
+         * Write the buckets of a streamed response straight into the chart, as the converters of the platform would
+         * from the parsed aggregations
+         */
+        protected void stream(SearchResponse response,
+                              String seriesName,
+                              StreamingChartConverter.BucketWriter writer) {
+            try {
+                StreamingChartConverter.convert(((StreamedSearchResponse) response).getAggregationsJson(),
+                                                getAggregationName(),
+                                                isSum() ? definition.getValue().getName() : null,
+                                                seriesName,
+                                                writer);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read the buckets of chart " + getId(), e);
+            }
+        }
+
+        /**
+         * The date of a histogram bucket, from its key in milliseconds
+         */
+        protected static Date date(Object key) {
+            return new Date(((Number) key).longValue());
+        }
+
+        protected boolean isSum() {
+            return definition.getValue() != null && ReportDefinition.VALUE_SUM.equals(definition.getValue().getType());
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.service.reporting.searchClient.AnalyticsClient;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.DateHistogramValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Computes terms aggregations over fields with many distinct values, such as customer names, by paging through a
+ * <code>composite</code> aggregation instead of asking the cluster for one large <code>terms</code> aggregation.
+ *
+ * Only the top N terms are kept while paging, everything else is summed up into an "Other" bucket, so memory use
+ * is bounded by N and the page size however many distinct terms there are. Broken down by month, the top N terms
+ * are those of each month, as a terms aggregation in each month would find them. The "Other" bucket is renamed if
+ * one of the top terms is itself called "Other", so that the two are not shown as one. The result is handed back as
+ * a response carrying an ordinary terms aggregation (or a monthly date histogram of terms aggregations), so that it
+ * can be given to the standard chart converters.
+ */
+@Component
+public class CompositeTermsPager {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompositeTermsPager.class);
+
+    public static final String OTHER_KEY = "Other";
+
+    protected static final String TERM_SOURCE = "term";
+
+    protected static final String MONTH_SOURCE = "month";
+
+    protected static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM");
+
+    protected static final Comparator<Term> BY_DOC_COUNT = Comparator
+            .comparingLong((Term term) -> term.docCount)
+            .thenComparing(term -> term.key, Comparator.reverseOrder());
+
+    @Value("${custom.report.terms.paged:false}")
+    protected boolean enabled;
+
+    @Value("${custom.report.terms.top-n:10}")
+    protected int topN;
+
+    @Value("${custom.report.terms.page-size:500}")
+    protected int pageSize;
+
+    @Autowired
+    protected ReportSearchExecutor searchExecutor;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The top terms of the field among the documents matching the query, as a terms aggregation with the given name.
+     * The searches for the pages are measured as searches of the given chart, and all of them wait no longer than
+     * the deadline of the report.
+     *
+     * @return the response, or <code>null</code> if a page could not be fetched
+     */
+    public SearchResponse topTerms(AnalyticsClient analyticsClient,
+                                   String generatorId,
+                                   String chart,
+                                   String index,
+                                   QueryBuilder query,
+                                   String name,
+                                   String field,
+                                   long deadline) {
+        TopTerms topTerms = new TopTerms();
+        Map<String, Object> afterKey = null;
+        do {
+            CompositeAggregation page = fetchPage(analyticsClient,
+                                                  generatorId,
+                                                  chart,
+                                                  index,
+                                                  query,
+                                                  name,
+                                                  afterKey,
+                                                  deadline,
+                                                  new TermsValuesSourceBuilder(TERM_SOURCE).field(field));
+            if (page == null) {
+                return null;
+            }
+            for (CompositeAggregation.Bucket bucket : page.getBuckets()) {
+                topTerms.add(new Term(String.valueOf(bucket.getKey().get(TERM_SOURCE)), bucket.getDocCount()));
+            }
+            afterKey = page.getBuckets().size() < pageSize ? null : page.afterKey();
+        } while (afterKey != null);
+
+        return toResponse(topTerms.total, Collections.singletonMap(
+                StringTerms.NAME + Aggregation.TYPED_KEYS_DELIMITER + name, termsAggregation(topTerms.buckets())));
+    }
+
+    /**
+     * The top terms of each month of the date field among the documents matching the query, as a date histogram with
+     * the given name holding a terms aggregation with the given name in each month
+     *
+     * @return the response, or <code>null</code> if a page could not be fetched
+     */
+    public SearchResponse topTermsByMonth(AnalyticsClient analyticsClient,
+                                          String generatorId,
+                                          String chart,
+                                          String index,
+                                          QueryBuilder query,
+                                          String histogramName,
+                                          String dateField,
+                                          String termsName,
+                                          String field,
+                                          long deadline) {
+        // Each term and month arrives once, in any order
+        TreeMap<Long, TopTerms> months = new TreeMap<>();
+        long total = 0;
+        Map<String, Object> afterKey = null;
+        do {
+            CompositeAggregation page = fetchPage(analyticsClient,
+                                                  generatorId,
+                                                  chart,
+                                                  index,
+                                                  query,
+                                                  histogramName,
+                                                  afterKey,
+                                                  deadline,
+                                                  new TermsValuesSourceBuilder(TERM_SOURCE).field(field),
+                                                  new DateHistogramValuesSourceBuilder(MONTH_SOURCE)
+                                                          .field(dateField)
+                                                          .calendarInterval(DateHistogramInterval.MONTH));
+            if (page == null) {
+                return null;
+            }
+            for (CompositeAggregation.Bucket bucket : page.getBuckets()) {
+                long month = ((Number) bucket.getKey().get(MONTH_SOURCE)).longValue();
+                months.computeIfAbsent(month, m -> new TopTerms())
+                        .add(new Term(String.valueOf(bucket.getKey().get(TERM_SOURCE)), bucket.getDocCount()));
+                total += bucket.getDocCount();
+            }
+            afterKey = page.getBuckets().size() < pageSize ? null : page.afterKey();
+        } while (afterKey != null);
+
+        // Months without orders in between get an empty bucket, as in a date histogram
+        List<Map<String, Object>> monthBuckets = new ArrayList<>();
+        if (!months.isEmpty()) {
+            YearMonth first = toMonth(months.firstKey());
+            YearMonth last = toMonth(months.lastKey());
+            for (YearMonth month = first; !month.isAfter(last); month = month.plusMonths(1)) {
+                long monthKey = month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+                TopTerms topTerms = months.containsKey(monthKey) ? months.get(monthKey) : new TopTerms();
+
+                Map<String, Object> monthBucket = new LinkedHashMap<>();
+                monthBucket.put("key_as_string", month.format(MONTH_FORMAT));
+                monthBucket.put("key", monthKey);
+                monthBucket.put("doc_count", topTerms.total);
+                monthBucket.put(StringTerms.NAME + Aggregation.TYPED_KEYS_DELIMITER + termsName,
+                                termsAggregation(topTerms.buckets()));
+                monthBuckets.add(monthBucket);
+            }
+        }
+
+        return toResponse(total, Collections.singletonMap(
+                DateHistogramAggregationBuilder.NAME + Aggregation.TYPED_KEYS_DELIMITER + histogramName,
+                Collections.singletonMap("buckets", monthBuckets)));
+    }
+
+    protected CompositeAggregation fetchPage(AnalyticsClient analyticsClient,
+                                             String generatorId,
+                                             String chart,
+                                             String index,
+                                             QueryBuilder query,
+                                             String name,
+                                             Map<String, Object> afterKey,
+                                             long deadline,
+                                             CompositeValuesSourceBuilder<?>... sources) {
+        CompositeAggregationBuilder composite = new CompositeAggregationBuilder(name, Arrays.asList(sources))
+                .size(pageSize);
+        if (afterKey != null) {
+            composite.aggregateAfter(afterKey);
+        }
+        SearchResponse response = searchExecutor.search(analyticsClient,
+                                                        generatorId,
+                                                        chart,
+                                                        index,
+                                                        ReportSearchExecutor.aggregationsOnly()
+                                                                .query(query)
+                                                                .aggregation(composite),
+                                                        deadline);
+        return response != null && response.getAggregations() != null ? response.getAggregations().get(name) : null;
+    }
+
+    protected SearchResponse toResponse(long totalHits, Map<String, Object> aggregations) {
+        try {
+            return ReportResponses.withAggregations(0, totalHits, aggregations);
+        } catch (IOException e) {
+            logger.error("Could not build response from paged terms", e);
+            return null;
+        }
+    }
+
+    protected static Map<String, Object> termsAggregation(List<Map<String, Object>> buckets) {
+        Map<String, Object> aggregation = new LinkedHashMap<>();
+        aggregation.put("doc_count_error_upper_bound", 0);
+        aggregation.put("sum_other_doc_count", 0);
+        aggregation.put("buckets", buckets);
+        return aggregation;
+    }
+
+    protected static Map<String, Object> termBucket(String key, long docCount) {
+        Map<String, Object> bucket = new LinkedHashMap<>();
+        bucket.put("key", key);
+        bucket.put("doc_count", docCount);
+        return bucket;
+    }
+
+    /**
+     * The key of the "Other" bucket, numbered if a top term is already called that
+     */
+    protected static String otherKey(Set<String> keys) {
+        String key = OTHER_KEY;
+        for (int i = 2; keys.contains(key); i++) {
+            key = OTHER_KEY + " (" + i + ")";
+        }
+        return key;
+    }
+
+    protected static YearMonth toMonth(long epochMillis) {
+        return YearMonth.from(Instant.ofEpochMilli(epochMillis).atZone(ZoneOffset.UTC));
+    }
+
+    protected static class Term {
+
+        protected final String key;
+        protected long docCount;
+
+        protected Term(String key, long docCount) {
+            this.key = key;
+            this.docCount = docCount;
+        }
+    }
+
+    /**
+     * Keeps the N terms with the highest doc counts seen so far, adding all others to the "Other" term
+     */
+    protected class TopTerms {
+
+        protected final PriorityQueue<Term> top = new PriorityQueue<>(BY_DOC_COUNT);
+        protected final Term other = new Term(OTHER_KEY, 0);
+        protected long total;
+
+        protected void add(Term term) {
+            total += term.docCount;
+            top.add(term);
+            if (top.size() > topN) {
+                other.docCount += top.poll().docCount;
+            }
+        }
+
+        /**
+         * The buckets of the top terms and of the other terms, if there are any
+         */
+        protected List<Map<String, Object>> buckets() {
+            List<Map<String, Object>> buckets = new ArrayList<>();
+            Set<String> keys = new HashSet<>();
+            for (Term term : sorted()) {
+                buckets.add(termBucket(term.key, term.docCount));
+                keys.add(term.key);
+            }
+            if (other.docCount > 0) {
+                buckets.add(termBucket(otherKey(keys), other.docCount));
+            }
+            return buckets;
+        }
+
+        /**
+         * The top terms ordered like a terms aggregation, by doc count descending and then by key
+         */
+        protected List<Term> sorted() {
+            List<Term> sorted = new ArrayList<>(top);
+            sorted.sort(BY_DOC_COUNT.reversed());
+            return sorted;
+        }
+    }
+}
@@ -10,33 +10,34 @@ import com.activiti.domain.idm.User;
 import com.activiti.domain.reporting.*;
 import com.activiti.service.api.ReportingIndexManager;
 import com.activiti.service.api.UserCache;
-import com.activiti.service.reporting.converter.AggsToMultiSeriesChartConverter;
-import com.activiti.service.reporting.converter.AggsToSimpleChartBasicConverter;
-import com.activiti.service.reporting.converter.AggsToSimpleDateBasedChartBasicConverter;
-import com.activiti.service.reporting.converter.BucketExtractors;
 import com.activiti.service.reporting.generators.BaseReportGenerator;
 import com.activiti.service.reporting.searchClient.AnalyticsClient;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.activiti.engine.ProcessEngine;
-import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.TermQueryBuilder;
-import org.elasticsearch.search.aggregations.AggregationBuilders;
-import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
-import static com.activiti.service.reporting.eventhandler.EventFields.PROCESS_DEFINITION_KEY;
 import static com.activiti.service.reporting.generators.ElasticSearchConstants.INDEX_VARIABLES;
 
 /**
+ * The Fruit orders overview report. Its charts and their queries are described by
+ * <code>reports/fruit-orders.json</code> and compiled by {@link ReportDefinitions}; this class decides how the
+ * report is run and cached.
+ *
  * @author Will Abson
  */
 @Component(CustomVariablesReportGenerator.ID)
@@ -46,7 +47,110 @@ public class CustomVariablesReportGenerator extends BaseReportGenerator {
 
     public static final String ID = "report.generator.fruitorders";
 
-    public static final String NAME = "Fruit orders overview";
+    /**
+     * The report as read from the order facts index, see {@link OrderFactsProjector}
+     */
+    public static final String ORDER_FACTS_ID = ID + ".facts";
+
+    public static final String CHART_CUSTOMER_ORDERS = "customerOrders";
+
+    public static final String CHART_QUANTITIES_BY_MONTH = "quantitiesByMonth";
+
+    public static final String CHART_ORDERS_BY_DUE_DATE = "ordersByDueDate";
+
+    public static final String CHART_ORDERS_BY_CUSTOMER_AND_MONTH = "ordersByCustomerAndMonth";
+
+    /**
+     * Description given to a chart instead of its own when its search failed, so that the rest of the report can
+     * still be shown
+     */
+    public static final String CHART_UNAVAILABLE = CompiledReport.CHART_UNAVAILABLE;
+
+    /**
+     * Description given to the charts when the report is not generated because too many reports are running
+     */
+    public static final String CHART_BUSY = "Too many reports are being generated right now, please try again in a moment";
+
+    /**
+     * Description given to the charts while the report is generated in the background, with the id of its job and
+     * the number of charts done
+     */
+    public static final String CHART_PENDING = "This report is being generated as job %s, %d of %d charts are ready. "
+            + "Refresh to see it once it is done";
+
+    /**
+     * Added to the description of an approximate chart, with the number of orders sampled and the error bound of
+     * the shares in percentage points
+     */
+    public static final String CHART_APPROXIMATE = "Approximate, scaled up from a random sample of %d orders: "
+            + "shares are within %.1f percentage points";
+
+    /**
+     * Added to the approximate chart by customer and month, with the most distinct customers in a month and the
+     * standard error of their count in percent
+     */
+    public static final String CHART_APPROXIMATE_DISTINCT = ". Up to about %d distinct customers ordered in a month, "
+            + "counted to within %.1f%%";
+
+    /**
+     * Added to the name of the aggregation of an approximate chart for the sampler holding it
+     */
+    protected static final String SAMPLE_SUFFIX = "Sample";
+
+    protected static final String DISTINCT_CUSTOMERS_BY_MONTH = "distinctCustomersByMonth";
+
+    protected static final String DISTINCT_CUSTOMERS = "distinctCustomers";
+
+    @Autowired
+    protected ReportSearchExecutor searchExecutor;
+
+    @Autowired
+    protected ReportResultCache resultCache;
+
+    @Autowired
+    protected MonthlyRollups monthlyRollups;
+
+    @Autowired
+    protected ReportSnapshots reportSnapshots;
+
+    @Autowired
+    protected CompositeTermsPager termsPager;
+
+    @Autowired
+    protected ReportMetrics reportMetrics;
+
+    @Autowired
+    protected PeriodIndices periodIndices;
+
+    @Autowired
+    protected ReportAdmission reportAdmission;
+
+    @Autowired
+    protected ReportJobs reportJobs;
+
+    @Autowired
+    protected ReportDefinitions reportDefinitions;
+
+    @Autowired
+    protected ApproximateMode approximateMode;
+
+    @Autowired
+    protected OrderFactsProjector orderFacts;
+
+    /**
+     * The compiled definition of the report
+     */
+    protected CompiledReport report() {
+        return reportDefinitions.get(ID);
+    }
+
+    /**
+     * The key of the process definition whose orders are reported on unless another is chosen, as given by the
+     * definition of the report
+     */
+    public String getProcessDefinitionKey() {
+        return report().getProcessDefinitionKey();
+    }
 
     @Override
     public String getID() {
@@ -55,7 +159,7 @@ public class CustomVariablesReportGenerator extends BaseReportGenerator {
 
     @Override
     public String getName() {
-        return NAME;
+        return report().getName();
     }
 
     @Override
@@ -71,7 +175,7 @@ public class CustomVariablesReportGenerator extends BaseReportGenerator {
     @Override
     public String getParameters(ObjectMapper objectMapper,
                                 Map<String, Object> parameterValues) {
-        ParametersDefinition parameters = getParameterDefinitions();
+        ParametersDefinition parameters = getParameterDefinitions(parameterValues);
         try {
             return objectMapper.writeValueAsString(parameters);
         } catch (JsonProcessingException e) {
@@ -80,8 +184,18 @@ public class CustomVariablesReportGenerator extends BaseReportGenerator {
         }
     }
 
+    /**
+     * The parameters of the report without values: a date range, a customer and the process definition
+     */
     public ParametersDefinition getParameterDefinitions() {
-        return new ParametersDefinition();
+        return getParameterDefinitions(null);
+    }
+
+    /**
+     * The parameters of the report with the given values filled in, see {@link ReportParameters}
+     */
+    public ParametersDefinition getParameterDefinitions(Map<String, Object> parameterValues) {
+        return ReportParameters.definitions(parameterValues);
     }
 
     @Override
@@ -93,166 +207,538 @@ public class CustomVariablesReportGenerator extends BaseReportGenerator {
                                              ObjectMapper objectMapper,
                                              Map<String, Object> map) {
 
-        // Pie chart - orders by customer
-        SearchResponse customerNameResults = search(analyticsClient,
-                                                    indexManager,
-                                                    currentUser,
-                                                    customerOrderCountsQuery());
-
-        // Bar chart - quantities ordered in each month
-        SearchResponse ordersByDateResults = search(analyticsClient,
-                                                    indexManager,
-                                                    currentUser,
-                                                    totalQuantityByMonthQuery());
-
-        // Bar chart - num orders by due month
-        SearchResponse ordersByDueDate = search(analyticsClient,
-                                                indexManager,
-                                                currentUser,
-                                                totalOrdersByDueDateQuery());
-
-        // Bar chart - num orders by date placed grouped by customer
-        SearchResponse ordersPlacedByCustomer = search(analyticsClient,
-                                                       indexManager,
-                                                       currentUser,
-                                                       numOrdersByCustomerAndMonthQuery());
+        String index = indexManager.getIndexForUser(currentUser, INDEX_VARIABLES);
+        ReportParameters parameters = orderFacts.isServingReports()
+                ? ReportParameters.from(map, getProcessDefinitionKey()).forTenant(orderFacts.tenantOf(currentUser))
+                : ReportParameters.from(map, getProcessDefinitionKey());
+        ReportResultCache.Key reportKey = new ReportResultCache.Key(ID, index, map, parameters.getProcessDefinitionKey());
+
+        // Serve the latest snapshot if it is recent enough
+        ReportDataRepresentation reportData = reportSnapshots.get(reportKey, () -> {
+            SnapshotReportDataRepresentation snapshot = new SnapshotReportDataRepresentation();
+            try {
+                return reportAdmission.run(ID, index, () -> generateReport(analyticsClient, index, parameters, snapshot))
+                        ? snapshot
+                        : null;
+            } catch (ReportBusyException e) {
+                // Keep the previous snapshot, the next refresh may get its turn
+                return null;
+            }
+        });
+        if (reportData != null) {
+            return reportData;
+        }
 
-        ReportDataRepresentation reportData = new ReportDataRepresentation();
-        reportData.addReportDataElement(generateCustomerOrdersPieChart(customerNameResults));
-        reportData.addReportDataElement(generateOrderQuantitiesByMonthChart(ordersByDateResults));
-        reportData.addReportDataElement(generateOrdersByDueDateChart(ordersByDueDate));
-        reportData.addReportDataElement(generateOrderQuantitiesByMonthAndCustomerChart(ordersPlacedByCustomer));
+        // Users sharing an index share the cached report
+        reportData = resultCache.get(reportKey);
+        if (reportData != null) {
+            return reportData;
+        }
+
+        // Long reports can be left to finish in the background, to be picked up by a later request
+        if (reportJobs.isEnabled()) {
+            return generateInBackground(analyticsClient, index, parameters, reportKey);
+        }
+
+        try {
+            return generateAdmitted(analyticsClient, index, parameters, reportKey, null);
+        } catch (ReportBusyException e) {
+            logger.info("Not generating report " + ID + ": " + e.getMessage());
+            return emptyReport(CHART_BUSY);
+        }
+    }
+
+    /**
+     * Generate the report once it is its turn, caching it if it is complete
+     *
+     * @param job the job to report the progress of the charts to, or <code>null</code>
+     * @throws ReportBusyException if the report could not be admitted
+     */
+    protected ReportDataRepresentation generateAdmitted(AnalyticsClient analyticsClient,
+                                                        String index,
+                                                        ReportParameters parameters,
+                                                        ReportResultCache.Key reportKey,
+                                                        ReportJob job) {
+        return reportAdmission.run(ID, index, () -> {
+            // Another user of the index may have generated the report while this one waited for its turn
+            ReportDataRepresentation cached = resultCache.get(reportKey);
+            if (cached != null) {
+                return cached;
+            }
+
+            ReportDataRepresentation generated = new ReportDataRepresentation();
+            // Only keep complete reports, so that a failed chart is retried on the next refresh
+            if (generateReport(analyticsClient, index, parameters, generated, job)) {
+                resultCache.put(reportKey, generated);
+            }
+            return generated;
+        });
+    }
+
+    /**
+     * Generate the report as a job, waiting for it for a short while. If it is not done by then, the charts are
+     * handed back without data, showing the progress of the job, and the report is picked up by a later request.
+     */
+    protected ReportDataRepresentation generateInBackground(AnalyticsClient analyticsClient,
+                                                            String index,
+                                                            ReportParameters parameters,
+                                                            ReportResultCache.Key reportKey) {
+        ReportJob job;
+        try {
+            job = reportJobs.submit(ID, reportKey, submitted -> {
+                try {
+                    return generateAdmitted(analyticsClient, index, parameters, reportKey, submitted);
+                } catch (ReportBusyException e) {
+                    logger.info("Not generating report " + ID + ": " + e.getMessage());
+                    return emptyReport(CHART_BUSY);
+                }
+            });
+        } catch (ReportBusyException e) {
+            logger.info("Not generating report " + ID + ": " + e.getMessage());
+            return emptyReport(CHART_BUSY);
+        }
 
+        if (!job.await(reportJobs.getWaitMillis())) {
+            return emptyReport(String.format(CHART_PENDING,
+                                             job.getId(),
+                                             job.getChartsCompleted(),
+                                             report().getCharts().size()));
+        }
+        job.markDelivered();
+        return job.getStatus() == ReportJob.Status.DONE ? job.getReport() : emptyReport(CHART_UNAVAILABLE);
+    }
+
+    /**
+     * The charts of the report without data, all with the given description. This is handed back when the report
+     * cannot be generated now, telling the user why.
+     */
+    protected ReportDataRepresentation emptyReport(String description) {
+        ReportDataRepresentation reportData = new ReportDataRepresentation();
+        for (CompiledReport.CompiledChart chart : report().getCharts()) {
+            chart.addTo(reportData, null, description);
+        }
         return reportData;
     }
 
-    protected SearchSourceBuilder customerOrderCountsQuery() {
-        return new SearchSourceBuilder()
-                .query(QueryBuilders.boolQuery()
-                               .must(new TermQueryBuilder(PROCESS_DEFINITION_KEY, "fruitorderprocess"))
-                               .must(new TermQueryBuilder("name", "customername")))
-                .aggregation(AggregationBuilders
-                                     .terms("customerOrders")
-                                     .field("stringValue.keyword"));
+    /**
+     * Convert the responses into the charts of the given report and add them to the report data, in the order of the
+     * report, measuring each conversion and reporting each chart to the job unless it is <code>null</code>
+     *
+     * @param descriptions descriptions replacing those of the charts, by chart
+     */
+    protected void addCharts(CompiledReport report,
+                             String index,
+                             Map<String, SearchResponse> responses,
+                             Map<String, String> descriptions,
+                             ReportDataRepresentation reportData,
+                             ReportJob job) {
+        for (CompiledReport.CompiledChart chart : report.getCharts()) {
+            SearchResponse response = responses.get(chart.getId());
+            long conversionStart = System.nanoTime();
+            chart.addTo(reportData, response, descriptions.get(chart.getId()));
+            reportMetrics.chartConverted(ReportMetrics.tags(ID, chart.getId(), index),
+                                         conversionStart,
+                                         response,
+                                         chart.getAggregationName());
+            chartCompleted(job, chart.getId(), response);
+        }
     }
 
-    protected SearchSourceBuilder totalQuantityByMonthQuery() {
-        return new SearchSourceBuilder()
-                .query(QueryBuilders.boolQuery()
-                               .must(new TermQueryBuilder(PROCESS_DEFINITION_KEY, "fruitorderprocess"))
-                               .must(new TermQueryBuilder("name", "quantity")))
-                .aggregation(AggregationBuilders.dateHistogram("ordersByMonth")
-                                     .field("createTime")
-                                     .format("yyyy-MM")
-                                     .calendarInterval(DateHistogramInterval.MONTH)
-                                     .subAggregation(AggregationBuilders
-                                                             .sum("totalItems")
-                                                             .field("longValue")));
+    /**
+     * A listener of the searches of the charts reporting each one to the job as soon as it is back, unless the job is
+     * <code>null</code>
+     */
+    protected static BiConsumer<String, SearchResponse> chartSearched(ReportJob job) {
+        return (chart, response) -> {
+            if (job != null) {
+                job.chartSearched(chart, response != null);
+            }
+        };
     }
 
-    protected SearchSourceBuilder totalOrdersByDueDateQuery() {
-        return new SearchSourceBuilder()
-                .query(QueryBuilders.boolQuery()
-                               .must(new TermQueryBuilder(PROCESS_DEFINITION_KEY, "fruitorderprocess"))
-                               .must(new TermQueryBuilder("name", "duedate")))
-                .aggregation(AggregationBuilders.dateHistogram("ordersByMonthDue")
-                                     .field("dateValue")
-                                     .format("yyyy-MM")
-                                     .calendarInterval(DateHistogramInterval.MONTH));
+    protected static void chartCompleted(ReportJob job, String chart, SearchResponse response) {
+        if (job != null) {
+            job.chartCompleted(chart, response != null);
+        }
     }
 
-    protected SearchSourceBuilder numOrdersByCustomerAndMonthQuery() {
-        return new SearchSourceBuilder()
-                .query(QueryBuilders.boolQuery()
-                               .must(new TermQueryBuilder(PROCESS_DEFINITION_KEY, "fruitorderprocess"))
-                               .must(new TermQueryBuilder("name", "customername")))
-                .aggregation(AggregationBuilders.dateHistogram("ordersByMonth")
-                                     .field("createTime")
-                                     .format("yyyy-MM")
-                                     .calendarInterval(DateHistogramInterval.MONTH)
-                                     .subAggregation(AggregationBuilders
-                                                             .terms("customerName")
-                                                             .field("stringValue.keyword")));
+    /**
+     * Run the queries of the report against the index and add the charts to the report data
+     *
+     * @return whether all charts could be filled
+     */
+    protected boolean generateReport(AnalyticsClient analyticsClient,
+                                     String index,
+                                     ReportParameters parameters,
+                                     ReportDataRepresentation reportData) {
+        return generateReport(analyticsClient, index, parameters, reportData, null);
     }
 
-    protected SearchResponse search(AnalyticsClient analyticsClient,
-                                    ReportingIndexManager indexManager,
-                                    User currentUser,
-                                    SearchSourceBuilder query) {
-        SearchRequest request = new SearchRequest(
-                indexManager.getIndexForUser(currentUser, INDEX_VARIABLES))
-                .source(query);
+    /**
+     * As {@link #generateReport(AnalyticsClient, String, ReportParameters, ReportDataRepresentation)}, reporting
+     * the progress of each chart to the given job unless it is <code>null</code>
+     */
+    protected boolean generateReport(AnalyticsClient analyticsClient,
+                                     String index,
+                                     ReportParameters parameters,
+                                     ReportDataRepresentation reportData,
+                                     ReportJob job) {
+        long start = System.nanoTime();
+        // All searches of the report share its timeout, however many round trips they take
+        long deadline = searchExecutor.deadline();
+        Map<String, Long> phases = new LinkedHashMap<>();
+        List<String> charts = report().getChartIds();
+        if (job != null) {
+            job.chartsStarted(charts);
+        }
+        if (orderFacts.isServingReports()) {
+            return generateFromOrderFacts(analyticsClient, index, parameters, reportData, job, start, deadline, phases);
+        }
+
+        // Only search the indices of the periods in the date range, if the index is split by period
+        String searchIndex = periodIndices.indices(index, parameters);
+
+        // Very large tenants get approximate charts by customer, if enabled
+        List<String> approximatedCharts = new ArrayList<>();
+        if (approximateMode.isApproximate(analyticsClient,
+                                          ID,
+                                          searchIndex,
+                                          parameters,
+                                          parameters.customerFilter(),
+                                          deadline)) {
+            for (CompiledReport.CompiledChart chart : report().getCharts()) {
+                if (isByCustomer(chart)) {
+                    approximatedCharts.add(chart.getId());
+                }
+            }
+        }
+
+        // Charts whose query is changed for this report are built as queries, the others are rendered from templates
+        List<String> templatedCharts = new ArrayList<>();
+        Map<String, SearchSourceBuilder> queries = new LinkedHashMap<>();
+        for (CompiledReport.CompiledChart chart : report().getCharts()) {
+            if (approximatedCharts.contains(chart.getId())) {
+                queries.put(chart.getId(), approximateQuery(chart, parameters));
+            } else if (searchExecutor.isTemplated()
+                    && !(monthlyRollups.isEnabled() && isRolledUp(chart))
+                    && !(termsPager.isEnabled() && isPaged(chart))) {
+                templatedCharts.add(chart.getId());
+            } else {
+                queries.put(chart.getId(), chart.query(parameters));
+            }
+        }
+        Map<String, MonthlyRollups.Plan> rollupPlans = planMonthlyRollups(index, parameters, queries, approximatedCharts);
+
+        // Charts by customer page through the customers rather than asking for all of them at once
+        Map<String, SearchSourceBuilder> pagedQueries = new LinkedHashMap<>();
+        if (termsPager.isEnabled()) {
+            for (CompiledReport.CompiledChart chart : report().getCharts()) {
+                if (isPaged(chart) && !approximatedCharts.contains(chart.getId())) {
+                    pagedQueries.put(chart.getId(), queries.remove(chart.getId()));
+                }
+            }
+        }
+
+        // The job shows each chart as done as soon as its search is back, while the others are still searched
+        BiConsumer<String, SearchResponse> searched = chartSearched(job);
+        Map<String, SearchResponse> responses = searchExecutor.searchAll(analyticsClient,
+                                                                         ID,
+                                                                         searchIndex,
+                                                                         queries,
+                                                                         deadline,
+                                                                         searched);
+        if (!templatedCharts.isEmpty()) {
+            responses.putAll(searchTemplated(searchIndex, templatedCharts, parameters, deadline, searched));
+        }
+        for (Map.Entry<String, SearchSourceBuilder> pagedQuery : pagedQueries.entrySet()) {
+            SearchResponse response = searchPaged(analyticsClient,
+                                                  searchIndex,
+                                                  pagedQuery.getKey(),
+                                                  pagedQuery.getValue(),
+                                                  deadline);
+            searched.accept(pagedQuery.getKey(), response);
+            responses.put(pagedQuery.getKey(), response);
+        }
+        // Approximate charts are scaled up from their samples, and say how far off they may be
+        Map<String, String> approximations = new LinkedHashMap<>();
+        for (String chart : approximatedCharts) {
+            SearchResponse sampled = responses.get(chart);
+            SearchResponse unsampled = unsample(chart, sampled);
+            if (unsampled != null) {
+                approximations.put(chart, approximation(chart, sampled));
+            }
+            responses.put(chart, unsampled);
+        }
+        for (Map.Entry<String, MonthlyRollups.Plan> rollupPlan : rollupPlans.entrySet()) {
+            responses.put(rollupPlan.getKey(),
+                          rollupPlan.getValue().merge(responses.get(rollupPlan.getKey()),
+                                                      report().chart(rollupPlan.getKey()).getAggregationName()));
+        }
+        phases.put("search", ReportMetrics.millisSince(start));
+
+        addCharts(report(), index, responses, approximations, reportData, job);
+
+        phases.put("conversion", ReportMetrics.millisSince(start) - phases.get("search"));
+        reportMetrics.reportGenerated(ID, index, start, phases);
+
+        return !responses.containsValue(null);
+    }
+
+    /**
+     * As {@link #generateReport(AnalyticsClient, String, ReportParameters, ReportDataRepresentation, ReportJob)},
+     * reading the orders from the order facts index. The charts share a single search, unless a customer is chosen
+     * which only narrows down the charts by customer.
+     */
+    protected boolean generateFromOrderFacts(AnalyticsClient analyticsClient,
+                                             String index,
+                                             ReportParameters parameters,
+                                             ReportDataRepresentation reportData,
+                                             ReportJob job,
+                                             long start,
+                                             long deadline,
+                                             Map<String, Long> phases) {
+        CompiledReport report = reportDefinitions.get(ORDER_FACTS_ID);
+        Map<String, SearchResponse> responses = searchExecutor.searchAll(analyticsClient,
+                                                                         ID,
+                                                                         orderFacts.getIndex(),
+                                                                         report.queries(parameters),
+                                                                         deadline,
+                                                                         chartSearched(job));
+        phases.put("search", ReportMetrics.millisSince(start));
+
+        addCharts(report, index, responses, Collections.<String, String>emptyMap(), reportData, job);
+
+        phases.put("conversion", ReportMetrics.millisSince(start) - phases.get("search"));
+        reportMetrics.reportGenerated(ID, index, start, phases);
+
+        return !responses.containsValue(null);
+    }
+
+    /**
+     * The queries behind each chart of the report, in the order in which the charts are displayed. They only ask for
+     * aggregations and select the variables in filter context, so that no documents are fetched or scored.
+     */
+    protected Map<String, SearchSourceBuilder> reportQueries() {
+        return reportQueries(new ReportParameters(getProcessDefinitionKey()));
+    }
+
+    protected Map<String, SearchSourceBuilder> reportQueries(ReportParameters parameters) {
+        return report().queries(parameters);
+    }
+
+    /**
+     * In incremental mode, restrict the charts by month of order to the months which are not rolled up yet. The
+     * closed months are rolled up separately for each combination of parameters.
+     */
+    protected Map<String, MonthlyRollups.Plan> planMonthlyRollups(String index,
+                                                                   ReportParameters parameters,
+                                                                   Map<String, SearchSourceBuilder> queries,
+                                                                   List<String> approximatedCharts) {
+        Map<String, MonthlyRollups.Plan> plans = new LinkedHashMap<>();
+        if (monthlyRollups.isEnabled()) {
+            for (CompiledReport.CompiledChart chart : report().getCharts()) {
+                // Rollups are exact, they cannot be merged with a sample
+                if (!isRolledUp(chart) || approximatedCharts.contains(chart.getId())) {
+                    continue;
+                }
+                MonthlyRollups.Plan plan = monthlyRollups.plan(ID + "/" + index + "/" + chart.getId() + "/" + parameters);
+                plan.restrict(queries.get(chart.getId()), chart.getBuckets().getField());
+                plans.put(chart.getId(), plan);
+            }
+        }
+        return plans;
+    }
+
+    /**
+     * The query of an approximate chart, aggregating a random sample of the orders. The chart by customer and month
+     * also counts the distinct customers of each month, over all orders.
+     */
+    protected SearchSourceBuilder approximateQuery(CompiledReport.CompiledChart chart, ReportParameters parameters) {
+        SearchSourceBuilder query = approximateMode.sampledQuery(chart.filter(parameters),
+                                                                 chart.getAggregationName() + SAMPLE_SUFFIX,
+                                                                 chart.getAggregation());
+        if (chart.getSeries() != null) {
+            query.aggregation(approximateMode.distinctPerMonth(DISTINCT_CUSTOMERS_BY_MONTH,
+                                                               chart.getBuckets().getField(),
+                                                               DISTINCT_CUSTOMERS,
+                                                               chart.getSeries().getField()));
+        }
+        return query;
+    }
+
+    /**
+     * The description of an approximate chart, saying how many orders were sampled and how far off it may be
+     */
+    protected String approximation(String chart, SearchResponse response) {
+        CompiledReport.CompiledChart compiledChart = report().chart(chart);
+        boolean byMonth = compiledChart.getSeries() != null;
+        long sampled = ApproximateMode.sampledCount(response, compiledChart.getAggregationName() + SAMPLE_SUFFIX);
+        String approximation = String.format(Locale.ROOT,
+                                             CHART_APPROXIMATE,
+                                             sampled,
+                                             ApproximateMode.sampleErrorPercent(sampled));
+        if (byMonth) {
+            approximation += String.format(Locale.ROOT,
+                                           CHART_APPROXIMATE_DISTINCT,
+                                           ApproximateMode.maxPerMonth(response,
+                                                                       DISTINCT_CUSTOMERS_BY_MONTH,
+                                                                       DISTINCT_CUSTOMERS),
+                                           approximateMode.cardinalityErrorPercent());
+        }
+        return compiledChart.getDescription() + ". " + approximation;
+    }
+
+    /**
+     * The response of an approximate chart with its sample scaled up, or <code>null</code> if it cannot be read
+     */
+    protected SearchResponse unsample(String chart, SearchResponse response) {
         try {
-            return analyticsClient.search(request);
+            return ApproximateMode.unsample(response);
         } catch (IOException e) {
-            logger.error("Error during elastic search", e);
+            logger.error("Could not scale up the sample of chart " + chart, e);
             return null;
         }
     }
 
-    protected PieChartDataRepresentation generateCustomerOrdersPieChart(SearchResponse searchResponse) {
+    /**
+     * Run the queries of the given charts from templates. The templates are compiled once for each combination of
+     * charts and of the parameters which are set, as these decide the clauses of the queries.
+     */
+    protected Map<String, SearchResponse> searchTemplated(String index,
+                                                          List<String> charts,
+                                                          ReportParameters parameters,
+                                                          long deadline,
+                                                          BiConsumer<String, SearchResponse> searched) {
+        return searchExecutor.searchAll(ID, index, ID + "/" + charts + "/" + parameters.getShape(), () -> {
+            ReportParameters slots = parameters.asTemplate();
+            Map<String, SearchSourceBuilder> queries = new LinkedHashMap<>();
+            for (String chart : charts) {
+                queries.put(chart, report().chart(chart).query(slots));
+            }
+            return queries;
+        }, parameters.templateValues(), deadline, searched);
+    }
 
-        PieChartDataRepresentation pieChart = new PieChartDataRepresentation();
-        pieChart.setTitle("No. of orders by customer");
-        pieChart.setDescription("This chart shows the total number of orders placed by each customer");
+    /**
+     * Run the query of a chart by customer through the terms pager, keeping the aggregation names of the chart
+     */
+    protected SearchResponse searchPaged(AnalyticsClient analyticsClient,
+                                         String index,
+                                         String chart,
+                                         SearchSourceBuilder query,
+                                         long deadline) {
+        CompiledReport.CompiledChart compiledChart = report().chart(chart);
+        ReportDefinition.BucketsDefinition buckets = compiledChart.getBuckets();
+        ReportDefinition.BucketsDefinition series = compiledChart.getSeries();
+        if (series == null) {
+            return termsPager.topTerms(analyticsClient,
+                                       ID,
+                                       chart,
+                                       index,
+                                       query.query(),
+                                       buckets.getName(),
+                                       buckets.getField(),
+                                       deadline);
+        }
+        return termsPager.topTermsByMonth(analyticsClient,
+                                          ID,
+                                          chart,
+                                          index,
+                                          query.query(),
+                                          buckets.getName(),
+                                          buckets.getField(),
+                                          series.getName(),
+                                          series.getField(),
+                                          deadline);
+    }
 
-        new AggsToSimpleChartBasicConverter(searchResponse, "customerOrders").setChartData(
-                pieChart,
-                new BucketExtractors.BucketKeyExtractor(),
-                new BucketExtractors.BucketDocCountExtractor()
-        );
+    /**
+     * Whether the chart is about the customers, which are approximated for very large tenants if enabled
+     */
+    protected static boolean isByCustomer(CompiledReport.CompiledChart chart) {
+        return ReportParameters.CUSTOMER_VARIABLE.equals(chart.getVariable());
+    }
 
-        return pieChart;
+    /**
+     * Whether the chart is split into buckets by terms, which are paged through if enabled. Charts by month can only
+     * be paged if they are split into terms within each month.
+     */
+    protected static boolean isPaged(CompiledReport.CompiledChart chart) {
+        return ReportDefinition.BUCKETS_TERMS.equals(chart.getBuckets().getType())
+                || (isMonthly(chart)
+                && chart.getSeries() != null
+                && ReportDefinition.BUCKETS_TERMS.equals(chart.getSeries().getType()));
     }
 
-    protected SingleBarChartDataRepresentation generateOrderQuantitiesByMonthChart(SearchResponse searchResponse) {
+    /**
+     * Whether the chart is split by month of creation of its variables, which is rolled up in incremental mode. A
+     * month of creation does not change once it has closed, unlike for example a month in which orders are due.
+     */
+    protected static boolean isRolledUp(CompiledReport.CompiledChart chart) {
+        return isMonthly(chart) && ReportParameters.DATE_FIELD.equals(chart.getBuckets().getField());
+    }
 
-        SingleBarChartDataRepresentation chart = new SingleBarChartDataRepresentation();
-        chart.setTitle("Total quantities ordered per month");
-        chart.setDescription("This chart shows the total number of items that were ordered in each month");
-        chart.setyAxisType("count");
-        chart.setxAxisType("date_month");
+    protected static boolean isMonthly(CompiledReport.CompiledChart chart) {
+        return ReportDefinition.BUCKETS_DATE_HISTOGRAM.equals(chart.getBuckets().getType())
+                && "month".equals(chart.getBuckets().getInterval());
+    }
 
-        new AggsToSimpleDateBasedChartBasicConverter(searchResponse, "ordersByMonth").setChartData(
-                chart,
-                new BucketExtractors.DateHistogramBucketExtractor(),
-                new BucketExtractors.BucketAggValueExtractor("totalItems")
-        );
+    protected SearchSourceBuilder customerOrderCountsQuery() {
+        return customerOrderCountsQuery(new ReportParameters(getProcessDefinitionKey()));
+    }
 
-        return chart;
+    protected SearchSourceBuilder customerOrderCountsQuery(ReportParameters parameters) {
+        return report().chart(CHART_CUSTOMER_ORDERS).query(parameters);
     }
 
-    protected SingleBarChartDataRepresentation generateOrdersByDueDateChart(SearchResponse searchResponse) {
+    protected SearchSourceBuilder totalQuantityByMonthQuery() {
+        return totalQuantityByMonthQuery(new ReportParameters(getProcessDefinitionKey()));
+    }
 
-        SingleBarChartDataRepresentation chart = new SingleBarChartDataRepresentation();
-        chart.setTitle("No. of orders by due date");
-        chart.setDescription("This chart shows the number of orders due for fulfilment in each month");
-        chart.setyAxisType("count");
-        chart.setxAxisType("date_month");
+    protected SearchSourceBuilder totalQuantityByMonthQuery(ReportParameters parameters) {
+        return report().chart(CHART_QUANTITIES_BY_MONTH).query(parameters);
+    }
 
-        new AggsToSimpleDateBasedChartBasicConverter(searchResponse, "ordersByMonthDue").setChartData(
-                chart,
-                new BucketExtractors.DateHistogramBucketExtractor(),
-                new BucketExtractors.BucketDocCountExtractor()
-        );
+    protected SearchSourceBuilder totalOrdersByDueDateQuery() {
+        return totalOrdersByDueDateQuery(new ReportParameters(getProcessDefinitionKey()));
+    }
 
-        return chart;
+    protected SearchSourceBuilder totalOrdersByDueDateQuery(ReportParameters parameters) {
+        return report().chart(CHART_ORDERS_BY_DUE_DATE).query(parameters);
     }
 
-    protected MultiBarChart generateOrderQuantitiesByMonthAndCustomerChart(SearchResponse searchResponse) {
+    protected SearchSourceBuilder numOrdersByCustomerAndMonthQuery() {
+        return numOrdersByCustomerAndMonthQuery(new ReportParameters(getProcessDefinitionKey()));
+    }
 
-        MultiBarChart chart = new MultiBarChart();
-        chart.setTitle("Monthly no. of orders by customer");
-        chart.setDescription("This chart shows the total number of orders placed by in each month, broken down by customer");
-        chart.setyAxisType("count");
-        chart.setxAxisType("date_month");
+    protected SearchSourceBuilder numOrdersByCustomerAndMonthQuery(ReportParameters parameters) {
+        return report().chart(CHART_ORDERS_BY_CUSTOMER_AND_MONTH).query(parameters);
+    }
 
-        new AggsToMultiSeriesChartConverter(searchResponse, "ordersByMonth", "customerName").setChartData(
-                chart,
-                new BucketExtractors.DateHistogramBucketExtractor(),
-                new BucketExtractors.BucketDocCountExtractor()
-        );
+    protected SearchResponse search(AnalyticsClient analyticsClient,
+                                    ReportingIndexManager indexManager,
+                                    User currentUser,
+                                    SearchSourceBuilder query) {
+        return searchExecutor.search(analyticsClient,
+                                     ID,
+                                     null,
+                                     indexManager.getIndexForUser(currentUser, INDEX_VARIABLES),
+                                     query);
+    }
+
+    protected PieChartDataRepresentation generateCustomerOrdersPieChart(SearchResponse searchResponse) {
+        return (PieChartDataRepresentation) report().chart(CHART_CUSTOMER_ORDERS).convert(searchResponse);
+    }
 
-        return chart;
+    protected SingleBarChartDataRepresentation generateOrderQuantitiesByMonthChart(SearchResponse searchResponse) {
+        return (SingleBarChartDataRepresentation) report().chart(CHART_QUANTITIES_BY_MONTH).convert(searchResponse);
+    }
+
+    protected SingleBarChartDataRepresentation generateOrdersByDueDateChart(SearchResponse searchResponse) {
+        return (SingleBarChartDataRepresentation) report().chart(CHART_ORDERS_BY_DUE_DATE).convert(searchResponse);
+    }
+
+    protected MultiBarChart generateOrderQuantitiesByMonthAndCustomerChart(SearchResponse searchResponse) {
+        return (MultiBarChart) report().chart(CHART_ORDERS_BY_CUSTOMER_AND_MONTH).convert(searchResponse);
     }
 }
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps a count, total and maximum of every metric and combination of tags since startup
+ */
+@Component
+public class InMemoryReportMetricsRegistry implements ReportMetricsRegistry {
+
+    protected final ConcurrentMap<String, Summary> summaries = new ConcurrentHashMap<>();
+
+    @Override
+    public void record(String name, Map<String, String> tags, double value) {
+        summaries.computeIfAbsent(key(name, tags), key -> new Summary()).record(value);
+    }
+
+    /**
+     * The summary of a metric with exactly the given tags, which is empty if nothing was recorded yet
+     */
+    public Summary getSummary(String name, Map<String, String> tags) {
+        Summary summary = summaries.get(key(name, tags));
+        return summary != null ? summary : new Summary();
+    }
+
+    /**
+     * All summaries, keyed by metric name followed by the tags in alphabetical order
+     */
+    public Map<String, Summary> getSummaries() {
+        return Collections.unmodifiableMap(new TreeMap<>(summaries));
+    }
+
+    public void clear() {
+        summaries.clear();
+    }
+
+    protected static String key(String name, Map<String, String> tags) {
+        return name + new TreeMap<>(tags);
+    }
+
+    public static class Summary {
+
+        private long count;
+        private double total;
+        private double max;
+
+        protected synchronized void record(double value) {
+            count++;
+            total += value;
+            max = Math.max(max, value);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized double getTotal() {
+            return total;
+        }
+
+        public synchronized double getMax() {
+            return max;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "count=" + count + ", total=" + total + ", max=" + max;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the buckets of monthly date histograms for months which have closed, so that a report only has to query the
+ * current month and can take the older months from here. This keeps the cost of a report flat however much history
+ * has built up in the index.
+ *
+ * Months are taken as closed once a grace period after the end of the month has passed, to give the event processor
+ * time to index the last variables of the month. The first run after a month has closed queries the full history
+ * again and rolls up all closed months from its response. Only complete responses are rolled up, a search which timed
+ * out or missed shards would otherwise leave the closed months short until the next month closes.
+ *
+ * A rollup is kept for each combination of index and parameters, so their number is bounded: the least recently used
+ * rollup is evicted when full, and rollups expire after a time to live. An evicted rollup only costs one full query.
+ */
+@Component
+public class MonthlyRollups implements InitializingBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(MonthlyRollups.class);
+
+    @Value("${custom.report.rollup.enabled:false}")
+    protected boolean enabled;
+
+    @Value("${custom.report.rollup.grace-period:3600000}")
+    protected long gracePeriodMillis;
+
+    @Value("${custom.report.rollup.max-entries:1000}")
+    protected int maxEntries;
+
+    @Value("${custom.report.rollup.ttl:86400000}")
+    protected long ttlMillis;
+
+    protected Clock clock = Clock.systemUTC();
+
+    protected BoundedCache<String, Rollup> rollups;
+
+    @Override
+    public void afterPropertiesSet() {
+        rollups = new BoundedCache<>(maxEntries, ttlMillis);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start a run of the histogram identified by the given key, which should include everything the histogram
+     * depends on such as the generator, index and chart
+     */
+    public Plan plan(String key) {
+        return new Plan(key, watermark(), rollups.get(key));
+    }
+
+    public void invalidate(String key) {
+        rollups.remove(key);
+    }
+
+    public void invalidateAll() {
+        rollups.clear();
+    }
+
+    /**
+     * The start of the oldest month which is not closed yet, in epoch milliseconds
+     */
+    protected long watermark() {
+        YearMonth month = YearMonth.from(clock.instant().minus(Duration.ofMillis(gracePeriodMillis)).atZone(ZoneOffset.UTC));
+        return month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    protected static class Rollup {
+
+        protected final long watermark;
+        protected final List<Map<String, Object>> closedBuckets;
+
+        protected Rollup(long watermark, List<Map<String, Object>> closedBuckets) {
+            this.watermark = watermark;
+            this.closedBuckets = closedBuckets;
+        }
+    }
+
+    /**
+     * One run of a histogram query. The query is restricted to the open months if the closed months are rolled up,
+     * and the response is then completed with the rolled up months.
+     */
+    public class Plan {
+
+        protected final String key;
+        protected final long watermark;
+        protected final Rollup rollup;
+
+        protected Plan(String key, long watermark, Rollup rollup) {
+            this.key = key;
+            this.watermark = watermark;
+            this.rollup = rollup != null && rollup.watermark == watermark ? rollup : null;
+        }
+
+        public boolean isIncremental() {
+            return rollup != null;
+        }
+
+        /**
+         * Restrict the query in place to documents at or after the watermark, if the months before it are rolled up
+         */
+        public SearchSourceBuilder restrict(SearchSourceBuilder query, String dateField) {
+            if (isIncremental()) {
+                query.query(QueryBuilders.boolQuery()
+                                    .filter(query.query())
+                                    .filter(QueryBuilders.rangeQuery(dateField)
+                                                    .gte(watermark)
+                                                    .format("epoch_millis")));
+            }
+            return query;
+        }
+
+        /**
+         * Complete the response of the query with the rolled up months, or roll up the closed months of a full
+         * response. Returns <code>null</code> if there was no response, or if it is not complete as it would then be
+         * short of orders.
+         */
+        @SuppressWarnings("unchecked")
+        public SearchResponse merge(SearchResponse response, String histogramName) {
+            if (response == null || !ReportSearchExecutor.isComplete(response)) {
+                return null;
+            }
+            try {
+                Map<String, Object> json = ReportResponses.toMap(response);
+                Map<String, Object> histogram = ReportResponses.findAggregation(json, histogramName);
+                if (histogram == null) {
+                    return response;
+                }
+                List<Map<String, Object>> buckets = (List<Map<String, Object>>) histogram.get("buckets");
+
+                if (!isIncremental()) {
+                    List<Map<String, Object>> closedBuckets = new ArrayList<>();
+                    for (Map<String, Object> bucket : buckets) {
+                        if (bucketKey(bucket) < watermark) {
+                            closedBuckets.add(bucket);
+                        }
+                    }
+                    rollups.put(key, new Rollup(watermark, closedBuckets));
+                    return response;
+                }
+
+                List<Map<String, Object>> mergedBuckets = new ArrayList<>(rollup.closedBuckets);
+                for (Map<String, Object> bucket : buckets) {
+                    if (bucketKey(bucket) >= watermark) {
+                        mergedBuckets.add(bucket);
+                    }
+                }
+                histogram.put("buckets", mergedBuckets);
+                return ReportResponses.parse(json);
+
+            } catch (IOException e) {
+                logger.error("Could not merge rolled up months into histogram " + histogramName, e);
+                // The response of an incremental query only covers the open months
+                return isIncremental() ? null : response;
+            }
+        }
+
+        protected long bucketKey(Map<String, Object> bucket) {
+            return ((Number) bucket.get("key")).longValue();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.idm.User;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.delegate.event.ActivitiVariableEvent;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.repository.ProcessDefinition;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.activiti.service.reporting.eventhandler.EventFields.PROCESS_DEFINITION_KEY;
+
+/**
+ * Keeps one document per fruit order in an index of its own, holding its customer, quantity and due date, so that
+ * the report can be answered from a single compact index instead of a variable row per value.
+ *
+ * The document of an order is updated when one of its variables is created or updated, from the same engine events
+ * the reporting event log is made of. The update is only sent once the transaction of the event has committed, and
+ * updates are sent in bulk in the background, so processes are not held up by the analytics cluster. An order is
+ * created with the time of its first variable, which the date range of the report selects on.
+ *
+ * Reports are only read from the index once <code>custom.report.order-facts.reports</code> is set, which should be
+ * after the index has been filled for the orders placed before it was enabled.
+ */
+@Component
+public class OrderFactsProjector implements ActivitiEventListener, InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderFactsProjector.class);
+
+    public static final String FIELD_TENANT_ID = "tenantId";
+
+    public static final String FIELD_PROCESS_INSTANCE_ID = "processInstanceId";
+
+    public static final String FIELD_CUSTOMER = "customer";
+
+    public static final String FIELD_QUANTITY = "quantity";
+
+    public static final String FIELD_DUE_DATE = "dueDate";
+
+    /**
+     * The tenant orders without a tenant are kept under, so that they are only ever read by users without a tenant.
+     * It cannot be taken for an engine tenant of a user, which starts with the tenant prefix.
+     */
+    public static final String NO_TENANT = "_none";
+
+    /**
+     * The field of an order each projected variable is kept in
+     */
+    protected static final Map<String, String> FIELDS_BY_VARIABLE;
+
+    static {
+        Map<String, String> fields = new HashMap<>();
+        fields.put(ReportParameters.CUSTOMER_VARIABLE, FIELD_CUSTOMER);
+        fields.put("quantity", FIELD_QUANTITY);
+        fields.put("duedate", FIELD_DUE_DATE);
+        FIELDS_BY_VARIABLE = Collections.unmodifiableMap(fields);
+    }
+
+    @Value("${custom.report.order-facts.enabled:false}")
+    protected boolean enabled;
+
+    @Value("${custom.report.order-facts.reports:false}")
+    protected boolean reports;
+
+    @Value("${custom.report.order-facts.index:fruit-order-facts}")
+    protected String index;
+
+    @Value("${custom.report.order-facts.tenant-prefix:tenant_}")
+    protected String tenantPrefix;
+
+    /**
+     * The processes whose orders are projected, by default those the report definitions are about
+     */
+    @Value("${custom.report.order-facts.process-definition-keys:}")
+    protected String[] processDefinitionKeys;
+
+    @Value("${custom.report.order-facts.bulk-actions:500}")
+    protected int bulkActions;
+
+    @Value("${custom.report.order-facts.flush-interval:1000}")
+    protected long flushIntervalMillis;
+
+    @Autowired
+    protected ReportDefinitions reportDefinitions;
+
+    @Autowired(required = false)
+    protected ProcessEngine processEngine;
+
+    @Autowired(required = false)
+    protected RestHighLevelClient restHighLevelClient;
+
+    protected BulkProcessor bulkProcessor;
+
+    @Override
+    public void afterPropertiesSet() {
+        if (processDefinitionKeys == null || processDefinitionKeys.length == 0) {
+            Set<String> keys = new LinkedHashSet<>();
+            for (CompiledReport report : reportDefinitions.getReports().values()) {
+                if (report.getProcessDefinitionKey() != null) {
+                    keys.add(report.getProcessDefinitionKey());
+                }
+            }
+            processDefinitionKeys = keys.toArray(new String[keys.size()]);
+        }
+        if (!enabled) {
+            return;
+        }
+        if (processEngine == null || restHighLevelClient == null) {
+            logger.warn("No process engine or RestHighLevelClient available, orders will not be projected into " + index);
+            return;
+        }
+        createIndex();
+        bulkProcessor = BulkProcessor.builder(
+                (request, listener) -> restHighLevelClient.bulkAsync(request, RequestOptions.DEFAULT, listener),
+                new BulkListener())
+                .setBulkActions(bulkActions)
+                .setFlushInterval(TimeValue.timeValueMillis(flushIntervalMillis))
+                .setConcurrentRequests(1)
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff())
+                .build();
+        processEngine.getRuntimeService().addEventListener(this,
+                                                           ActivitiEventType.VARIABLE_CREATED,
+                                                           ActivitiEventType.VARIABLE_UPDATED);
+        logger.info("Projecting the orders of " + Arrays.toString(processDefinitionKeys) + " into " + index);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (bulkProcessor != null) {
+            processEngine.getRuntimeService().removeEventListener(this);
+            bulkProcessor.awaitClose(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Whether reports are answered from the order facts index
+     */
+    public boolean isServingReports() {
+        return reports;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    /**
+     * The engine tenant of the given user, which the orders of the user's tenant are kept under, or
+     * {@link #NO_TENANT} if the user has no tenant
+     */
+    public String tenantOf(User user) {
+        return user != null && user.getTenantId() != null ? tenantPrefix + user.getTenantId() : NO_TENANT;
+    }
+
+    /**
+     * The tenant orders of the given engine tenant are kept under, {@link #NO_TENANT} if there is none
+     */
+    public static String tenantOf(String engineTenantId) {
+        return engineTenantId != null && !engineTenantId.isEmpty() ? engineTenantId : NO_TENANT;
+    }
+
+    /**
+     * Whether the orders of the given process definition are projected, other processes may well have variables of
+     * the same names
+     */
+    public boolean isProjected(ProcessDefinition processDefinition) {
+        return processDefinition != null && Arrays.asList(processDefinitionKeys).contains(processDefinition.getKey());
+    }
+
+    @Override
+    public void onEvent(ActivitiEvent event) {
+        if (!(event instanceof ActivitiVariableEvent)) {
+            return;
+        }
+        ActivitiVariableEvent variableEvent = (ActivitiVariableEvent) event;
+        if (variableEvent.getProcessInstanceId() == null
+                || !FIELDS_BY_VARIABLE.containsKey(variableEvent.getVariableName())) {
+            return;
+        }
+
+        ProcessDefinition processDefinition = processEngine.getRepositoryService()
+                .getProcessDefinition(variableEvent.getProcessDefinitionId());
+        if (!isProjected(processDefinition)) {
+            return;
+        }
+        UpdateRequest update = update(variableEvent, processDefinition.getKey(), processDefinition.getTenantId());
+
+        // Only send the update once the variable is committed
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext != null) {
+            commandContext.getTransactionContext().addTransactionListener(TransactionState.COMMITTED,
+                                                                          committed -> bulkProcessor.add(update));
+        } else {
+            bulkProcessor.add(update);
+        }
+    }
+
+    /**
+     * The update setting the field of the variable on the document of its order, creating the document if it is the
+     * first variable of the order
+     */
+    protected UpdateRequest update(ActivitiVariableEvent event, String processDefinitionKey, String tenantId) {
+        Map<String, Object> fields = Collections.singletonMap(FIELDS_BY_VARIABLE.get(event.getVariableName()),
+                                                              factValue(event.getVariableValue()));
+
+        Map<String, Object> order = new LinkedHashMap<>();
+        order.put(PROCESS_DEFINITION_KEY, processDefinitionKey);
+        order.put(FIELD_TENANT_ID, tenantOf(tenantId));
+        order.put(FIELD_PROCESS_INSTANCE_ID, event.getProcessInstanceId());
+        order.put(ReportParameters.DATE_FIELD, System.currentTimeMillis());
+        order.putAll(fields);
+
+        return new UpdateRequest(index, event.getProcessInstanceId())
+                .doc(fields)
+                .upsert(order)
+                .retryOnConflict(3);
+    }
+
+    /**
+     * The value of a variable as kept in the index, dates as epoch millis
+     */
+    protected static Object factValue(Object value) {
+        return value instanceof Date ? ((Date) value).getTime() : value;
+    }
+
+    /**
+     * Create the index with the mapping of the orders if it does not exist yet. If the cluster cannot be reached the
+     * index is left to be created with a dynamic mapping, which the date fields do not come out right in.
+     */
+    protected void createIndex() {
+        try {
+            if (!restHighLevelClient.indices().exists(new GetIndexRequest(index), RequestOptions.DEFAULT)) {
+                restHighLevelClient.indices().create(new CreateIndexRequest(index).mapping(mapping()),
+                                                     RequestOptions.DEFAULT);
+                logger.info("Created order facts index " + index);
+            }
+        } catch (IOException | ElasticsearchException e) {
+            logger.warn("Could not create order facts index " + index, e);
+        }
+    }
+
+    protected static XContentBuilder mapping() throws IOException {
+        return XContentFactory.jsonBuilder()
+                .startObject()
+                .startObject("properties")
+                .startObject(PROCESS_DEFINITION_KEY).field("type", "keyword").endObject()
+                .startObject(FIELD_TENANT_ID).field("type", "keyword").endObject()
+                .startObject(FIELD_PROCESS_INSTANCE_ID).field("type", "keyword").endObject()
+                .startObject(ReportParameters.DATE_FIELD).field("type", "date").endObject()
+                .startObject(FIELD_CUSTOMER).field("type", "keyword").endObject()
+                .startObject(FIELD_QUANTITY).field("type", "long").endObject()
+                .startObject(FIELD_DUE_DATE).field("type", "date").endObject()
+                .endObject()
+                .endObject();
+    }
+
+    @Override
+    public boolean isFailOnException() {
+        return false;
+    }
+
+    protected class BulkListener implements BulkProcessor.Listener {
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            if (response.hasFailures()) {
+                logger.warn("Could not project some orders into " + index + ": " + response.buildFailureMessage());
+            }
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            logger.warn("Could not project " + request.numberOfActions() + " order updates into " + index, failure);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Targets only the indices covering a date range, for installations which split the variables index by period.
+ *
+ * With a period configured, the variables of each period are expected in indices named after the tenant index, the
+ * separator and the period formatted with the period format, for example <code>activiti-variables-2019.11</code>.
+ * A search over a date range is then sent to the indices of the periods in the range only. Each period is targeted
+ * with a wildcard so that periods without an index are simply skipped.
+ */
+@Component
+public class PeriodIndices implements InitializingBean {
+
+    public static final String PERIOD_NONE = "none";
+
+    public static final String PERIOD_DAY = "day";
+
+    public static final String PERIOD_MONTH = "month";
+
+    public static final String PERIOD_YEAR = "year";
+
+    @Value("${custom.report.index.period:" + PERIOD_NONE + "}")
+    protected String period;
+
+    @Value("${custom.report.index.period-format:}")
+    protected String periodFormat;
+
+    @Value("${custom.report.index.period-separator:-}")
+    protected String separator;
+
+    @Value("${custom.report.index.max-periods:100}")
+    protected int maxPeriods;
+
+    protected DateTimeFormatter formatter;
+
+    protected ChronoUnit unit;
+
+    @Override
+    public void afterPropertiesSet() {
+        unit = null;
+        formatter = null;
+        if (PERIOD_DAY.equals(period)) {
+            unit = ChronoUnit.DAYS;
+            formatter = DateTimeFormatter.ofPattern(periodFormat.isEmpty() ? "yyyy.MM.dd" : periodFormat);
+        } else if (PERIOD_MONTH.equals(period)) {
+            unit = ChronoUnit.MONTHS;
+            formatter = DateTimeFormatter.ofPattern(periodFormat.isEmpty() ? "yyyy.MM" : periodFormat);
+        } else if (PERIOD_YEAR.equals(period)) {
+            unit = ChronoUnit.YEARS;
+            formatter = DateTimeFormatter.ofPattern(periodFormat.isEmpty() ? "yyyy" : periodFormat);
+        } else if (!PERIOD_NONE.equals(period)) {
+            throw new IllegalArgumentException("Unknown index period " + period);
+        }
+    }
+
+    /**
+     * The index expression to search for the given date range. This is the tenant index itself if the index is not
+     * split by period, the range is open, or it spans more periods than are worth listing.
+     */
+    public String indices(String index, ReportParameters parameters) {
+        if (unit == null || parameters.getFrom() == null || parameters.getTo() == null) {
+            return index;
+        }
+
+        LocalDate first = truncate(parameters.getFrom().atZone(ZoneOffset.UTC).toLocalDate());
+        // The end of the range is exclusive
+        LocalDate last = truncate(parameters.getTo().minusMillis(1).atZone(ZoneOffset.UTC).toLocalDate());
+        if (last.isBefore(first) || unit.between(first, last) >= maxPeriods) {
+            return index;
+        }
+
+        List<String> indices = new ArrayList<>();
+        for (LocalDate day = first; !day.isAfter(last); day = day.plus(1, unit)) {
+            indices.add(index + separator + formatter.format(day) + "*");
+        }
+        return String.join(",", indices);
+    }
+
+    /**
+     * Whether an index expression from {@link #indices(String, ReportParameters)} only targets the given tenant index
+     * or the indices of its periods
+     */
+    public boolean isOf(String indices, String index) {
+        if (indices == null || index == null) {
+            return false;
+        }
+        for (String target : indices.split(",")) {
+            if (!target.equals(index) && !target.startsWith(index + separator)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected LocalDate truncate(LocalDate day) {
+        if (unit == ChronoUnit.YEARS) {
+            return day.withDayOfYear(1);
+        } else if (unit == ChronoUnit.MONTHS) {
+            return day.withDayOfMonth(1);
+        }
+        return day;
+    }
+}
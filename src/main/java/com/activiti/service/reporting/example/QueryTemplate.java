@@ -0,0 +1,164 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The body of a search serialised once, with slots for the values which change from one report to the next.
+ *
+ * A template is compiled from a query built with a slot, see {@link #slot(String)}, in place of each string value
+ * which changes. Rendering it copies the bytes between the slots and writes the values into the slots as JSON
+ * strings, so no query objects are built or serialised for a report. The slots take the same syntax as the
+ * parameters of Elasticsearch search templates.
+ */
+public class QueryTemplate {
+
+    protected static final String SLOT_START = "\"{{";
+
+    protected static final String SLOT_END = "}}\"";
+
+    protected static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The serialised query between the slots, one more than there are slots
+     */
+    protected final byte[][] segments;
+
+    protected final String[] slots;
+
+    protected final String source;
+
+    protected QueryTemplate(byte[][] segments, String[] slots, String source) {
+        this.segments = segments;
+        this.slots = slots;
+        this.source = source;
+    }
+
+    /**
+     * The value to build a query with where a template should have the slot of the given name
+     */
+    public static String slot(String name) {
+        return "{{" + name + "}}";
+    }
+
+    public static QueryTemplate compile(SearchSourceBuilder query) {
+        return compile(Strings.toString(query));
+    }
+
+    /**
+     * Compile a serialised query, in which each slot is a JSON string of its own
+     */
+    public static QueryTemplate compile(String source) {
+        List<byte[]> segments = new ArrayList<>();
+        List<String> slots = new ArrayList<>();
+        int position = 0;
+        for (int start = source.indexOf(SLOT_START); start >= 0; start = source.indexOf(SLOT_START, position)) {
+            int end = source.indexOf(SLOT_END, start + SLOT_START.length());
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated slot at " + start + " of query template " + source);
+            }
+            segments.add(source.substring(position, start).getBytes(StandardCharsets.UTF_8));
+            slots.add(source.substring(start + SLOT_START.length(), end));
+            position = end + SLOT_END.length();
+        }
+        segments.add(source.substring(position).getBytes(StandardCharsets.UTF_8));
+        return new QueryTemplate(segments.toArray(new byte[segments.size()][]),
+                                 slots.toArray(new String[slots.size()]),
+                                 source);
+    }
+
+    /**
+     * The names of the slots, in the order they appear in the query. A slot may appear more than once.
+     */
+    public List<String> getSlots() {
+        List<String> names = new ArrayList<>();
+        Collections.addAll(names, slots);
+        return names;
+    }
+
+    /**
+     * The body of the search with the slots filled with the given values
+     *
+     * @throws IllegalArgumentException if there is no value for one of the slots
+     */
+    public byte[] render(Map<String, String> values) {
+        byte[][] encoded = new byte[slots.length][];
+        int length = 0;
+        for (int i = 0; i < slots.length; i++) {
+            String value = values.get(slots[i]);
+            if (value == null) {
+                throw new IllegalArgumentException("No value for slot " + slots[i] + " of query template");
+            }
+            encoded[i] = jsonString(value);
+            length += encoded[i].length;
+        }
+        for (byte[] segment : segments) {
+            length += segment.length;
+        }
+
+        byte[] body = new byte[length];
+        int position = 0;
+        for (int i = 0; i < segments.length; i++) {
+            System.arraycopy(segments[i], 0, body, position, segments[i].length);
+            position += segments[i].length;
+            if (i < encoded.length) {
+                System.arraycopy(encoded[i], 0, body, position, encoded[i].length);
+                position += encoded[i].length;
+            }
+        }
+        return body;
+    }
+
+    /**
+     * A value as a quoted JSON string in UTF-8
+     */
+    protected static byte[] jsonString(String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        int length = utf8.length + 2;
+        for (byte b : utf8) {
+            if (b == '"' || b == '\\') {
+                length++;
+            } else if (b >= 0 && b < 0x20) {
+                length += 5;
+            }
+        }
+
+        byte[] quoted = new byte[length];
+        int position = 0;
+        quoted[position++] = '"';
+        for (byte b : utf8) {
+            if (b == '"' || b == '\\') {
+                quoted[position++] = '\\';
+                quoted[position++] = b;
+            } else if (b >= 0 && b < 0x20) {
+                quoted[position++] = '\\';
+                quoted[position++] = 'u';
+                quoted[position++] = '0';
+                quoted[position++] = '0';
+                quoted[position++] = HEX[b >> 4];
+                quoted[position++] = HEX[b & 0xF];
+            } else {
+                quoted[position++] = b;
+            }
+        }
+        quoted[position] = '"';
+        return quoted;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Decides when a report may be generated, so that a burst of reports cannot saturate the analytics cluster and one
+ * tenant cannot crowd out the others.
+ *
+ * At most a fixed number of reports are generated at once, and at most a smaller number for each tenant, a tenant
+ * being the index its users report on. Reports beyond that wait in a queue of their tenant. Whenever a report
+ * completes, the tenants with waiting reports are served in turn, so a tenant with many waiting reports does not hold
+ * up a tenant with a single one. A report which finds the queue of its tenant full, or which has waited for longer
+ * than the queue timeout, is turned away with a {@link ReportBusyException} straight away rather than tying up a
+ * request thread.
+ *
+ * The time reports wait and the reports turned away are measured through {@link ReportMetrics}.
+ */
+@Component
+public class ReportAdmission {
+
+    @Value("${custom.report.admission.enabled:true}")
+    protected boolean enabled;
+
+    @Value("${custom.report.admission.max-concurrent:8}")
+    protected int maxConcurrent;
+
+    @Value("${custom.report.admission.max-concurrent-per-tenant:2}")
+    protected int maxConcurrentPerTenant;
+
+    @Value("${custom.report.admission.tenant-queue-size:20}")
+    protected int tenantQueueSize;
+
+    @Value("${custom.report.admission.queue-timeout:10000}")
+    protected long queueTimeoutMillis;
+
+    @Autowired
+    protected ReportMetrics reportMetrics;
+
+    /**
+     * The waiting reports of each tenant, with the tenant to be served next first
+     */
+    protected final LinkedHashMap<String, Deque<Ticket>> queues = new LinkedHashMap<>();
+
+    protected final Map<String, Integer> running = new HashMap<>();
+
+    protected int totalRunning;
+
+    /**
+     * Generate a report for a tenant once it is its turn
+     *
+     * @throws ReportBusyException if the report could not be admitted in time
+     */
+    public <T> T run(String generatorId, String tenant, Supplier<T> generation) {
+        if (!enabled) {
+            return generation.get();
+        }
+
+        Map<String, String> tags = ReportMetrics.tags(generatorId, null, tenant);
+        long start = System.nanoTime();
+        try {
+            acquire(tenant);
+        } catch (ReportBusyException e) {
+            reportMetrics.record(ReportMetrics.ADMISSION_REJECTED, tags, 1);
+            throw e;
+        }
+        reportMetrics.record(ReportMetrics.ADMISSION_QUEUE_TIME, tags, ReportMetrics.millisSince(start));
+
+        try {
+            return generation.get();
+        } finally {
+            release(tenant);
+        }
+    }
+
+    protected synchronized void acquire(String tenant) {
+        Ticket ticket = new Ticket();
+        queues.computeIfAbsent(tenant, key -> new ArrayDeque<>()).add(ticket);
+        dispatch();
+        if (!ticket.admitted && queues.get(tenant).size() > tenantQueueSize) {
+            withdraw(tenant, ticket);
+            throw new ReportBusyException("Too many reports waiting for " + tenant);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        try {
+            while (!ticket.admitted) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    throw new ReportBusyException("Report for " + tenant + " waited longer than "
+                                                          + queueTimeoutMillis + "ms");
+                }
+                wait(remainingMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ReportBusyException("Interrupted while waiting to generate report for " + tenant);
+        } finally {
+            if (!ticket.admitted) {
+                withdraw(tenant, ticket);
+            }
+        }
+    }
+
+    protected synchronized void release(String tenant) {
+        totalRunning--;
+        running.merge(tenant, -1, (count, decrement) -> count + decrement > 0 ? count + decrement : null);
+        dispatch();
+    }
+
+    /**
+     * Admit waiting reports while there is room, taking the tenants in turn
+     */
+    protected void dispatch() {
+        boolean admitted = false;
+        while (totalRunning < maxConcurrent) {
+            String next = null;
+            for (String tenant : queues.keySet()) {
+                if (maxConcurrentPerTenant <= 0 || running.getOrDefault(tenant, 0) < maxConcurrentPerTenant) {
+                    next = tenant;
+                    break;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+
+            // Move the tenant to the back of the line
+            Deque<Ticket> queue = queues.remove(next);
+            Ticket ticket = queue.poll();
+            if (!queue.isEmpty()) {
+                queues.put(next, queue);
+            }
+            totalRunning++;
+            running.merge(next, 1, Integer::sum);
+            ticket.admitted = true;
+            admitted = true;
+        }
+        if (admitted) {
+            notifyAll();
+        }
+    }
+
+    protected void withdraw(String tenant, Ticket ticket) {
+        Deque<Ticket> queue = queues.get(tenant);
+        if (queue != null && queue.remove(ticket) && queue.isEmpty()) {
+            queues.remove(tenant);
+        }
+    }
+
+    /**
+     * The number of reports waiting to be generated
+     */
+    public synchronized int getQueued() {
+        int queued = 0;
+        for (Deque<Ticket> queue : queues.values()) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    /**
+     * The number of reports being generated
+     */
+    public synchronized int getRunning() {
+        return totalRunning;
+    }
+
+    protected static class Ticket {
+
+        protected boolean admitted;
+    }
+}
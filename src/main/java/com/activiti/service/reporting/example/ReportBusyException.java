@@ -0,0 +1,17 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+/**
+ * Thrown when a report cannot be generated now because too many reports are already running or waiting
+ */
+public class ReportBusyException extends RuntimeException {
+
+    public ReportBusyException(String message) {
+        super(message);
+    }
+}
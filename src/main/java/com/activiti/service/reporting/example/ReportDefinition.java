@@ -0,0 +1,323 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A report described as JSON rather than in code: the process whose variables it reports on, and its charts. See
+ * <code>reports/fruit-orders.json</code> for an example.
+ *
+ * Each chart reads the variables with one name, puts them into buckets, optionally breaks each bucket down into a
+ * series, and shows a value for each bucket. Definitions are compiled by {@link ReportDefinitions}.
+ *
+ * A report reads the generic variables index by default, one document per variable. A report with the
+ * <code>orderFacts</code> source reads the index of {@link OrderFactsProjector} instead, one document per order, and
+ * the variable of each chart is the field of the order it reads.
+ */
+public class ReportDefinition {
+
+    public static final String CHART_PIE = "pie";
+
+    public static final String CHART_BAR = "bar";
+
+    public static final String CHART_MULTI_BAR = "multiBar";
+
+    public static final String BUCKETS_TERMS = "terms";
+
+    public static final String BUCKETS_DATE_HISTOGRAM = "dateHistogram";
+
+    public static final String VALUE_COUNT = "count";
+
+    public static final String VALUE_SUM = "sum";
+
+    public static final String SOURCE_VARIABLES = "variables";
+
+    public static final String SOURCE_ORDER_FACTS = "orderFacts";
+
+    protected String id;
+
+    protected String name;
+
+    protected String processDefinitionKey;
+
+    /**
+     * One of <code>variables</code> or <code>orderFacts</code>
+     */
+    protected String source = SOURCE_VARIABLES;
+
+    protected List<ChartDefinition> charts = new ArrayList<>();
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getProcessDefinitionKey() {
+        return processDefinitionKey;
+    }
+
+    public void setProcessDefinitionKey(String processDefinitionKey) {
+        this.processDefinitionKey = processDefinitionKey;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public List<ChartDefinition> getCharts() {
+        return charts;
+    }
+
+    public void setCharts(List<ChartDefinition> charts) {
+        this.charts = charts;
+    }
+
+    public static class ChartDefinition {
+
+        protected String id;
+
+        /**
+         * One of <code>pie</code>, <code>bar</code> or <code>multiBar</code>
+         */
+        protected String type;
+
+        protected String title;
+
+        protected String description;
+
+        protected String xAxisType;
+
+        protected String yAxisType;
+
+        /**
+         * Name of the process variable the chart reads, or of the field of the order for the <code>orderFacts</code>
+         * source
+         */
+        protected String variable;
+
+        protected BucketsDefinition buckets;
+
+        /**
+         * Breaks each bucket down into a series, for <code>multiBar</code> charts
+         */
+        protected BucketsDefinition series;
+
+        protected ValueDefinition value = new ValueDefinition();
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public void setTitle(String title) {
+            this.title = title;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public void setDescription(String description) {
+            this.description = description;
+        }
+
+        public String getxAxisType() {
+            return xAxisType;
+        }
+
+        public void setxAxisType(String xAxisType) {
+            this.xAxisType = xAxisType;
+        }
+
+        public String getyAxisType() {
+            return yAxisType;
+        }
+
+        public void setyAxisType(String yAxisType) {
+            this.yAxisType = yAxisType;
+        }
+
+        public String getVariable() {
+            return variable;
+        }
+
+        public void setVariable(String variable) {
+            this.variable = variable;
+        }
+
+        public BucketsDefinition getBuckets() {
+            return buckets;
+        }
+
+        public void setBuckets(BucketsDefinition buckets) {
+            this.buckets = buckets;
+        }
+
+        public BucketsDefinition getSeries() {
+            return series;
+        }
+
+        public void setSeries(BucketsDefinition series) {
+            this.series = series;
+        }
+
+        public ValueDefinition getValue() {
+            return value;
+        }
+
+        public void setValue(ValueDefinition value) {
+            this.value = value;
+        }
+    }
+
+    public static class BucketsDefinition {
+
+        /**
+         * Name of the aggregation, which the chart converters look up in the response
+         */
+        protected String name;
+
+        /**
+         * One of <code>terms</code> or <code>dateHistogram</code>
+         */
+        protected String type;
+
+        protected String field;
+
+        /**
+         * Number of terms, for <code>terms</code> buckets
+         */
+        protected Integer size;
+
+        /**
+         * Calendar interval of <code>dateHistogram</code> buckets: <code>day</code>, <code>week</code>,
+         * <code>month</code>, <code>quarter</code> or <code>year</code>
+         */
+        protected String interval;
+
+        protected String format;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public void setField(String field) {
+            this.field = field;
+        }
+
+        public Integer getSize() {
+            return size;
+        }
+
+        public void setSize(Integer size) {
+            this.size = size;
+        }
+
+        public String getInterval() {
+            return interval;
+        }
+
+        public void setInterval(String interval) {
+            this.interval = interval;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public void setFormat(String format) {
+            this.format = format;
+        }
+    }
+
+    public static class ValueDefinition {
+
+        /**
+         * One of <code>count</code>, the number of variables in the bucket, or <code>sum</code>
+         */
+        protected String type = VALUE_COUNT;
+
+        /**
+         * Name of the aggregation computing the value, for <code>sum</code>
+         */
+        protected String name;
+
+        protected String field;
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public void setField(String field) {
+            this.field = field;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The reports described by the {@link ReportDefinition} files on the classpath, compiled once at startup.
+ *
+ * Compiling checks each definition and builds the aggregations of its charts, so that a mistake in a definition stops
+ * the application from starting rather than failing the report later, and no aggregations are built for each request.
+ */
+@Component
+public class ReportDefinitions implements InitializingBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportDefinitions.class);
+
+    public static final String DEFAULT_LOCATIONS = "classpath*:reports/*.json";
+
+    @Value("${custom.report.definitions:" + DEFAULT_LOCATIONS + "}")
+    protected String locations;
+
+    protected final ObjectMapper objectMapper = new ObjectMapper();
+
+    protected Map<String, CompiledReport> reports = Collections.emptyMap();
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        Map<String, CompiledReport> compiled = new LinkedHashMap<>();
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources(locations)) {
+            ReportDefinition definition;
+            try (InputStream in = resource.getInputStream()) {
+                definition = objectMapper.readValue(in, ReportDefinition.class);
+            }
+            CompiledReport report;
+            try {
+                report = compile(definition);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid report definition " + resource + ": " + e.getMessage(), e);
+            }
+            if (compiled.put(report.getId(), report) != null) {
+                throw new IllegalArgumentException("Report " + report.getId() + " is defined more than once");
+            }
+            logger.info("Compiled report " + report.getId() + " from " + resource);
+        }
+        reports = Collections.unmodifiableMap(compiled);
+    }
+
+    /**
+     * Load and compile the definitions at the given locations, outside of a Spring context
+     */
+    public static ReportDefinitions load(String locations) throws IOException {
+        ReportDefinitions definitions = new ReportDefinitions();
+        definitions.locations = locations;
+        definitions.afterPropertiesSet();
+        return definitions;
+    }
+
+    /**
+     * Get a compiled report by its id
+     *
+     * @throws IllegalArgumentException if there is no definition of the report
+     */
+    public CompiledReport get(String reportId) {
+        CompiledReport report = reports.get(reportId);
+        if (report == null) {
+            throw new IllegalArgumentException("No definition of report " + reportId + " in " + locations);
+        }
+        return report;
+    }
+
+    public Map<String, CompiledReport> getReports() {
+        return reports;
+    }
+
+    /**
+     * Check a report definition and build the aggregations of its charts
+     *
+     * @throws IllegalArgumentException if the definition is incomplete or uses an unknown type
+     */
+    public static CompiledReport compile(ReportDefinition definition) {
+        require(definition.getId(), "id");
+        require(definition.getProcessDefinitionKey(), "processDefinitionKey");
+        if (definition.getCharts() == null || definition.getCharts().isEmpty()) {
+            throw new IllegalArgumentException("Report " + definition.getId() + " has no charts");
+        }
+        String source = definition.getSource() != null ? definition.getSource() : ReportDefinition.SOURCE_VARIABLES;
+        if (!ReportDefinition.SOURCE_VARIABLES.equals(source) && !ReportDefinition.SOURCE_ORDER_FACTS.equals(source)) {
+            throw new IllegalArgumentException("Unknown source " + source + " of report " + definition.getId());
+        }
+
+        List<CompiledReport.CompiledChart> charts = new ArrayList<>();
+        for (ReportDefinition.ChartDefinition chart : definition.getCharts()) {
+            charts.add(new CompiledReport.CompiledChart(chart, compileAggregation(chart), source));
+        }
+        return new CompiledReport(definition.getId(),
+                                  definition.getName(),
+                                  definition.getProcessDefinitionKey(),
+                                  charts);
+    }
+
+    protected static AggregationBuilder compileAggregation(ReportDefinition.ChartDefinition chart) {
+        require(chart.getId(), "chart id");
+        require(chart.getVariable(), "variable of chart " + chart.getId());
+        if (chart.getBuckets() == null) {
+            throw new IllegalArgumentException("Chart " + chart.getId() + " has no buckets");
+        }
+        String chartType = chart.getType();
+        if (!ReportDefinition.CHART_PIE.equals(chartType)
+                && !ReportDefinition.CHART_BAR.equals(chartType)
+                && !ReportDefinition.CHART_MULTI_BAR.equals(chartType)) {
+            throw new IllegalArgumentException("Unknown type " + chartType + " of chart " + chart.getId());
+        }
+        if (ReportDefinition.CHART_BAR.equals(chartType) || ReportDefinition.CHART_MULTI_BAR.equals(chartType)) {
+            if (!ReportDefinition.BUCKETS_DATE_HISTOGRAM.equals(chart.getBuckets().getType())) {
+                throw new IllegalArgumentException("Chart " + chart.getId() + " needs dateHistogram buckets");
+            }
+        }
+
+        AggregationBuilder aggregation = compileBuckets(chart.getBuckets());
+        if (ReportDefinition.CHART_MULTI_BAR.equals(chartType)) {
+            if (chart.getSeries() == null) {
+                throw new IllegalArgumentException("Chart " + chart.getId() + " has no series");
+            }
+            aggregation.subAggregation(compileBuckets(chart.getSeries()));
+        }
+
+        // Charts without a value count their buckets, the definition itself is left as it was read
+        ReportDefinition.ValueDefinition value = chart.getValue() != null
+                ? chart.getValue()
+                : new ReportDefinition.ValueDefinition();
+        if (ReportDefinition.VALUE_SUM.equals(value.getType())) {
+            if (ReportDefinition.CHART_MULTI_BAR.equals(chartType)) {
+                throw new IllegalArgumentException("Chart " + chart.getId() + " can only count its series");
+            }
+            require(value.getName(), "name of the value of chart " + chart.getId());
+            require(value.getField(), "field of the value of chart " + chart.getId());
+            aggregation.subAggregation(AggregationBuilders.sum(value.getName()).field(value.getField()));
+        } else if (!ReportDefinition.VALUE_COUNT.equals(value.getType())) {
+            throw new IllegalArgumentException("Unknown value " + value.getType() + " of chart " + chart.getId());
+        }
+        return aggregation;
+    }
+
+    protected static AggregationBuilder compileBuckets(ReportDefinition.BucketsDefinition buckets) {
+        require(buckets.getName(), "name of buckets");
+        require(buckets.getField(), "field of buckets " + buckets.getName());
+
+        if (ReportDefinition.BUCKETS_TERMS.equals(buckets.getType())) {
+            TermsAggregationBuilder terms = AggregationBuilders.terms(buckets.getName()).field(buckets.getField());
+            if (buckets.getSize() != null) {
+                terms.size(buckets.getSize());
+            }
+            return terms;
+        }
+        if (ReportDefinition.BUCKETS_DATE_HISTOGRAM.equals(buckets.getType())) {
+            DateHistogramAggregationBuilder histogram = AggregationBuilders.dateHistogram(buckets.getName())
+                    .field(buckets.getField())
+                    .calendarInterval(calendarInterval(buckets));
+            if (buckets.getFormat() != null) {
+                histogram.format(buckets.getFormat());
+            }
+            return histogram;
+        }
+        throw new IllegalArgumentException("Unknown type " + buckets.getType() + " of buckets " + buckets.getName());
+    }
+
+    protected static DateHistogramInterval calendarInterval(ReportDefinition.BucketsDefinition buckets) {
+        String interval = buckets.getInterval() != null ? buckets.getInterval() : "month";
+        switch (interval) {
+            case "day":
+                return DateHistogramInterval.DAY;
+            case "week":
+                return DateHistogramInterval.WEEK;
+            case "month":
+                return DateHistogramInterval.MONTH;
+            case "quarter":
+                return DateHistogramInterval.QUARTER;
+            case "year":
+                return DateHistogramInterval.YEAR;
+            default:
+                throw new IllegalArgumentException("Unknown interval " + interval + " of buckets " + buckets.getName());
+        }
+    }
+
+    protected static void require(String value, String what) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing " + what);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.service.reporting.searchClient.AnalyticsClient;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.SingleBucketAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.DateHistogramValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.activiti.service.reporting.eventhandler.EventFields.PROCESS_INSTANCE_ID;
+
+/**
+ * Exports the numbers behind the fruit orders report as rows of CSV or NDJSON, written to a stream as they are
+ * fetched: the orders of each customer, the orders and quantities of each month, or one row per order.
+ *
+ * Rows are fetched a page at a time with a <code>composite</code> aggregation, one bucket per row, and each page is
+ * written and flushed before the next one is asked for. A slow reader therefore holds up the export rather than the
+ * rows piling up in memory, and memory use is bounded by the page size however many orders there are. Orders are put
+ * together from their variables by the cluster, or read from the order facts index when reports are served from it,
+ * see {@link OrderFactsProjector}.
+ */
+@Component
+public class ReportExporter {
+
+    public static final String DATASET_CUSTOMERS = "customers";
+
+    public static final String DATASET_MONTHS = "months";
+
+    public static final String DATASET_ORDERS = "orders";
+
+    protected static final List<String> DATASETS = Arrays.asList(DATASET_CUSTOMERS, DATASET_MONTHS, DATASET_ORDERS);
+
+    public static final String FORMAT_CSV = "csv";
+
+    public static final String FORMAT_NDJSON = "ndjson";
+
+    protected static final String COLUMN_CUSTOMER = "customer";
+
+    protected static final String COLUMN_MONTH = "month";
+
+    protected static final String COLUMN_ORDERS = "orders";
+
+    protected static final String COLUMN_QUANTITY = "quantity";
+
+    protected static final String COLUMN_DUE_DATE = "dueDate";
+
+    protected static final String COLUMN_CREATE_TIME = "createTime";
+
+    protected static final String COLUMN_PROCESS_INSTANCE_ID = "processInstanceId";
+
+    /**
+     * Name of the aggregation holding the value of a variable within the filter selecting it
+     */
+    protected static final String VARIABLE_VALUE = "value";
+
+    @Value("${custom.report.export.page-size:1000}")
+    protected int pageSize;
+
+    @Autowired
+    protected ReportSearchExecutor searchExecutor;
+
+    @Autowired
+    protected PeriodIndices periodIndices;
+
+    @Autowired
+    protected OrderFactsProjector orderFacts;
+
+    /**
+     * The content type of an export in the given format
+     *
+     * @throws IllegalArgumentException if the format is not known
+     */
+    public static String contentType(String format) {
+        if (FORMAT_CSV.equals(format)) {
+            return "text/csv;charset=UTF-8";
+        } else if (FORMAT_NDJSON.equals(format)) {
+            return "application/x-ndjson";
+        }
+        throw new IllegalArgumentException("Unknown export format " + format);
+    }
+
+    /**
+     * Check that a dataset can be exported in the given format, before anything is written to the response
+     *
+     * @throws IllegalArgumentException if the dataset or format is not known
+     */
+    public static void validate(String dataset, String format) {
+        contentType(format);
+        if (!DATASETS.contains(dataset)) {
+            throw new IllegalArgumentException("Unknown export dataset " + dataset);
+        }
+    }
+
+    /**
+     * Write the rows of a dataset for the given parameters to the stream, which is flushed after each page but not
+     * closed. The customer parameter only narrows down the customers.
+     *
+     * @param index the variables index of the user
+     * @return the number of rows written
+     * @throws IllegalArgumentException if the dataset or format is not known, before anything is written
+     * @throws IOException if a page could not be fetched or written, after the rows before it have been written
+     */
+    public long export(AnalyticsClient analyticsClient,
+                       String index,
+                       ReportParameters parameters,
+                       String dataset,
+                       String format,
+                       OutputStream out) throws IOException {
+        validate(dataset, format);
+        boolean orderFactsSource = orderFacts.isServingReports();
+        Export export = export(dataset, parameters, orderFactsSource);
+        String searchIndex = orderFactsSource ? orderFacts.getIndex() : periodIndices.indices(index, parameters);
+
+        RowWriter writer = FORMAT_CSV.equals(format)
+                ? new CsvRowWriter(out, export.columns)
+                : new NdjsonRowWriter(out, export.columns);
+        long rows = 0;
+        Map<String, Object> afterKey = null;
+        do {
+            CompositeAggregation page = fetchPage(analyticsClient, searchIndex, dataset, export, afterKey);
+            if (page == null) {
+                throw new IOException("Could not fetch the " + dataset + " to export after " + afterKey);
+            }
+            for (CompositeAggregation.Bucket bucket : page.getBuckets()) {
+                writer.write(export.row(bucket));
+                rows++;
+            }
+            writer.flush();
+            afterKey = page.getBuckets().size() < pageSize ? null : page.afterKey();
+        } while (afterKey != null);
+        return rows;
+    }
+
+    protected CompositeAggregation fetchPage(AnalyticsClient analyticsClient,
+                                             String index,
+                                             String dataset,
+                                             Export export,
+                                             Map<String, Object> afterKey) {
+        CompositeAggregationBuilder composite = new CompositeAggregationBuilder(dataset, export.sources).size(pageSize);
+        for (AggregationBuilder aggregation : export.aggregations) {
+            composite.subAggregation(aggregation);
+        }
+        if (afterKey != null) {
+            composite.aggregateAfter(afterKey);
+        }
+        SearchResponse response = searchExecutor.search(analyticsClient,
+                                                        CustomVariablesReportGenerator.ID,
+                                                        dataset,
+                                                        index,
+                                                        ReportSearchExecutor.aggregationsOnly()
+                                                                .query(export.query)
+                                                                .aggregation(composite));
+        return response != null && response.getAggregations() != null
+                ? (CompositeAggregation) response.getAggregations().get(dataset)
+                : null;
+    }
+
+    /**
+     * What to fetch for a dataset and how to read its rows
+     *
+     * @throws IllegalArgumentException if the dataset is not known
+     */
+    protected Export export(String dataset, ReportParameters parameters, boolean orderFactsSource) {
+        if (DATASET_CUSTOMERS.equals(dataset)) {
+            return new Export(Arrays.asList(COLUMN_CUSTOMER, COLUMN_ORDERS),
+                              orderFactsSource ? parameters.orderFactsFilter(true) : parameters.customerFilter(),
+                              Collections.<CompositeValuesSourceBuilder<?>>singletonList(
+                                      new TermsValuesSourceBuilder(COLUMN_CUSTOMER)
+                                              .field(orderFactsSource ? OrderFactsProjector.FIELD_CUSTOMER : "stringValue.keyword")),
+                              Collections.<AggregationBuilder>emptyList());
+        }
+        if (DATASET_MONTHS.equals(dataset)) {
+            return new Export(Arrays.asList(COLUMN_MONTH, COLUMN_ORDERS, COLUMN_QUANTITY),
+                              orderFactsSource ? parameters.orderFactsFilter(false) : parameters.filter("quantity"),
+                              Collections.<CompositeValuesSourceBuilder<?>>singletonList(
+                                      new DateHistogramValuesSourceBuilder(COLUMN_MONTH)
+                                              .field(ReportParameters.DATE_FIELD)
+                                              .calendarInterval(DateHistogramInterval.MONTH)
+                                              .format("yyyy-MM")),
+                              Collections.<AggregationBuilder>singletonList(
+                                      AggregationBuilders.sum(COLUMN_QUANTITY)
+                                              .field(orderFactsSource ? OrderFactsProjector.FIELD_QUANTITY : "longValue")));
+        }
+        if (DATASET_ORDERS.equals(dataset)) {
+            List<AggregationBuilder> aggregations = new ArrayList<>();
+            aggregations.add(AggregationBuilders.min(COLUMN_CREATE_TIME).field(ReportParameters.DATE_FIELD));
+            if (orderFactsSource) {
+                aggregations.add(AggregationBuilders.terms(COLUMN_CUSTOMER).field(OrderFactsProjector.FIELD_CUSTOMER).size(1));
+                aggregations.add(AggregationBuilders.sum(COLUMN_QUANTITY).field(OrderFactsProjector.FIELD_QUANTITY));
+                aggregations.add(AggregationBuilders.max(COLUMN_DUE_DATE).field(OrderFactsProjector.FIELD_DUE_DATE));
+            } else {
+                aggregations.add(variable(COLUMN_CUSTOMER, ReportParameters.CUSTOMER_VARIABLE,
+                                          AggregationBuilders.terms(VARIABLE_VALUE).field("stringValue.keyword").size(1)));
+                aggregations.add(variable(COLUMN_QUANTITY, "quantity",
+                                          AggregationBuilders.sum(VARIABLE_VALUE).field("longValue")));
+                aggregations.add(variable(COLUMN_DUE_DATE, "duedate",
+                                          AggregationBuilders.max(VARIABLE_VALUE).field("dateValue")));
+            }
+            return new Export(Arrays.asList(COLUMN_PROCESS_INSTANCE_ID, COLUMN_CREATE_TIME, COLUMN_CUSTOMER,
+                                            COLUMN_QUANTITY, COLUMN_DUE_DATE),
+                              orderFactsSource
+                                      ? parameters.orderFactsFilter(false)
+                                      : parameters.variablesFilter(ReportParameters.CUSTOMER_VARIABLE, "quantity", "duedate"),
+                              Collections.<CompositeValuesSourceBuilder<?>>singletonList(
+                                      new TermsValuesSourceBuilder(COLUMN_PROCESS_INSTANCE_ID)
+                                              .field(orderFactsSource
+                                                             ? OrderFactsProjector.FIELD_PROCESS_INSTANCE_ID
+                                                             : PROCESS_INSTANCE_ID)),
+                              aggregations);
+        }
+        throw new IllegalArgumentException("Unknown export dataset " + dataset);
+    }
+
+    /**
+     * The value of one variable of an order, among the variables of the order
+     */
+    protected static AggregationBuilder variable(String name, String variableName, AggregationBuilder value) {
+        return AggregationBuilders.filter(name, QueryBuilders.termQuery("name", variableName)).subAggregation(value);
+    }
+
+    protected static class Export {
+
+        protected final List<String> columns;
+
+        protected final QueryBuilder query;
+
+        protected final List<CompositeValuesSourceBuilder<?>> sources;
+
+        protected final List<AggregationBuilder> aggregations;
+
+        protected Export(List<String> columns,
+                         QueryBuilder query,
+                         List<CompositeValuesSourceBuilder<?>> sources,
+                         List<AggregationBuilder> aggregations) {
+            this.columns = columns;
+            this.query = query;
+            this.sources = sources;
+            this.aggregations = aggregations;
+        }
+
+        /**
+         * The values of the columns for a bucket, read from its key, its doc count or its aggregations
+         */
+        protected List<Object> row(CompositeAggregation.Bucket bucket) {
+            List<Object> row = new ArrayList<>(columns.size());
+            for (String column : columns) {
+                if (bucket.getKey().containsKey(column)) {
+                    row.add(bucket.getKey().get(column));
+                } else if (COLUMN_ORDERS.equals(column)) {
+                    row.add(bucket.getDocCount());
+                } else {
+                    row.add(value(bucket.getAggregations(), column));
+                }
+            }
+            return row;
+        }
+
+        /**
+         * The value of an aggregation, or <code>null</code> if it did not find any. Dates are given as ISO instants.
+         */
+        protected static Object value(Aggregations aggregations, String name) {
+            Aggregation aggregation = aggregations.get(name);
+            if (aggregation instanceof SingleBucketAggregation) {
+                SingleBucketAggregation variable = (SingleBucketAggregation) aggregation;
+                if (variable.getDocCount() == 0) {
+                    return null;
+                }
+                aggregation = variable.getAggregations().get(VARIABLE_VALUE);
+            }
+            if (aggregation instanceof Terms) {
+                List<? extends Terms.Bucket> buckets = ((Terms) aggregation).getBuckets();
+                return buckets.isEmpty() ? null : buckets.get(0).getKeyAsString();
+            }
+            if (aggregation instanceof NumericMetricsAggregation.SingleValue) {
+                double value = ((NumericMetricsAggregation.SingleValue) aggregation).value();
+                if (Double.isInfinite(value) || Double.isNaN(value)) {
+                    return null;
+                }
+                return COLUMN_QUANTITY.equals(name)
+                        ? (Object) (long) value
+                        : Instant.ofEpochMilli((long) value).toString();
+            }
+            return null;
+        }
+    }
+
+    protected interface RowWriter {
+
+        void write(List<Object> row) throws IOException;
+
+        void flush() throws IOException;
+    }
+
+    /**
+     * Writes a header with the columns and then a line per row, quoting the values that need it as in RFC 4180
+     */
+    protected static class CsvRowWriter implements RowWriter {
+
+        protected final Writer writer;
+
+        protected CsvRowWriter(OutputStream out, List<String> columns) throws IOException {
+            this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            write(new ArrayList<Object>(columns));
+        }
+
+        @Override
+        public void write(List<Object> row) throws IOException {
+            for (int i = 0; i < row.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                Object value = row.get(i);
+                if (value != null) {
+                    writer.write(quote(value.toString()));
+                }
+            }
+            writer.write('\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        protected static String quote(String value) {
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                return value;
+            }
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+    }
+
+    /**
+     * Writes a JSON object per row on a line of its own, keyed by the columns
+     */
+    protected static class NdjsonRowWriter implements RowWriter {
+
+        protected static final JsonFactory JSON_FACTORY = new JsonFactory()
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .setRootValueSeparator(null);
+
+        protected final JsonGenerator generator;
+
+        protected final List<String> columns;
+
+        protected NdjsonRowWriter(OutputStream out, List<String> columns) throws IOException {
+            this.generator = JSON_FACTORY.createGenerator(out);
+            this.columns = columns;
+        }
+
+        @Override
+        public void write(List<Object> row) throws IOException {
+            generator.writeStartObject();
+            for (int i = 0; i < columns.size(); i++) {
+                generator.writeObjectField(columns.get(i), row.get(i));
+            }
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            generator.flush();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.reporting.ReportDataRepresentation;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A report being generated in the background by {@link ReportJobs}, with the progress of each of its charts.
+ *
+ * Callers either poll the job by its id, or register on {@link #getResult()} to be notified once the report is done.
+ */
+public class ReportJob {
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    public enum ChartStatus {
+        PENDING, DONE, FAILED
+    }
+
+    protected final String id;
+
+    protected final String generatorId;
+
+    protected final ReportResultCache.Key key;
+
+    protected final long submittedAt = System.currentTimeMillis();
+
+    protected volatile long completedAt;
+
+    protected volatile Status status = Status.QUEUED;
+
+    protected final Map<String, ChartStatus> charts = new LinkedHashMap<>();
+
+    protected final CompletableFuture<ReportDataRepresentation> result = new CompletableFuture<>();
+
+    protected volatile boolean delivered;
+
+    public ReportJob(String id, String generatorId, ReportResultCache.Key key) {
+        this.id = id;
+        this.generatorId = generatorId;
+        this.key = key;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getGeneratorId() {
+        return generatorId;
+    }
+
+    public ReportResultCache.Key getKey() {
+        return key;
+    }
+
+    public long getSubmittedAt() {
+        return submittedAt;
+    }
+
+    /**
+     * Time the job finished, or <code>0</code> if it is still queued or running
+     */
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isFinished() {
+        return status == Status.DONE || status == Status.FAILED;
+    }
+
+    /**
+     * The charts of the report with their progress, in the order of the report
+     */
+    public synchronized Map<String, ChartStatus> getCharts() {
+        return new LinkedHashMap<>(charts);
+    }
+
+    public synchronized int getChartsCompleted() {
+        int completed = 0;
+        for (ChartStatus chartStatus : charts.values()) {
+            if (chartStatus != ChartStatus.PENDING) {
+                completed++;
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * The future of the report, completed once the job is done, or completed exceptionally if it failed
+     */
+    public CompletableFuture<ReportDataRepresentation> getResult() {
+        return result;
+    }
+
+    /**
+     * The report, or <code>null</code> if the job is not done
+     */
+    public ReportDataRepresentation getReport() {
+        return status == Status.DONE ? result.getNow(null) : null;
+    }
+
+    /**
+     * Wait for the job to finish
+     *
+     * @return whether it finished within the given time
+     */
+    public boolean await(long timeoutMillis) {
+        try {
+            result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // Failed, which also finishes the job
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the report of the finished job has been handed to a user of the report
+     */
+    public boolean isDelivered() {
+        return delivered;
+    }
+
+    public void markDelivered() {
+        delivered = true;
+    }
+
+    /**
+     * Record that generating the given charts has started
+     */
+    public synchronized void chartsStarted(Collection<String> chartNames) {
+        status = Status.RUNNING;
+        for (String chart : chartNames) {
+            charts.putIfAbsent(chart, ChartStatus.PENDING);
+        }
+    }
+
+    /**
+     * Record that the search of a chart came back, before the chart is converted. Charts already completed are kept
+     * as they are, as the search of a chart may come back after the report has given up waiting for it.
+     */
+    public synchronized void chartSearched(String chart, boolean succeeded) {
+        if (charts.get(chart) == ChartStatus.PENDING) {
+            charts.put(chart, succeeded ? ChartStatus.DONE : ChartStatus.FAILED);
+        }
+    }
+
+    public synchronized void chartCompleted(String chart, boolean succeeded) {
+        charts.put(chart, succeeded ? ChartStatus.DONE : ChartStatus.FAILED);
+    }
+
+    protected void started() {
+        status = Status.RUNNING;
+    }
+
+    protected void complete(ReportDataRepresentation report) {
+        completedAt = System.currentTimeMillis();
+        status = Status.DONE;
+        result.complete(report);
+    }
+
+    protected void fail(Throwable error) {
+        completedAt = System.currentTimeMillis();
+        status = Status.FAILED;
+        result.completeExceptionally(error);
+    }
+
+    @Override
+    public String toString() {
+        return id + " " + generatorId + " " + status;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.reporting.ReportDataRepresentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Generates reports in the background, so that a report taking longer than a request may take keeps going and is
+ * picked up by a later request.
+ *
+ * Submitting a report hands back a {@link ReportJob} straight away, which can be polled by its id or waited on. Jobs
+ * run on a bounded pool of their own; when its queue is full further reports are turned away as busy. While a job for
+ * a report is running, or its report has not yet been picked up, submitting the same report hands back that job
+ * instead of starting another one.
+ *
+ * Finished jobs are kept for the result time to live, and at most the maximum number of results are kept, the oldest
+ * being dropped first.
+ */
+@Component
+public class ReportJobs implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportJobs.class);
+
+    @Value("${custom.report.jobs.enabled:false}")
+    protected boolean enabled;
+
+    @Value("${custom.report.jobs.threads:4}")
+    protected int threads;
+
+    @Value("${custom.report.jobs.queue-size:50}")
+    protected int queueSize;
+
+    @Value("${custom.report.jobs.max-results:100}")
+    protected int maxResults;
+
+    @Value("${custom.report.jobs.result-ttl:600000}")
+    protected long resultTtlMillis;
+
+    @Value("${custom.report.jobs.wait:2000}")
+    protected long waitMillis;
+
+    protected ThreadPoolExecutor executor;
+
+    /**
+     * All jobs by id, in the order they were submitted
+     */
+    protected final Map<String, ReportJob> jobs = new LinkedHashMap<>();
+
+    protected final Map<ReportResultCache.Key, ReportJob> latestJobs = new HashMap<>();
+
+    @Override
+    public void afterPropertiesSet() {
+        executor = new ThreadPoolExecutor(threads,
+                                          threads,
+                                          60L,
+                                          TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<Runnable>(queueSize),
+                                          new CustomizableThreadFactory("report-job-"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Time in milliseconds a request waits for a job before handing back the progress of the report instead
+     */
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+
+    /**
+     * Start generating a report in the background, or get the job already doing so
+     *
+     * @param generation generates the report, reporting the progress of its charts to the given job
+     * @throws ReportBusyException if there are too many jobs waiting
+     */
+    public synchronized ReportJob submit(String generatorId,
+                                         ReportResultCache.Key key,
+                                         Function<ReportJob, ReportDataRepresentation> generation) {
+        expire();
+        ReportJob job = latestJobs.get(key);
+        if (job != null && (!job.isFinished() || !job.isDelivered())) {
+            return job;
+        }
+
+        ReportJob newJob = new ReportJob(UUID.randomUUID().toString(), generatorId, key);
+        try {
+            executor.execute(() -> run(newJob, generation));
+        } catch (RejectedExecutionException e) {
+            throw new ReportBusyException("Too many report jobs waiting");
+        }
+        jobs.put(newJob.getId(), newJob);
+        latestJobs.put(key, newJob);
+        return newJob;
+    }
+
+    /**
+     * Get a job by its id, or <code>null</code> if there is no such job or its result has expired
+     */
+    public synchronized ReportJob get(String jobId) {
+        expire();
+        return jobs.get(jobId);
+    }
+
+    /**
+     * The number of jobs queued, running, or finished and kept
+     */
+    public synchronized int size() {
+        expire();
+        return jobs.size();
+    }
+
+    protected void run(ReportJob job, Function<ReportJob, ReportDataRepresentation> generation) {
+        job.started();
+        try {
+            job.complete(generation.apply(job));
+        } catch (RuntimeException e) {
+            logger.error("Report job " + job + " failed", e);
+            job.fail(e);
+        }
+        synchronized (this) {
+            expire();
+        }
+    }
+
+    /**
+     * Drop finished jobs whose result has expired, and the oldest finished jobs beyond the maximum number of results
+     */
+    protected void expire() {
+        long now = System.currentTimeMillis();
+        int finished = 0;
+        for (ReportJob job : jobs.values()) {
+            if (job.isFinished()) {
+                finished++;
+            }
+        }
+
+        for (Iterator<ReportJob> iterator = jobs.values().iterator(); iterator.hasNext(); ) {
+            ReportJob job = iterator.next();
+            if (job.isFinished() && (finished > maxResults || now - job.getCompletedAt() > resultTtlMillis)) {
+                iterator.remove();
+                latestJobs.remove(job.getKey(), job);
+                finished--;
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes the measurements of report generation and hands them to all {@link ReportMetricsRegistry} beans.
+ *
+ * Searches are measured by their round trip time, the time reported by Elasticsearch itself, the size of the response
+ * where it goes through the low level client, failures, responses which timed out or missed shards, and searches
+ * refused while the circuit breaker is open. Chart conversions are measured by their time and the number of buckets
+ * converted. All of them are tagged with the generator, the chart (or the charts sharing a search) and the index of
+ * the tenant. Reports which take longer than the slow report threshold are logged with a breakdown of their time.
+ * Reports waiting for their turn are measured by the time they waited, and by the reports turned away as busy.
+ */
+@Component
+public class ReportMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportMetrics.class);
+
+    public static final String SEARCH_ROUND_TRIP = "report.search.round-trip";
+
+    public static final String SEARCH_TOOK = "report.search.took";
+
+    public static final String SEARCH_RESPONSE_BYTES = "report.search.response-bytes";
+
+    public static final String SEARCH_ERRORS = "report.search.errors";
+
+    public static final String SEARCH_INCOMPLETE = "report.search.incomplete";
+
+    public static final String SEARCH_REJECTED = "report.search.rejected";
+
+    public static final String CHART_CONVERSION = "report.chart.conversion";
+
+    public static final String CHART_BUCKETS = "report.chart.buckets";
+
+    public static final String REPORT_GENERATION = "report.generation";
+
+    public static final String SLOW_REPORTS = "report.slow";
+
+    public static final String ADMISSION_QUEUE_TIME = "report.admission.queue-time";
+
+    public static final String ADMISSION_REJECTED = "report.admission.rejected";
+
+    public static final String TAG_GENERATOR = "generator";
+
+    public static final String TAG_CHART = "chart";
+
+    public static final String TAG_INDEX = "index";
+
+    protected static final String NONE = "none";
+
+    @Value("${custom.report.metrics.enabled:true}")
+    protected boolean enabled;
+
+    @Value("${custom.report.metrics.slow-report-threshold:5000}")
+    protected long slowReportThresholdMillis;
+
+    @Autowired(required = false)
+    protected List<ReportMetricsRegistry> registries = Collections.emptyList();
+
+    public static Map<String, String> tags(String generatorId, String chart, String index) {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put(TAG_GENERATOR, generatorId != null ? generatorId : NONE);
+        tags.put(TAG_CHART, chart != null ? chart : NONE);
+        tags.put(TAG_INDEX, index != null ? index : NONE);
+        return tags;
+    }
+
+    public void record(String name, Map<String, String> tags, double value) {
+        if (!enabled) {
+            return;
+        }
+        for (ReportMetricsRegistry registry : registries) {
+            try {
+                registry.record(name, tags, value);
+            } catch (RuntimeException e) {
+                logger.warn("Could not record report metric " + name + " in " + registry, e);
+            }
+        }
+    }
+
+    /**
+     * Record a search which came back, with the size of its response or <code>-1</code> if it is not known
+     */
+    public void searchCompleted(Map<String, String> tags, long startNanos, SearchResponse response, long responseBytes) {
+        record(SEARCH_ROUND_TRIP, tags, millisSince(startNanos));
+        if (response != null && response.getTook() != null) {
+            record(SEARCH_TOOK, tags, response.getTook().millis());
+        }
+        if (responseBytes >= 0) {
+            record(SEARCH_RESPONSE_BYTES, tags, responseBytes);
+        }
+    }
+
+    public void searchFailed(Map<String, String> tags, long startNanos) {
+        record(SEARCH_ROUND_TRIP, tags, millisSince(startNanos));
+        record(SEARCH_ERRORS, tags, 1);
+    }
+
+    /**
+     * Record the conversion of the named aggregation of a response into a chart which started at the given time
+     */
+    public void chartConverted(Map<String, String> tags,
+                               long startNanos,
+                               SearchResponse response,
+                               String aggregationName) {
+        record(CHART_CONVERSION, tags, millisSince(startNanos));
+        if (response instanceof StreamedSearchResponse) {
+            // Counted from the JSON, as the aggregations of a streamed response are not built for its chart
+            try {
+                record(CHART_BUCKETS, tags, StreamingChartConverter.countBuckets(
+                        ((StreamedSearchResponse) response).getAggregationsJson(), aggregationName));
+            } catch (IOException e) {
+                logger.warn("Could not count the buckets of " + tags, e);
+            }
+        } else if (response != null && response.getAggregations() != null) {
+            record(CHART_BUCKETS, tags, countBuckets(response.getAggregations().get(aggregationName)));
+        }
+    }
+
+    /**
+     * Record the generation of a report, logging it if it was slow
+     *
+     * @param phases the time taken by each phase of the report in milliseconds, for the slow report log
+     */
+    public void reportGenerated(String generatorId, String index, long startNanos, Map<String, Long> phases) {
+        Map<String, String> tags = tags(generatorId, null, index);
+        long millis = millisSince(startNanos);
+        record(REPORT_GENERATION, tags, millis);
+        if (slowReportThresholdMillis >= 0 && millis >= slowReportThresholdMillis) {
+            record(SLOW_REPORTS, tags, 1);
+            logger.warn("Slow report " + generatorId + " on index " + index + " took " + millis + "ms "
+                                + phases + ", the threshold is " + slowReportThresholdMillis + "ms");
+        }
+    }
+
+    public static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Count the buckets of a multi bucket aggregation, including the buckets of nested aggregations
+     */
+    protected static long countBuckets(Aggregation aggregation) {
+        long count = 0;
+        if (aggregation instanceof MultiBucketsAggregation) {
+            for (MultiBucketsAggregation.Bucket bucket : ((MultiBucketsAggregation) aggregation).getBuckets()) {
+                count++;
+                for (Aggregation subAggregation : bucket.getAggregations()) {
+                    count += countBuckets(subAggregation);
+                }
+            }
+        }
+        return count;
+    }
+}
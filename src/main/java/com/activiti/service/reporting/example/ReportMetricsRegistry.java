@@ -0,0 +1,22 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import java.util.Map;
+
+/**
+ * Receives the measurements taken while generating reports. Every bean implementing this interface is handed all
+ * measurements, so a bridge to a metrics library such as Micrometer only needs to be declared as a bean.
+ */
+public interface ReportMetricsRegistry {
+
+    /**
+     * Record one measurement of the metric with the given name and tags. Times are given in milliseconds and sizes
+     * in bytes.
+     */
+    void record(String name, Map<String, String> tags, double value);
+}
@@ -0,0 +1,341 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.reporting.ParameterDefinition;
+import com.activiti.domain.reporting.ParametersDefinition;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.TermQueryBuilder;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.activiti.service.reporting.eventhandler.EventFields.PROCESS_DEFINITION_KEY;
+
+/**
+ * The parameters a user can give to the fruit orders report: a date range, a customer and the process definition.
+ *
+ * The definitions are {@link ParameterDefinition}s handed to the report UI like the parameters of the standard
+ * reports, and the chosen values come back in the parameter map given to the generator. Values which are missing or cannot be
+ * read leave that parameter unset, so the report covers everything as before.
+ */
+public class ReportParameters {
+
+    public static final String PARAMETER_DATE_RANGE = "dateRange";
+
+    public static final String PARAMETER_CUSTOMER = "customer";
+
+    public static final String PARAMETER_PROCESS_DEFINITION = "processDefinition";
+
+    public static final String TYPE_DATE_RANGE = "dateRange";
+
+    public static final String TYPE_TEXT = "text";
+
+    public static final String TYPE_PROCESS_DEFINITION = "processDefinition";
+
+    public static final String START_DATE = "startDate";
+
+    public static final String END_DATE = "endDate";
+
+    /**
+     * The date range selects orders by the time they were placed, which is the time their variables were created
+     */
+    public static final String DATE_FIELD = "createTime";
+
+    /**
+     * The variable holding the customer of an order, which the customer parameter applies to
+     */
+    public static final String CUSTOMER_VARIABLE = "customername";
+
+    protected Instant from;
+
+    protected Instant to;
+
+    protected String customer;
+
+    protected String processDefinitionKey;
+
+    /**
+     * The tenant whose orders are read from the order facts index, or <code>null</code> for the orders without a
+     * tenant
+     */
+    protected String tenantId;
+
+    /**
+     * Whether the filters are built with the slots of a {@link QueryTemplate} in place of the values
+     */
+    protected boolean template;
+
+    public ReportParameters(String defaultProcessDefinitionKey) {
+        this.processDefinitionKey = defaultProcessDefinitionKey;
+    }
+
+    /**
+     * Read the parameter values given to the generator
+     */
+    public static ReportParameters from(Map<String, Object> values, String defaultProcessDefinitionKey) {
+        ReportParameters parameters = new ReportParameters(defaultProcessDefinitionKey);
+        if (values == null) {
+            return parameters;
+        }
+
+        Object dateRange = values.get(PARAMETER_DATE_RANGE);
+        if (dateRange instanceof Map) {
+            parameters.from = toInstant(((Map<?, ?>) dateRange).get(START_DATE), false);
+            parameters.to = toInstant(((Map<?, ?>) dateRange).get(END_DATE), true);
+        }
+
+        Object customer = values.get(PARAMETER_CUSTOMER);
+        if (customer != null && !customer.toString().trim().isEmpty()) {
+            parameters.customer = customer.toString().trim();
+        }
+
+        // Process definitions are chosen by id, which starts with the key
+        Object processDefinition = values.get(PARAMETER_PROCESS_DEFINITION);
+        if (processDefinition != null && !processDefinition.toString().isEmpty()) {
+            parameters.processDefinitionKey = processDefinition.toString().split(":")[0];
+        }
+        return parameters;
+    }
+
+    /**
+     * The definitions of the parameters, with the given values filled in
+     */
+    public static ParametersDefinition definitions(Map<String, Object> values) {
+        ParametersDefinition definitions = new ParametersDefinition();
+        definitions.add(new ParameterDefinition(PARAMETER_DATE_RANGE,
+                                                "Date range",
+                                                null,
+                                                TYPE_DATE_RANGE,
+                                                valueOf(values, PARAMETER_DATE_RANGE)));
+        definitions.add(new ParameterDefinition(PARAMETER_CUSTOMER,
+                                                "Customer",
+                                                null,
+                                                TYPE_TEXT,
+                                                valueOf(values, PARAMETER_CUSTOMER)));
+        definitions.add(new ParameterDefinition(PARAMETER_PROCESS_DEFINITION,
+                                                "Process definition",
+                                                null,
+                                                TYPE_PROCESS_DEFINITION,
+                                                valueOf(values, PARAMETER_PROCESS_DEFINITION)));
+        return definitions;
+    }
+
+    private static Object valueOf(Map<String, Object> values, String id) {
+        return values != null ? values.get(id) : null;
+    }
+
+    /**
+     * Read a date given as a date, epoch milliseconds, an ISO instant or an ISO date. The end of a range is inclusive
+     * whichever way it is given: a date with a time includes its millisecond, so it is taken up to the millisecond
+     * after it, and a date without a time includes the whole day, so it is taken up to the start of the next day.
+     * Callers holding an exclusive end in epoch milliseconds pass the millisecond before it.
+     */
+    protected static Instant toInstant(Object value, boolean end) {
+        if (value instanceof Date) {
+            return ((Date) value).toInstant().plusMillis(end ? 1 : 0);
+        } else if (value instanceof Number) {
+            return Instant.ofEpochMilli(((Number) value).longValue() + (end ? 1 : 0));
+        } else if (value == null || value.toString().isEmpty()) {
+            return null;
+        }
+        String text = value.toString();
+        try {
+            return Instant.parse(text).plusMillis(end ? 1 : 0);
+        } catch (DateTimeParseException e) {
+            try {
+                LocalDate date = LocalDate.parse(text);
+                return (end ? date.plusDays(1) : date).atStartOfDay(ZoneOffset.UTC).toInstant();
+            } catch (DateTimeParseException ignored) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Start of the date range, inclusive, or <code>null</code> if it is open
+     */
+    public Instant getFrom() {
+        return from;
+    }
+
+    /**
+     * End of the date range, exclusive, or <code>null</code> if it is open. It is the instant after the inclusive end
+     * date the range was given with, see {@link #toInstant(Object, boolean)}.
+     */
+    public Instant getTo() {
+        return to;
+    }
+
+    public String getCustomer() {
+        return customer;
+    }
+
+    public String getProcessDefinitionKey() {
+        return processDefinitionKey;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    /**
+     * These parameters for the orders of the given tenant in the order facts index
+     */
+    public ReportParameters forTenant(String tenantId) {
+        ReportParameters parameters = copy(processDefinitionKey);
+        parameters.customer = customer;
+        parameters.tenantId = tenantId;
+        return parameters;
+    }
+
+    public boolean hasDateRange() {
+        return from != null || to != null;
+    }
+
+    /**
+     * Parameters building the same filters as these, with a slot of a {@link QueryTemplate} in place of each value.
+     * Filters built from them only differ from those of other parameters with the same {@link #getShape() shape} in
+     * the values of the slots.
+     */
+    public ReportParameters asTemplate() {
+        ReportParameters slots = copy(QueryTemplate.slot(PARAMETER_PROCESS_DEFINITION));
+        slots.customer = customer != null ? QueryTemplate.slot(PARAMETER_CUSTOMER) : null;
+        slots.template = true;
+        return slots;
+    }
+
+    protected ReportParameters copy(String processDefinitionKey) {
+        ReportParameters copy = new ReportParameters(processDefinitionKey);
+        copy.from = from;
+        copy.to = to;
+        copy.tenantId = tenantId;
+        return copy;
+    }
+
+    /**
+     * Which of the parameters are set, which decides the clauses of the filters
+     */
+    public String getShape() {
+        List<String> shape = new ArrayList<>();
+        if (from != null) {
+            shape.add(START_DATE);
+        }
+        if (to != null) {
+            shape.add(END_DATE);
+        }
+        if (customer != null) {
+            shape.add(PARAMETER_CUSTOMER);
+        }
+        return String.join(",", shape);
+    }
+
+    /**
+     * The values to fill the slots of a {@link QueryTemplate} built from {@link #asTemplate()} with
+     */
+    public Map<String, String> templateValues() {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put(PARAMETER_PROCESS_DEFINITION, processDefinitionKey);
+        if (from != null) {
+            values.put(START_DATE, String.valueOf(from.toEpochMilli()));
+        }
+        if (to != null) {
+            values.put(END_DATE, String.valueOf(to.toEpochMilli()));
+        }
+        if (customer != null) {
+            values.put(PARAMETER_CUSTOMER, customer);
+        }
+        return values;
+    }
+
+    /**
+     * Filters selecting the variables with the given name of the chosen process definition, created within the date
+     * range. Being a range filter, Elasticsearch can skip segments and shards outside of the range without looking at
+     * their documents.
+     */
+    public BoolQueryBuilder filter(String variableName) {
+        BoolQueryBuilder filter = QueryBuilders.boolQuery()
+                .filter(new TermQueryBuilder(PROCESS_DEFINITION_KEY, processDefinitionKey))
+                .filter(new TermQueryBuilder("name", variableName));
+        filterDateRange(filter);
+        return filter;
+    }
+
+    /**
+     * As {@link #filter(String)} for the customer name variables, restricted to the chosen customer
+     */
+    public BoolQueryBuilder customerFilter() {
+        BoolQueryBuilder filter = filter(CUSTOMER_VARIABLE);
+        if (customer != null) {
+            filter.filter(new TermQueryBuilder("stringValue.keyword", customer));
+        }
+        return filter;
+    }
+
+    /**
+     * As {@link #filter(String)} for the variables with any of the given names, which are all the variables of the
+     * orders when given every variable an order is made of
+     */
+    public BoolQueryBuilder variablesFilter(String... variableNames) {
+        BoolQueryBuilder filter = QueryBuilders.boolQuery()
+                .filter(new TermQueryBuilder(PROCESS_DEFINITION_KEY, processDefinitionKey))
+                .filter(QueryBuilders.termsQuery("name", variableNames));
+        filterDateRange(filter);
+        return filter;
+    }
+
+    /**
+     * Filters selecting the orders of the chosen process definition and tenant in the order facts index, placed
+     * within the date range. The customer only narrows down the charts by customer.
+     */
+    public BoolQueryBuilder orderFactsFilter(boolean byCustomer) {
+        BoolQueryBuilder filter = QueryBuilders.boolQuery()
+                .filter(new TermQueryBuilder(PROCESS_DEFINITION_KEY, processDefinitionKey));
+        // All tenants share the index, so the tenant is always filtered on
+        filter.filter(new TermQueryBuilder(OrderFactsProjector.FIELD_TENANT_ID,
+                                           tenantId != null ? tenantId : OrderFactsProjector.NO_TENANT));
+        filterDateRange(filter);
+        if (byCustomer && customer != null) {
+            filter.filter(new TermQueryBuilder(OrderFactsProjector.FIELD_CUSTOMER, customer));
+        }
+        return filter;
+    }
+
+    /**
+     * Restrict the filter to the documents created within the date range, if there is one
+     */
+    protected void filterDateRange(BoolQueryBuilder filter) {
+        if (hasDateRange()) {
+            filter.filter(QueryBuilders.rangeQuery(DATE_FIELD)
+                                  .gte(rangeValue(from, START_DATE))
+                                  .lt(rangeValue(to, END_DATE))
+                                  .format("epoch_millis"));
+        }
+    }
+
+    protected Object rangeValue(Instant value, String slot) {
+        if (value == null) {
+            return null;
+        }
+        // Elasticsearch reads epoch millis given as a string as well, which is what a slot is filled with
+        return template ? QueryTemplate.slot(slot) : value.toEpochMilli();
+    }
+
+    @Override
+    public String toString() {
+        return "from=" + from + ", to=" + to + ", customer=" + customer + ", processDefinitionKey=" + processDefinitionKey
+                + (tenantId != null ? ", tenantId=" + tenantId : "");
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.PipelineAggregationBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Works out which searches have to be sent for the charts of a report.
+ *
+ * Charts whose queries only differ in their aggregations are answered by a single search carrying all of their
+ * aggregations as siblings, so the matching documents are only collected once. As the converters look up their
+ * aggregation by name, every chart of a merged search can be given the same response.
+ */
+public class ReportQueryPlan {
+
+    public static final String SEARCH_KEY_SEPARATOR = "+";
+
+    protected final Map<String, SearchSourceBuilder> searches;
+
+    protected final Map<String, String> searchKeysByChart;
+
+    protected ReportQueryPlan(Map<String, SearchSourceBuilder> searches, Map<String, String> searchKeysByChart) {
+        this.searches = searches;
+        this.searchKeysByChart = searchKeysByChart;
+    }
+
+    /**
+     * Plan the searches for the given chart queries, merging those that can share a search
+     */
+    public static ReportQueryPlan plan(Map<String, SearchSourceBuilder> queries) {
+        List<List<String>> groups = new ArrayList<>();
+        List<SearchSourceBuilder> groupSources = new ArrayList<>();
+
+        for (Map.Entry<String, SearchSourceBuilder> query : queries.entrySet()) {
+            int group = 0;
+            while (group < groups.size() && !canMerge(groupSources.get(group), query.getValue())) {
+                group++;
+            }
+            if (group < groups.size()) {
+                groups.get(group).add(query.getKey());
+                groupSources.set(group, merge(groupSources.get(group), query.getValue()));
+            } else {
+                groups.add(new ArrayList<>(Collections.singletonList(query.getKey())));
+                groupSources.add(query.getValue());
+            }
+        }
+
+        Map<String, SearchSourceBuilder> searches = new LinkedHashMap<>();
+        Map<String, String> searchKeysByChart = new LinkedHashMap<>();
+        for (int i = 0; i < groups.size(); i++) {
+            String searchKey = String.join(SEARCH_KEY_SEPARATOR, groups.get(i));
+            searches.put(searchKey, groupSources.get(i));
+            for (String chart : groups.get(i)) {
+                searchKeysByChart.put(chart, searchKey);
+            }
+        }
+        return new ReportQueryPlan(searches, searchKeysByChart);
+    }
+
+    /**
+     * Plan one search for each chart query, without merging any
+     */
+    public static ReportQueryPlan unmerged(Map<String, SearchSourceBuilder> queries) {
+        Map<String, String> searchKeysByChart = new LinkedHashMap<>();
+        for (String chart : queries.keySet()) {
+            searchKeysByChart.put(chart, chart);
+        }
+        return new ReportQueryPlan(new LinkedHashMap<>(queries), searchKeysByChart);
+    }
+
+    /**
+     * The searches to send, keyed by the charts they answer joined with {@link #SEARCH_KEY_SEPARATOR}
+     */
+    public Map<String, SearchSourceBuilder> getSearches() {
+        return searches;
+    }
+
+    /**
+     * A listener of the responses of the searches which hands the response of each search to the given listener of
+     * the responses of the charts, for all charts the search answers
+     */
+    public BiConsumer<String, SearchResponse> byChart(BiConsumer<String, SearchResponse> chartListener) {
+        return (searchKey, response) -> {
+            for (Map.Entry<String, String> chart : searchKeysByChart.entrySet()) {
+                if (chart.getValue().equals(searchKey)) {
+                    chartListener.accept(chart.getKey(), response);
+                }
+            }
+        };
+    }
+
+    /**
+     * Hand the response of each search back to all charts it answers, in the original chart order
+     */
+    public Map<String, SearchResponse> split(Map<String, SearchResponse> searchResponses) {
+        Map<String, SearchResponse> responses = new LinkedHashMap<>();
+        for (Map.Entry<String, String> chart : searchKeysByChart.entrySet()) {
+            responses.put(chart.getKey(), searchResponses.get(chart.getValue()));
+        }
+        return responses;
+    }
+
+    /**
+     * Two queries can share a search when everything but their aggregations is the same, and their aggregation
+     * names do not clash. Only the parts of the search source which report queries make use of are compared.
+     */
+    protected static boolean canMerge(SearchSourceBuilder a, SearchSourceBuilder b) {
+        if (a.aggregations() == null || b.aggregations() == null
+                || !Objects.equals(a.query(), b.query())
+                || !Objects.equals(a.postFilter(), b.postFilter())
+                || a.size() != b.size()
+                || a.from() != b.from()
+                || !Objects.equals(a.trackTotalHitsUpTo(), b.trackTotalHitsUpTo())
+                || a.profile() != b.profile()) {
+            return false;
+        }
+        Set<String> names = aggregationNames(a.aggregations());
+        for (String name : aggregationNames(b.aggregations())) {
+            if (!names.add(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static SearchSourceBuilder merge(SearchSourceBuilder a, SearchSourceBuilder b) {
+        SearchSourceBuilder merged = new SearchSourceBuilder()
+                .query(a.query())
+                .postFilter(a.postFilter())
+                .profile(a.profile());
+        if (a.size() >= 0) {
+            merged.size(a.size());
+        }
+        if (a.from() >= 0) {
+            merged.from(a.from());
+        }
+        if (a.trackTotalHitsUpTo() != null) {
+            merged.trackTotalHitsUpTo(a.trackTotalHitsUpTo());
+        }
+        for (SearchSourceBuilder source : new SearchSourceBuilder[]{a, b}) {
+            for (AggregationBuilder aggregation : source.aggregations().getAggregatorFactories()) {
+                merged.aggregation(aggregation);
+            }
+            for (PipelineAggregationBuilder aggregation : source.aggregations().getPipelineAggregatorFactories()) {
+                merged.aggregation(aggregation);
+            }
+        }
+        return merged;
+    }
+
+    protected static Set<String> aggregationNames(AggregatorFactories.Builder aggregations) {
+        Set<String> names = new HashSet<>();
+        for (AggregationBuilder aggregation : aggregations.getAggregatorFactories()) {
+            names.add(aggregation.getName());
+        }
+        for (PipelineAggregationBuilder aggregation : aggregations.getPipelineAggregatorFactories()) {
+            names.add(aggregation.getName());
+        }
+        return names;
+    }
+}
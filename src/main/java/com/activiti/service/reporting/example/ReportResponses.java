@@ -0,0 +1,306 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchResponseSections;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.ContextParser;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.ParsedComposite;
+import org.elasticsearch.search.aggregations.bucket.filter.FilterAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.filter.ParsedFilter;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.ParsedDateHistogram;
+import org.elasticsearch.search.aggregations.bucket.sampler.ParsedSampler;
+import org.elasticsearch.search.aggregations.bucket.sampler.SamplerAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.DoubleTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedDoubleTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedLongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.elasticsearch.search.aggregations.metrics.CardinalityAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.MaxAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.MinAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.ParsedCardinality;
+import org.elasticsearch.search.aggregations.metrics.ParsedMax;
+import org.elasticsearch.search.aggregations.metrics.ParsedMin;
+import org.elasticsearch.search.aggregations.metrics.ParsedSum;
+import org.elasticsearch.search.aggregations.metrics.SumAggregationBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts search responses to and from JSON, for the cases where a report has to put together a response itself
+ * so that it can still be handed to the standard chart converters.
+ *
+ * Aggregations are written and read with their type as a prefix of their name, as the high level client does.
+ */
+public final class ReportResponses {
+
+    public static final String TYPED_KEYS_PARAM = "typed_keys";
+
+    private static final NamedXContentRegistry REGISTRY = new NamedXContentRegistry(registryEntries());
+
+    private static final ToXContent.Params TYPED_KEYS = new ToXContent.MapParams(
+            Collections.singletonMap(TYPED_KEYS_PARAM, "true"));
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private ReportResponses() {
+    }
+
+    public static SearchResponse parse(String json) throws IOException {
+        try (XContentParser parser = XContentType.JSON.xContent()
+                .createParser(REGISTRY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, json)) {
+            return SearchResponse.fromXContent(parser);
+        }
+    }
+
+    public static SearchResponse parse(InputStream json) throws IOException {
+        try (XContentParser parser = XContentType.JSON.xContent()
+                .createParser(REGISTRY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, json)) {
+            return SearchResponse.fromXContent(parser);
+        }
+    }
+
+    /**
+     * Read a response as a stream, keeping only what the charts look at: the aggregations, the total hit count and
+     * the shard counts. The hits themselves and any other sections are skipped over without being materialised. The
+     * aggregations are kept as JSON, for {@link StreamingChartConverter} to write their buckets straight into the
+     * charts, see {@link StreamedSearchResponse}.
+     */
+    public static StreamedSearchResponse parseAggregationsOnly(InputStream json) throws IOException {
+        try (XContentParser parser = XContentType.JSON.xContent()
+                .createParser(REGISTRY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, json)) {
+            long took = 0;
+            boolean timedOut = false;
+            int[] shards = new int[3];
+            TotalHits totalHits = null;
+            byte[] aggregations = null;
+
+            expect(XContentParser.Token.START_OBJECT, parser.nextToken());
+            String field = null;
+            for (XContentParser.Token token = parser.nextToken();
+                 token != XContentParser.Token.END_OBJECT;
+                 token = parser.nextToken()) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    field = parser.currentName();
+                } else if ("took".equals(field)) {
+                    took = parser.longValue();
+                } else if ("timed_out".equals(field)) {
+                    timedOut = parser.booleanValue();
+                } else if ("_shards".equals(field) && token == XContentParser.Token.START_OBJECT) {
+                    readShards(parser, shards);
+                } else if ("hits".equals(field) && token == XContentParser.Token.START_OBJECT) {
+                    totalHits = readTotalHits(parser);
+                } else if ("aggregations".equals(field) && token == XContentParser.Token.START_OBJECT) {
+                    try (XContentBuilder copy = XContentFactory.jsonBuilder()) {
+                        copy.copyCurrentStructure(parser);
+                        aggregations = BytesReference.toBytes(BytesReference.bytes(copy));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            SearchResponseSections sections = new SearchResponseSections(
+                    new SearchHits(new SearchHit[0], totalHits, Float.NaN),
+                    null,
+                    null,
+                    timedOut,
+                    null,
+                    null,
+                    1);
+            return new StreamedSearchResponse(sections, aggregations, shards[0], shards[1], shards[2], took);
+        }
+    }
+
+    /**
+     * Parse the aggregations object of a response, with typed keys
+     */
+    public static Aggregations parseAggregations(byte[] json) throws IOException {
+        try (XContentParser parser = XContentType.JSON.xContent()
+                .createParser(REGISTRY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, json)) {
+            expect(XContentParser.Token.START_OBJECT, parser.nextToken());
+            return Aggregations.fromXContent(parser);
+        }
+    }
+
+    /**
+     * Read the response of a multi search sent with typed keys
+     */
+    public static MultiSearchResponse parseMultiSearch(InputStream json) throws IOException {
+        try (XContentParser parser = XContentType.JSON.xContent()
+                .createParser(REGISTRY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, json)) {
+            return MultiSearchResponse.fromXContext(parser);
+        }
+    }
+
+    public static SearchResponse parse(Map<String, Object> json) throws IOException {
+        return parse(MAPPER.writeValueAsString(json));
+    }
+
+    public static String toJson(SearchResponse response) throws IOException {
+        return BytesReference.bytes(response.toXContent(XContentFactory.jsonBuilder(), TYPED_KEYS)).utf8ToString();
+    }
+
+    public static Map<String, Object> toMap(SearchResponse response) throws IOException {
+        return MAPPER.readValue(toJson(response), new TypeReference<Map<String, Object>>() {});
+    }
+
+    /**
+     * Build a response which only carries the given aggregations, in typed key form
+     */
+    public static SearchResponse withAggregations(long took, long totalHits, Map<String, Object> aggregations)
+            throws IOException {
+        Map<String, Object> shards = new LinkedHashMap<>();
+        shards.put("total", 1);
+        shards.put("successful", 1);
+        shards.put("skipped", 0);
+        shards.put("failed", 0);
+
+        Map<String, Object> total = new LinkedHashMap<>();
+        total.put("value", totalHits);
+        total.put("relation", "eq");
+        Map<String, Object> hits = new LinkedHashMap<>();
+        hits.put("total", total);
+        hits.put("max_score", null);
+        hits.put("hits", Collections.emptyList());
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("took", took);
+        json.put("timed_out", false);
+        json.put("_shards", shards);
+        json.put("hits", hits);
+        json.put("aggregations", aggregations);
+        return parse(json);
+    }
+
+    /**
+     * Find an aggregation by name in the <code>aggregations</code> of a response or bucket in map form
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> findAggregation(Map<String, Object> container, String name) {
+        Object aggregations = container.containsKey("aggregations") ? container.get("aggregations") : container;
+        for (Map.Entry<String, Object> aggregation : ((Map<String, Object>) aggregations).entrySet()) {
+            String key = aggregation.getKey();
+            if (key.substring(key.indexOf(Aggregation.TYPED_KEYS_DELIMITER) + 1).equals(name)) {
+                return (Map<String, Object>) aggregation.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static void readShards(XContentParser parser, int[] shards) throws IOException {
+        String field = null;
+        for (XContentParser.Token token = parser.nextToken();
+             token != XContentParser.Token.END_OBJECT;
+             token = parser.nextToken()) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                field = parser.currentName();
+            } else if ("total".equals(field)) {
+                shards[0] = parser.intValue();
+            } else if ("successful".equals(field)) {
+                shards[1] = parser.intValue();
+            } else if ("skipped".equals(field)) {
+                shards[2] = parser.intValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Read the total of a <code>hits</code> section, which is either a number or a value with a relation
+     */
+    private static TotalHits readTotalHits(XContentParser parser) throws IOException {
+        TotalHits totalHits = null;
+        String field = null;
+        for (XContentParser.Token token = parser.nextToken();
+             token != XContentParser.Token.END_OBJECT;
+             token = parser.nextToken()) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                field = parser.currentName();
+            } else if ("total".equals(field) && token == XContentParser.Token.VALUE_NUMBER) {
+                totalHits = new TotalHits(parser.longValue(), TotalHits.Relation.EQUAL_TO);
+            } else if ("total".equals(field) && token == XContentParser.Token.START_OBJECT) {
+                long value = 0;
+                TotalHits.Relation relation = TotalHits.Relation.EQUAL_TO;
+                for (token = parser.nextToken(); token != XContentParser.Token.END_OBJECT; token = parser.nextToken()) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        field = parser.currentName();
+                    } else if ("value".equals(field)) {
+                        value = parser.longValue();
+                    } else if ("relation".equals(field) && "gte".equals(parser.text())) {
+                        relation = TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+                    }
+                }
+                totalHits = new TotalHits(value, relation);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return totalHits;
+    }
+
+    private static void expect(XContentParser.Token expected, XContentParser.Token actual) throws IOException {
+        if (expected != actual) {
+            throw new IOException("Expected " + expected + " in search response but found " + actual);
+        }
+    }
+
+    private static List<NamedXContentRegistry.Entry> registryEntries() {
+        List<NamedXContentRegistry.Entry> entries = new ArrayList<>();
+        entries.add(aggregation(DateHistogramAggregationBuilder.NAME, ParsedDateHistogram::fromXContent));
+        entries.add(aggregation(StringTerms.NAME, ParsedStringTerms::fromXContent));
+        // Terms on a numeric field come back as long or double terms
+        entries.add(aggregation(LongTerms.NAME, ParsedLongTerms::fromXContent));
+        entries.add(aggregation(DoubleTerms.NAME, ParsedDoubleTerms::fromXContent));
+        entries.add(aggregation(SumAggregationBuilder.NAME, ParsedSum::fromXContent));
+        entries.add(aggregation(CompositeAggregationBuilder.NAME, ParsedComposite::fromXContent));
+        entries.add(aggregation(SamplerAggregationBuilder.NAME, ParsedSampler::fromXContent));
+        entries.add(aggregation(CardinalityAggregationBuilder.NAME, ParsedCardinality::fromXContent));
+        entries.add(aggregation(FilterAggregationBuilder.NAME, ParsedFilter::fromXContent));
+        entries.add(aggregation(MinAggregationBuilder.NAME, ParsedMin::fromXContent));
+        entries.add(aggregation(MaxAggregationBuilder.NAME, ParsedMax::fromXContent));
+        return entries;
+    }
+
+    private static NamedXContentRegistry.Entry aggregation(String type, AggregationParser parser) {
+        ContextParser<Object, Aggregation> contextParser = (p, name) -> parser.parse(p, (String) name);
+        return new NamedXContentRegistry.Entry(Aggregation.class, new ParseField(type), contextParser);
+    }
+
+    @FunctionalInterface
+    private interface AggregationParser {
+        Aggregation parse(XContentParser parser, String name) throws IOException;
+    }
+}
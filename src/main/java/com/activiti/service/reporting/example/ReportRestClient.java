@@ -0,0 +1,405 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.HeapBufferedAsyncResponseConsumer;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ResourceUtils;
+
+import javax.net.ssl.SSLContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A client of the analytics cluster tuned for report searches, used by {@link ReportSearchExecutor} instead of the
+ * clients of the application when enabled.
+ *
+ * It searches the nodes of the analytics client of the application, or when the application has none those of
+ * <code>elastic-search.rest-client.address</code>, with the credentials and the trust store the application is
+ * configured with, so that it always searches the same cluster as the application does.
+ *
+ * Its connections are pooled and kept alive between searches, up to a number per node and in total, so that reports
+ * do not open a connection for each search. Searches go to the nodes in turn, or to the node with the fewest searches
+ * in flight. Unless disabled, responses are asked for gzip compressed and request bodies are sent compressed, which
+ * trades a little CPU for much less data on the wire, as responses of histograms and terms are mostly repeated keys.
+ * The bytes received on the wire and once decompressed are counted, to see what compression saves.
+ */
+@Component
+public class ReportRestClient implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportRestClient.class);
+
+    public static final String NODE_SELECTION_ROUND_ROBIN = "round-robin";
+
+    public static final String NODE_SELECTION_LEAST_LOADED = "least-loaded";
+
+    public static final String GZIP = "gzip";
+
+    /**
+     * The largest response kept in memory, as for the default client
+     */
+    protected static final int BUFFER_LIMIT = 100 * 1024 * 1024;
+
+    @Value("${custom.report.client.enabled:false}")
+    protected boolean enabled;
+
+    @Value("${custom.report.client.compression:true}")
+    protected boolean compression;
+
+    @Value("${custom.report.client.max-connections:100}")
+    protected int maxConnections;
+
+    @Value("${custom.report.client.max-connections-per-node:20}")
+    protected int maxConnectionsPerNode;
+
+    @Value("${custom.report.client.keep-alive:60000}")
+    protected long keepAliveMillis;
+
+    @Value("${custom.report.client.node-selection:" + NODE_SELECTION_ROUND_ROBIN + "}")
+    protected String nodeSelection;
+
+    @Value("${elastic-search.rest-client.schema:http}")
+    protected String schema;
+
+    @Value("${elastic-search.rest-client.address:localhost}")
+    protected String address;
+
+    @Value("${elastic-search.rest-client.port:9200}")
+    protected int port;
+
+    @Value("${elastic-search.rest-client.auth.enabled:false}")
+    protected boolean authEnabled;
+
+    @Value("${elastic-search.rest-client.username:}")
+    protected String username;
+
+    @Value("${elastic-search.rest-client.password:}")
+    protected String password;
+
+    @Value("${elastic-search.rest-client.keystore:}")
+    protected String keystore;
+
+    @Value("${elastic-search.rest-client.keystore.type:jks}")
+    protected String keystoreType;
+
+    @Value("${elastic-search.rest-client.keystore.password:}")
+    protected String keystorePassword;
+
+    /**
+     * The analytics client of the application, whose nodes are searched
+     */
+    @Autowired(required = false)
+    protected RestHighLevelClient applicationClient;
+
+    protected PoolingNHttpClientConnectionManager connectionManager;
+
+    protected RestHighLevelClient restHighLevelClient;
+
+    protected RequestOptions requestOptions;
+
+    protected final AtomicLong wireBytes = new AtomicLong();
+
+    protected final AtomicLong contentBytes = new AtomicLong();
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+        List<Node> nodes = new ArrayList<>();
+        if (applicationClient != null) {
+            nodes.addAll(applicationClient.getLowLevelClient().getNodes());
+        } else {
+            nodes.add(new Node(new HttpHost(address, port, schema)));
+        }
+
+        // The pool opens the connections, so it is the pool which has to trust the cluster
+        Registry<SchemeIOSessionStrategy> sessionStrategies = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", new SSLIOSessionStrategy(sslContext()))
+                .build();
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(IOReactorConfig.custom().setSoKeepAlive(true).build()),
+                    sessionStrategies);
+        } catch (IOReactorException e) {
+            throw new UncheckedIOException("Could not create the connection pool of the report client", e);
+        }
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerNode);
+
+        NodeSelector nodeSelector;
+        if (NODE_SELECTION_LEAST_LOADED.equals(nodeSelection)) {
+            nodeSelector = new LeastLoadedNodeSelector(connectionManager);
+        } else if (NODE_SELECTION_ROUND_ROBIN.equals(nodeSelection)) {
+            // The client already takes the nodes in turn
+            nodeSelector = NodeSelector.ANY;
+        } else {
+            throw new IllegalArgumentException("Unknown node selection " + nodeSelection + ", expected "
+                                                       + NODE_SELECTION_ROUND_ROBIN + " or " + NODE_SELECTION_LEAST_LOADED);
+        }
+
+        restHighLevelClient = new RestHighLevelClient(
+                RestClient.builder(nodes.toArray(new Node[nodes.size()]))
+                        .setNodeSelector(nodeSelector)
+                        .setHttpClientConfigCallback(httpClient -> httpClient
+                                .setConnectionManager(connectionManager)
+                                .setDefaultCredentialsProvider(credentialsProvider())
+                                .setKeepAliveStrategy((response, context) -> keepAliveMillis)));
+
+        RequestOptions.Builder options = RequestOptions.DEFAULT.toBuilder();
+        options.setHttpAsyncResponseConsumerFactory(
+                () -> new DecompressingResponseConsumer(BUFFER_LIMIT, wireBytes, contentBytes));
+        if (compression) {
+            options.addHeader(HttpHeaders.ACCEPT_ENCODING, GZIP);
+        }
+        requestOptions = options.build();
+
+        logger.info("Report searches go to " + nodes.size() + " node(s) of the "
+                            + (applicationClient != null ? "application analytics client " : address + " ")
+                            + nodeSelection
+                            + (compression ? " with gzip compression" : "")
+                            + ", keeping up to " + maxConnections + " connections alive");
+    }
+
+    /**
+     * The credentials of the application for the cluster, if it is configured with any
+     */
+    protected CredentialsProvider credentialsProvider() {
+        CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        if (authEnabled) {
+            credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+        }
+        return credentialsProvider;
+    }
+
+    /**
+     * Trusts the certificates of the key store of the application, if it is configured with one, and those trusted
+     * by the JVM otherwise
+     */
+    protected SSLContext sslContext() {
+        if (keystore == null || keystore.isEmpty()) {
+            return SSLContexts.createSystemDefault();
+        }
+        try (InputStream in = ResourceUtils.getURL(keystore).openStream()) {
+            KeyStore trustStore = KeyStore.getInstance(keystoreType);
+            trustStore.load(in, keystorePassword.isEmpty() ? null : keystorePassword.toCharArray());
+            return SSLContexts.custom().loadTrustMaterial(trustStore, null).build();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the key store " + keystore + " of the report client", e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not load the key store " + keystore + " of the report client", e);
+        }
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        if (restHighLevelClient != null) {
+            restHighLevelClient.close();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public RestHighLevelClient getRestHighLevelClient() {
+        return restHighLevelClient;
+    }
+
+    /**
+     * The options of every request, asking for compressed responses unless disabled and decompressing them
+     */
+    public RequestOptions getRequestOptions() {
+        return requestOptions;
+    }
+
+    /**
+     * Send a request through the low level client, compressing its body
+     */
+    public Response performRequest(Request request) throws IOException {
+        if (compression && request.getEntity() != null) {
+            request.setEntity(compress(request.getEntity()));
+            request.setOptions(requestOptions.toBuilder().addHeader(HttpHeaders.CONTENT_ENCODING, GZIP));
+        } else {
+            request.setOptions(requestOptions);
+        }
+        return restHighLevelClient.getLowLevelClient().performRequest(request);
+    }
+
+    /**
+     * The number of bytes of the responses as received, compressed or not
+     */
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    /**
+     * The number of bytes of the responses once decompressed
+     */
+    public long getContentBytes() {
+        return contentBytes.get();
+    }
+
+    /**
+     * The number of connections in use and kept alive to each node
+     */
+    public PoolingNHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    protected static HttpEntity compress(HttpEntity entity) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            entity.writeTo(out);
+        }
+        return new NByteArrayEntity(compressed.toByteArray(), ContentType.get(entity));
+    }
+
+    /**
+     * Buffers a response as the default consumer does, and decompresses its body if it came compressed, so that it
+     * is parsed as it would be without compression
+     */
+    protected static class DecompressingResponseConsumer extends HeapBufferedAsyncResponseConsumer {
+
+        private final AtomicLong wireBytes;
+
+        private final AtomicLong contentBytes;
+
+        public DecompressingResponseConsumer(int bufferLimit, AtomicLong wireBytes, AtomicLong contentBytes) {
+            super(bufferLimit);
+            this.wireBytes = wireBytes;
+            this.contentBytes = contentBytes;
+        }
+
+        @Override
+        protected HttpResponse buildResult(HttpContext context) throws Exception {
+            HttpResponse response = super.buildResult(context);
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return response;
+            }
+            byte[] body = EntityUtils.toByteArray(entity);
+            wireBytes.addAndGet(body.length);
+            Header encoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+            if (encoding != null && GZIP.equalsIgnoreCase(encoding.getValue())) {
+                body = decompress(body);
+                response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+            }
+            contentBytes.addAndGet(body.length);
+            response.setEntity(new NByteArrayEntity(body, ContentType.get(entity)));
+            return response;
+        }
+
+        private static byte[] decompress(byte[] body) throws IOException {
+            ByteArrayOutputStream decompressed = new ByteArrayOutputStream(body.length * 8);
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                byte[] buffer = new byte[8192];
+                for (int read; (read = in.read(buffer)) != -1; ) {
+                    decompressed.write(buffer, 0, read);
+                }
+            }
+            return decompressed.toByteArray();
+        }
+    }
+
+    /**
+     * Keeps the nodes with the fewest connections in use or waited for, so that a node slow to answer gets fewer
+     * searches. Nodes which are equally loaded are still taken in turn.
+     */
+    protected static class LeastLoadedNodeSelector implements NodeSelector {
+
+        private final PoolingNHttpClientConnectionManager connectionManager;
+
+        public LeastLoadedNodeSelector(PoolingNHttpClientConnectionManager connectionManager) {
+            this.connectionManager = connectionManager;
+        }
+
+        @Override
+        public void select(Iterable<Node> nodes) {
+            // Read each load once, as it changes while selecting and at least one node must be left
+            Map<Node, Integer> loads = new IdentityHashMap<>();
+            int least = Integer.MAX_VALUE;
+            for (Node node : nodes) {
+                int load = load(node.getHost());
+                loads.put(node, load);
+                least = Math.min(least, load);
+            }
+            for (Iterator<Node> it = nodes.iterator(); it.hasNext(); ) {
+                if (loads.get(it.next()) > least) {
+                    it.remove();
+                }
+            }
+        }
+
+        protected int load(HttpHost host) {
+            boolean secure = "https".equalsIgnoreCase(host.getSchemeName());
+            HttpHost target = host.getPort() < 0
+                    ? new HttpHost(host.getHostName(), secure ? 443 : 80, host.getSchemeName())
+                    : host;
+            PoolStats stats = connectionManager.getStats(new HttpRoute(target, null, secure));
+            return stats.getLeased() + stats.getPending();
+        }
+
+        @Override
+        public String toString() {
+            return NODE_SELECTION_LEAST_LOADED;
+        }
+    }
+}
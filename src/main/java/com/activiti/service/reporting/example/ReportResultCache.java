@@ -0,0 +1,247 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.reporting.ReportDataRepresentation;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps generated reports for a while so that refreshing a dashboard does not recompute every aggregation.
+ *
+ * Entries are keyed by generator, the resolved index and the report parameters, so that users who share a tenant
+ * index also share the cached report. The reports are kept in a {@link BoundedCache}, which evicts the least recently
+ * used one when full, and they expire after a configurable time to live.
+ *
+ * Entries are also dropped once a change to a variable of one of the processes the report is based on has been
+ * committed, so that a report generated meanwhile does not keep the variable as it was before. The analytics index
+ * is only updated by the event processor a little after the commit though, and a report generated in between is
+ * kept for its time to live, so the time to live still bounds how stale a report may get.
+ */
+@Component
+public class ReportResultCache implements InitializingBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportResultCache.class);
+
+    @Value("${custom.report.cache.enabled:true}")
+    protected boolean enabled;
+
+    @Value("${custom.report.cache.max-entries:200}")
+    protected int maxEntries;
+
+    @Value("${custom.report.cache.ttl:60000}")
+    protected long ttlMillis;
+
+    @Autowired(required = false)
+    protected RuntimeService runtimeService;
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    protected BoundedCache<Key, ReportDataRepresentation> reports;
+
+    @Override
+    public void afterPropertiesSet() {
+        reports = new BoundedCache<>(maxEntries, ttlMillis);
+        if (enabled && runtimeService != null) {
+            runtimeService.addEventListener(new InvalidatingEventListener(),
+                                            ActivitiEventType.VARIABLE_CREATED,
+                                            ActivitiEventType.VARIABLE_UPDATED,
+                                            ActivitiEventType.VARIABLE_DELETED);
+        }
+    }
+
+    /**
+     * Get a cached report, or <code>null</code> if there is none or it has expired
+     */
+    public ReportDataRepresentation get(Key key) {
+        if (!enabled) {
+            return null;
+        }
+        ReportDataRepresentation report = reports.get(key);
+        if (report == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return report;
+    }
+
+    public void put(Key key, ReportDataRepresentation report) {
+        if (!enabled) {
+            return;
+        }
+        reports.put(key, report);
+    }
+
+    /**
+     * Drop all cached reports of the given generator
+     */
+    public void invalidateGenerator(String generatorId) {
+        reports.removeIf(key -> key.generatorId.equals(generatorId));
+    }
+
+    /**
+     * Drop all cached reports computed from the given index
+     */
+    public void invalidateIndex(String index) {
+        reports.removeIf(key -> key.index.equals(index));
+    }
+
+    /**
+     * Drop all cached reports based on the process with the given definition key
+     */
+    public void invalidateProcessDefinition(String processDefinitionKey) {
+        reports.removeIf(key -> key.processDefinitionKeys.contains(processDefinitionKey));
+    }
+
+    public void invalidateAll() {
+        reports.clear();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return reports.getEvictionCount();
+    }
+
+    public int getSize() {
+        return reports.size();
+    }
+
+    /**
+     * Identifies a generated report. Parameters are normalised so that their order does not matter.
+     */
+    public static class Key {
+
+        protected final String generatorId;
+        protected final String index;
+        protected final String parameters;
+        protected final Set<String> processDefinitionKeys;
+
+        public Key(String generatorId, String index, Map<String, Object> parameters, String... processDefinitionKeys) {
+            this.generatorId = generatorId;
+            this.index = index;
+            this.parameters = String.valueOf(normalise(parameters != null ? parameters : Collections.emptyMap()));
+            this.processDefinitionKeys = new HashSet<>(Arrays.asList(processDefinitionKeys));
+        }
+
+        public String getGeneratorId() {
+            return generatorId;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        protected static Object normalise(Object value) {
+            if (value instanceof Map) {
+                Map<String, Object> sorted = new TreeMap<>();
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    if (entry.getValue() != null) {
+                        sorted.put(String.valueOf(entry.getKey()), normalise(entry.getValue()));
+                    }
+                }
+                return sorted;
+            } else if (value instanceof Collection) {
+                Object[] values = ((Collection<?>) value).toArray();
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = normalise(values[i]);
+                }
+                return Arrays.asList(values);
+            }
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return generatorId.equals(key.generatorId) && index.equals(key.index) && parameters.equals(key.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = generatorId.hashCode();
+            result = 31 * result + index.hashCode();
+            result = 31 * result + parameters.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return generatorId + "@" + index + parameters;
+        }
+    }
+
+    protected class InvalidatingEventListener implements ActivitiEventListener {
+
+        @Override
+        public void onEvent(ActivitiEvent event) {
+            // Process definition ids are of the form key:version:id
+            String processDefinitionId = event.getProcessDefinitionId();
+            if (processDefinitionId == null || processDefinitionId.indexOf(':') <= 0) {
+                return;
+            }
+            String processDefinitionKey = processDefinitionId.substring(0, processDefinitionId.indexOf(':'));
+
+            // Only invalidate once the variable is committed, as OrderFactsProjector only sends it then
+            CommandContext commandContext = Context.getCommandContext();
+            if (commandContext != null) {
+                commandContext.getTransactionContext().addTransactionListener(
+                        TransactionState.COMMITTED,
+                        committed -> invalidateCommitted(processDefinitionKey));
+            } else {
+                invalidateCommitted(processDefinitionKey);
+            }
+        }
+
+        protected void invalidateCommitted(String processDefinitionKey) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Invalidating cached reports for process " + processDefinitionKey);
+            }
+            invalidateProcessDefinition(processDefinitionKey);
+        }
+
+        @Override
+        public boolean isFailOnException() {
+            return false;
+        }
+    }
+}
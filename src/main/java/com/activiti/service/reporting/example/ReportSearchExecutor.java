@@ -0,0 +1,924 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.service.reporting.searchClient.AnalyticsClient;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs the searches behind a report against the analytics cluster.
+ *
+ * In parallel mode the searches of one report are fanned out over a bounded pool, so that the report takes about as
+ * long as its slowest query rather than the sum of all of them. Whatever has not come back once the report timeout
+ * has elapsed is handed back as <code>null</code>, leaving the chart empty. The timeout covers all searches of a
+ * report, including its count and its pages, when they are given the deadline of the report. A search finding the
+ * queue of the pool full is refused and its chart left empty too.
+ *
+ * In msearch mode all searches of a report are sent to the cluster in a single <code>_msearch</code> round trip
+ * instead. This needs the direct client, see below; without it the searches are run in parallel.
+ *
+ * Unless disabled, queries which only differ in their aggregations are merged into one search beforehand, see
+ * {@link ReportQueryPlan}. Identical searches against the same index which overlap in time, for example when many
+ * users open the same dashboard at once, are only sent to the cluster once and share the response.
+ *
+ * By default searches go through the analytics client the platform passes in, so that any routing or credentials it
+ * applies for the tenant are kept. Only when the direct client is switched on, and a {@link RestHighLevelClient} is
+ * available as a bean, are single searches sent through its low level REST client instead, so that the size of every
+ * response is measured. This bypasses the analytics client, and so should only be switched on where it searches the
+ * cluster in the same way. In streaming mode their responses are read as a stream, keeping only the aggregations,
+ * which the charts read their buckets from, see {@link StreamedSearchResponse}.
+ *
+ * In template mode the searches of a report are planned and serialised once into {@link QueryTemplate}s, and each
+ * report only fills in its parameters and sends the bytes through the low level REST client, also as a single
+ * <code>_msearch</code> body in msearch mode. This also needs the direct client.
+ *
+ * Every search is measured through {@link ReportMetrics}, tagged with the generator, the charts it is run for and the
+ * index. A sample of the single searches can be profiled by the cluster, see {@link SearchProfiler}.
+ *
+ * When the {@link ReportRestClient} is enabled, all searches go through it instead of the analytics client and the
+ * {@link RestHighLevelClient} of the application, with compression and its own pool of connections.
+ *
+ * Searches carry a request timeout, after which the cluster stops searching and returns what it has found so far.
+ * Searches failing with a status which suggests the cluster is only temporarily unable to answer (429, 502, 503 and
+ * 504) or with a refused connection are retried a bounded number of times, after a random backoff which doubles with
+ * each attempt, as long as the report timeout allows. All searches go through a {@link SearchCircuitBreaker}, so that
+ * once the cluster keeps failing reports no longer wait for it but leave their charts empty straight away.
+ */
+@Component
+public class ReportSearchExecutor implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportSearchExecutor.class);
+
+    public static final String MODE_SEQUENTIAL = "sequential";
+
+    public static final String MODE_PARALLEL = "parallel";
+
+    public static final String MODE_MULTI_SEARCH = "msearch";
+
+    /**
+     * The parts of a response which report searches make use of, everything else is left out by the cluster
+     */
+    public static final String FILTER_PATH = "took,timed_out,_shards,hits.total,aggregations";
+
+    /**
+     * Ignores the responses as they come in, for callers which only need them all at the end
+     */
+    protected static final BiConsumer<String, SearchResponse> IGNORE_SEARCHED = (chart, response) -> {
+    };
+
+    @Value("${custom.report.search.mode:" + MODE_PARALLEL + "}")
+    protected String mode;
+
+    @Value("${custom.report.search.threads:8}")
+    protected int threads;
+
+    @Value("${custom.report.search.queue-size:64}")
+    protected int queueSize;
+
+    @Value("${custom.report.search.timeout:30000}")
+    protected long timeoutMillis;
+
+    @Value("${custom.report.search.merge-queries:true}")
+    protected boolean mergeQueries;
+
+    @Value("${custom.report.search.coalesce:true}")
+    protected boolean coalesce;
+
+    @Value("${custom.report.search.streaming:false}")
+    protected boolean streaming;
+
+    @Value("${custom.report.search.templates:false}")
+    protected boolean templates;
+
+    @Value("${custom.report.search.request-timeout:10000}")
+    protected long requestTimeoutMillis;
+
+    @Value("${custom.report.search.retries:2}")
+    protected int retries;
+
+    @Value("${custom.report.search.retry-backoff:100}")
+    protected long retryBackoffMillis;
+
+    @Value("${custom.report.search.breaker.failure-threshold:5}")
+    protected int breakerFailureThreshold;
+
+    @Value("${custom.report.search.breaker.open-duration:30000}")
+    protected long breakerOpenMillis;
+
+    @Value("${custom.report.search.direct-client:false}")
+    protected boolean directClient;
+
+    @Autowired(required = false)
+    protected RestHighLevelClient restHighLevelClient;
+
+    @Autowired
+    protected ReportMetrics reportMetrics;
+
+    @Autowired
+    protected SearchProfiler searchProfiler;
+
+    @Autowired
+    protected ReportRestClient reportRestClient;
+
+    protected ThreadPoolExecutor executor;
+
+    protected final SingleFlight<SearchResponse> searches = new SingleFlight<>();
+
+    protected final SingleFlight<MultiSearchResponse> multiSearches = new SingleFlight<>();
+
+    protected SearchCircuitBreaker circuitBreaker;
+
+    /**
+     * The planned and compiled searches of each template key
+     */
+    protected final Map<String, TemplatedSearches> templatedSearches = new ConcurrentHashMap<>();
+
+    @Override
+    public void afterPropertiesSet() {
+        // When the queue is full a search is refused straight away and its chart left empty, rather than run on the
+        // report thread where nothing would bound how long the report waits for it
+        executor = new ThreadPoolExecutor(threads,
+                                          threads,
+                                          60L,
+                                          TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<Runnable>(queueSize),
+                                          new CustomizableThreadFactory("report-search-"),
+                                          new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        // Reports are only ever run against the one analytics cluster, so a single breaker covers it
+        circuitBreaker = new SearchCircuitBreaker(breakerFailureThreshold, breakerOpenMillis);
+
+        if (reportRestClient.isEnabled()) {
+            restHighLevelClient = reportRestClient.getRestHighLevelClient();
+        }
+        if (templates && directClient() == null) {
+            logger.warn("No direct client available for query templates, report queries will be built for each report");
+        }
+        if (MODE_MULTI_SEARCH.equals(mode) && directClient() == null) {
+            logger.warn("No direct client available for multi search, report searches will be run in parallel");
+        }
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The deadline of a report starting now, in terms of {@link System#nanoTime()}. All searches of a report share
+     * the deadline of the report, however many round trips it takes.
+     */
+    public long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * A search which only asks for aggregations: no hits are returned and they are not counted either
+     */
+    public static SearchSourceBuilder aggregationsOnly() {
+        return new SearchSourceBuilder()
+                .size(0)
+                .trackTotalHits(false);
+    }
+
+    /**
+     * Run a single search, returning <code>null</code> if it could not be executed
+     */
+    public SearchResponse search(AnalyticsClient analyticsClient,
+                                 String index,
+                                 SearchSourceBuilder query) {
+        return search(analyticsClient, null, null, index, query);
+    }
+
+    /**
+     * Run a single search for a chart of a generator, returning <code>null</code> if it could not be executed. The
+     * search is run on the pool, so that the calling thread only waits until the report timeout.
+     */
+    public SearchResponse search(AnalyticsClient analyticsClient,
+                                 String generatorId,
+                                 String chart,
+                                 String index,
+                                 SearchSourceBuilder query) {
+        return search(analyticsClient, generatorId, chart, index, query, deadline());
+    }
+
+    /**
+     * As {@link #search(AnalyticsClient, String, String, String, SearchSourceBuilder)}, waiting no longer than the
+     * given deadline of the report, see {@link #deadline()}
+     */
+    public SearchResponse search(AnalyticsClient analyticsClient,
+                                 String generatorId,
+                                 String chart,
+                                 String index,
+                                 SearchSourceBuilder query,
+                                 long deadline) {
+        Map<String, String> tags = ReportMetrics.tags(generatorId, chart, index);
+        // A report which has run out of time sends no further searches, such as the next page of a chart
+        if (deadline - System.nanoTime() <= 0) {
+            logger.warn("Report timeout of " + timeoutMillis + "ms elapsed, not searching for " + tags);
+            return null;
+        }
+        return await("index " + index, searchAsync(analyticsClient, tags, index, query, executor, deadline), deadline);
+    }
+
+    /**
+     * Start a search on the given executor. If an identical search against the same index is already in flight,
+     * its future is returned instead so that the cluster only sees it once.
+     */
+    protected CompletableFuture<SearchResponse> searchAsync(AnalyticsClient analyticsClient,
+                                                            Map<String, String> tags,
+                                                            String index,
+                                                            SearchSourceBuilder query,
+                                                            Executor searchExecutor,
+                                                            long deadline) {
+        Callable<SearchResponse> call = () -> doSearch(analyticsClient, tags, index, query, deadline);
+        if (!coalesce) {
+            return runAsync(call, searchExecutor);
+        }
+        return searches.submit(index + "\n" + query, call, searchExecutor);
+    }
+
+    protected SearchResponse doSearch(AnalyticsClient analyticsClient,
+                                      Map<String, String> tags,
+                                      String index,
+                                      SearchSourceBuilder query,
+                                      long deadline) {
+        boolean profiled = searchProfiler.sample();
+        SearchSourceBuilder source = profiled
+                ? SearchProfiler.profiled(withRequestTimeout(query))
+                : withRequestTimeout(query);
+        try {
+            return complete(tags, callCluster(tags, deadline, () -> {
+                long start = System.nanoTime();
+                try {
+                    SearchResponse response;
+                    if (directClient() == null) {
+                        response = analyticsClient.search(new SearchRequest(index).source(source));
+                        reportMetrics.searchCompleted(tags, start, response, -1);
+                    } else if (streaming && !profiled) {
+                        return streamSearch(tags, start, index, source);
+                    } else {
+                        response = fullSearch(tags, start, index, source);
+                    }
+                    if (profiled) {
+                        searchProfiler.record(tags, query, response);
+                    }
+                    return response;
+                } catch (IOException | RuntimeException e) {
+                    reportMetrics.searchFailed(tags, start);
+                    throw e;
+                }
+            }));
+        } catch (Exception e) {
+            logger.error("Error during elastic search for " + tags, e);
+            return null;
+        }
+    }
+
+    /**
+     * The response if all shards answered in time, or <code>null</code> if the search timed out or failed on some
+     * shards. Such a response only holds part of the orders, so its chart is shown as not available rather than with
+     * counts which are too low, and it is never cached, kept as a snapshot or rolled up.
+     */
+    protected SearchResponse complete(Map<String, String> tags, SearchResponse response) {
+        if (response == null || isComplete(response)) {
+            return response;
+        }
+        reportMetrics.record(ReportMetrics.SEARCH_INCOMPLETE, tags, 1);
+        logger.warn("Incomplete elastic search response for " + tags + ", timed out: " + response.isTimedOut()
+                            + ", " + response.getSuccessfulShards() + " of " + response.getTotalShards()
+                            + " shards answered");
+        return null;
+    }
+
+    /**
+     * Whether the response holds the results of all shards
+     */
+    public static boolean isComplete(SearchResponse response) {
+        return !response.isTimedOut()
+                && response.getFailedShards() == 0
+                && response.getSuccessfulShards() >= response.getTotalShards();
+    }
+
+    /**
+     * Make a call to the cluster through the circuit breaker, retrying it while it fails with a retryable error and
+     * the deadline of the report allows
+     *
+     * @return the result of the call, or <code>null</code> if the circuit breaker is open
+     * @throws Exception the error of the last attempt
+     */
+    protected <T> T callCluster(Map<String, String> tags, long deadline, Callable<T> call) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            if (!circuitBreaker.allowRequest()) {
+                reportMetrics.record(ReportMetrics.SEARCH_REJECTED, tags, 1);
+                logger.warn("Circuit breaker of the analytics cluster is open, not searching for " + tags);
+                return null;
+            }
+            try {
+                T result = call.call();
+                circuitBreaker.recordSuccess();
+                return result;
+            } catch (Exception e) {
+                int status = statusOf(e);
+                if (status >= 400 && status < 500 && status != 429) {
+                    // The cluster answered, it only could not handle this search
+                    circuitBreaker.recordSuccess();
+                } else {
+                    circuitBreaker.recordFailure();
+                }
+                long backoffMillis = backoffMillis(attempt);
+                if (attempt >= retries
+                        || !isRetryable(e)
+                        || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis) - deadline > 0) {
+                    throw e;
+                }
+                logger.warn("Retrying elastic search for " + tags + " in " + backoffMillis + "ms after " + e);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * A random backoff between zero and the retry backoff doubled for each previous attempt, so that reports which
+     * failed together do not all retry at the same moment
+     */
+    protected long backoffMillis(int attempt) {
+        long maxBackoffMillis = retryBackoffMillis << Math.min(attempt, 16);
+        return maxBackoffMillis > 0 ? ThreadLocalRandom.current().nextLong(maxBackoffMillis + 1) : 0;
+    }
+
+    /**
+     * Whether the error, or any error it was caused by, suggests that the cluster may answer if asked again
+     */
+    protected static boolean isRetryable(Throwable error) {
+        int status = statusOf(error);
+        if (status > 0) {
+            return status == 429 || status == 502 || status == 503 || status == 504;
+        }
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The HTTP status the cluster answered with, taken from the error or any error it was caused by, or
+     * <code>-1</code> if the cluster did not answer
+     */
+    protected static int statusOf(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof ResponseException) {
+                return ((ResponseException) e).getResponse().getStatusLine().getStatusCode();
+            } else if (e instanceof ElasticsearchStatusException) {
+                return ((ElasticsearchStatusException) e).status().getStatus();
+            }
+            for (Throwable suppressed : e.getSuppressed()) {
+                if (suppressed instanceof ResponseException) {
+                    return ((ResponseException) suppressed).getResponse().getStatusLine().getStatusCode();
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The query with the request timeout, leaving the given query as it is
+     */
+    protected SearchSourceBuilder withRequestTimeout(SearchSourceBuilder query) {
+        if (requestTimeoutMillis <= 0) {
+            return query;
+        }
+        return query.copyWithNewSlice(query.slice()).timeout(TimeValue.timeValueMillis(requestTimeoutMillis));
+    }
+
+    public SearchCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * The client searches are sent through directly, bypassing the analytics client, or <code>null</code> if they go
+     * through the analytics client. The report client always is, as enabling it is asking for exactly that.
+     */
+    protected RestHighLevelClient directClient() {
+        return reportRestClient.isEnabled() || directClient ? restHighLevelClient : null;
+    }
+
+    protected Response performRequest(Request request) throws IOException {
+        return reportRestClient.isEnabled()
+                ? reportRestClient.performRequest(request)
+                : directClient().getLowLevelClient().performRequest(request);
+    }
+
+    /**
+     * Send a search through the low level REST client and parse its response in full, counting its size
+     */
+    protected SearchResponse fullSearch(Map<String, String> tags,
+                                        long start,
+                                        String index,
+                                        SearchSourceBuilder query) throws IOException {
+        Request request = new Request("POST", "/" + index + "/_search");
+        request.addParameter(ReportResponses.TYPED_KEYS_PARAM, "true");
+        request.setEntity(new NStringEntity(Strings.toString(query), ContentType.APPLICATION_JSON));
+        Response response = performRequest(request);
+        try (CountingInputStream content = new CountingInputStream(response.getEntity().getContent())) {
+            SearchResponse searchResponse = ReportResponses.parse(content);
+            reportMetrics.searchCompleted(tags, start, searchResponse, content.count);
+            return searchResponse;
+        }
+    }
+
+    protected SearchResponse streamSearch(Map<String, String> tags,
+                                          long start,
+                                          String index,
+                                          SearchSourceBuilder query) throws IOException {
+        return streamSearch(tags, start, index, new NStringEntity(Strings.toString(query), ContentType.APPLICATION_JSON));
+    }
+
+    protected SearchResponse streamSearch(Map<String, String> tags,
+                                          long start,
+                                          String index,
+                                          HttpEntity body) throws IOException {
+        Request request = new Request("POST", "/" + index + "/_search");
+        request.addParameter(ReportResponses.TYPED_KEYS_PARAM, "true");
+        request.addParameter("filter_path", FILTER_PATH);
+        request.setEntity(body);
+        Response response = performRequest(request);
+        try (CountingInputStream content = new CountingInputStream(response.getEntity().getContent())) {
+            SearchResponse searchResponse = ReportResponses.parseAggregationsOnly(content);
+            reportMetrics.searchCompleted(tags, start, searchResponse, content.count);
+            return searchResponse;
+        }
+    }
+
+    /**
+     * Whether reports should run their searches from query templates
+     */
+    public boolean isTemplated() {
+        return templates && directClient() != null;
+    }
+
+    /**
+     * Run all searches of a report of the given generator from query templates. The first time a template key is
+     * seen its queries are planned and compiled, later reports with the same key only render the templates with
+     * their values. The responses are keyed and ordered in the same way as the queries.
+     *
+     * @param templateKey identifies the queries, whose templates must be the same whenever the key is
+     * @param queries     the queries with slots in place of the values, only built the first time a key is seen
+     * @param values      the values to fill the slots of the templates with
+     */
+    public Map<String, SearchResponse> searchAll(String generatorId,
+                                                 String index,
+                                                 String templateKey,
+                                                 Supplier<Map<String, SearchSourceBuilder>> queries,
+                                                 Map<String, String> values) {
+        return searchAll(generatorId, index, templateKey, queries, values, deadline(), IGNORE_SEARCHED);
+    }
+
+    /**
+     * As {@link #searchAll(String, String, String, Supplier, Map)}, waiting no longer than the given deadline of the
+     * report, see {@link #deadline()}
+     *
+     * @param searched called with each chart and its response, or <code>null</code>, as soon as its search completes
+     */
+    public Map<String, SearchResponse> searchAll(String generatorId,
+                                                 String index,
+                                                 String templateKey,
+                                                 Supplier<Map<String, SearchSourceBuilder>> queries,
+                                                 Map<String, String> values,
+                                                 long deadline,
+                                                 BiConsumer<String, SearchResponse> searched) {
+        TemplatedSearches compiled = templatedSearches.computeIfAbsent(templateKey,
+                                                                        key -> compileSearches(queries.get()));
+        Map<String, byte[]> bodies = new LinkedHashMap<>();
+        for (Map.Entry<String, QueryTemplate> template : compiled.templates.entrySet()) {
+            bodies.put(template.getKey(), template.getValue().render(values));
+        }
+        String searchKey = index + "\n" + templateKey + "\n" + values;
+        BiConsumer<String, SearchResponse> searchedCharts = compiled.plan.byChart(searched);
+
+        Map<String, SearchResponse> responses;
+        if (bodies.size() > 1 && MODE_MULTI_SEARCH.equals(mode)) {
+            responses = multiSearch(generatorId, index, searchKey, bodies, deadline);
+            responses.forEach(searchedCharts);
+        } else {
+            boolean parallel = !MODE_SEQUENTIAL.equals(mode);
+            Map<String, Future<SearchResponse>> futures = new LinkedHashMap<>();
+            responses = new LinkedHashMap<>();
+            for (Map.Entry<String, byte[]> body : bodies.entrySet()) {
+                Map<String, String> tags = ReportMetrics.tags(generatorId, body.getKey(), index);
+                Callable<SearchResponse> call = () -> doSearch(tags, index, body.getValue(), deadline);
+                CompletableFuture<SearchResponse> future = coalesce
+                        ? searches.submit(searchKey + "\n" + body.getKey(), call, executor)
+                        : runAsync(call, executor);
+                notifyWhenSearched(body.getKey(), future, deadline, searchedCharts);
+                if (parallel) {
+                    futures.put(body.getKey(), future);
+                } else {
+                    responses.put(body.getKey(), await("chart " + body.getKey(), future, deadline));
+                }
+            }
+            for (Map.Entry<String, Future<SearchResponse>> future : futures.entrySet()) {
+                responses.put(future.getKey(), await("chart " + future.getKey(), future.getValue(), deadline));
+            }
+        }
+        return compiled.plan.split(responses);
+    }
+
+    /**
+     * Plan the given queries into searches, merging them if enabled, and compile each search into a template
+     */
+    protected TemplatedSearches compileSearches(Map<String, SearchSourceBuilder> queries) {
+        ReportQueryPlan plan = mergeQueries ? ReportQueryPlan.plan(queries) : ReportQueryPlan.unmerged(queries);
+        Map<String, QueryTemplate> compiled = new LinkedHashMap<>();
+        for (Map.Entry<String, SearchSourceBuilder> search : plan.getSearches().entrySet()) {
+            compiled.put(search.getKey(), QueryTemplate.compile(withRequestTimeout(search.getValue())));
+        }
+        return new TemplatedSearches(plan, compiled);
+    }
+
+    /**
+     * Forget the compiled templates, so that they are compiled again with the current settings
+     */
+    public void clearTemplates() {
+        templatedSearches.clear();
+    }
+
+    protected SearchResponse doSearch(Map<String, String> tags, String index, byte[] body, long deadline) {
+        try {
+            return complete(tags, callCluster(tags, deadline, () -> {
+                long start = System.nanoTime();
+                try {
+                    return streamSearch(tags, start, index, new NByteArrayEntity(body, ContentType.APPLICATION_JSON));
+                } catch (IOException | RuntimeException e) {
+                    reportMetrics.searchFailed(tags, start);
+                    throw e;
+                }
+            }));
+        } catch (Exception e) {
+            logger.error("Error during elastic search for " + tags, e);
+            return null;
+        }
+    }
+
+    /**
+     * Send the given search bodies in one multi search request, as one body after the other, each after a header
+     * naming the index
+     */
+    protected Map<String, SearchResponse> multiSearch(String generatorId,
+                                                      String index,
+                                                      String searchKey,
+                                                      Map<String, byte[]> bodies,
+                                                      long deadline) {
+        byte[] header = ("{\"index\":" + new String(QueryTemplate.jsonString(index), StandardCharsets.UTF_8) + "}\n")
+                .getBytes(StandardCharsets.UTF_8);
+        int length = 0;
+        for (byte[] body : bodies.values()) {
+            length += header.length + body.length + 1;
+        }
+        ByteArrayOutputStream multiSearchBody = new ByteArrayOutputStream(length);
+        for (byte[] body : bodies.values()) {
+            multiSearchBody.write(header, 0, header.length);
+            multiSearchBody.write(body, 0, body.length);
+            multiSearchBody.write('\n');
+        }
+
+        Map<String, String> tags = ReportMetrics.tags(generatorId,
+                                                      String.join(ReportQueryPlan.SEARCH_KEY_SEPARATOR, bodies.keySet()),
+                                                      index);
+        Callable<MultiSearchResponse> call = () -> callCluster(tags, deadline, () -> {
+            long start = System.nanoTime();
+            try {
+                Request request = new Request("POST", "/_msearch");
+                request.addParameter(ReportResponses.TYPED_KEYS_PARAM, "true");
+                request.setEntity(new NByteArrayEntity(multiSearchBody.toByteArray(),
+                                                       ContentType.create("application/x-ndjson")));
+                Response response = performRequest(request);
+                try (CountingInputStream content = new CountingInputStream(response.getEntity().getContent())) {
+                    MultiSearchResponse multiSearchResponse = ReportResponses.parseMultiSearch(content);
+                    reportMetrics.searchCompleted(tags, start, null, content.count);
+                    return multiSearchResponse;
+                }
+            } catch (IOException | RuntimeException e) {
+                reportMetrics.searchFailed(tags, start);
+                throw e;
+            }
+        });
+        Future<MultiSearchResponse> future = coalesce
+                ? multiSearches.submit(searchKey, call, executor)
+                : runAsync(call, executor);
+        MultiSearchResponse multiSearchResponse = await("charts " + String.join(",", bodies.keySet()), future, deadline);
+        return multiSearchResponses(generatorId, index, bodies.keySet(), multiSearchResponse);
+    }
+
+    /**
+     * Run all searches of a report. The responses are keyed and ordered in the same way as the given queries.
+     */
+    public Map<String, SearchResponse> searchAll(AnalyticsClient analyticsClient,
+                                                 String index,
+                                                 Map<String, SearchSourceBuilder> queries) {
+        return searchAll(analyticsClient, null, index, queries);
+    }
+
+    /**
+     * Run all searches of a report of the given generator. The responses are keyed and ordered in the same way as
+     * the given queries.
+     */
+    public Map<String, SearchResponse> searchAll(AnalyticsClient analyticsClient,
+                                                 String generatorId,
+                                                 String index,
+                                                 Map<String, SearchSourceBuilder> queries) {
+        return searchAll(analyticsClient, generatorId, index, queries, deadline(), IGNORE_SEARCHED);
+    }
+
+    /**
+     * As {@link #searchAll(AnalyticsClient, String, String, Map)}, waiting no longer than the given deadline of the
+     * report, see {@link #deadline()}
+     *
+     * @param searched called with each chart and its response, or <code>null</code>, as soon as its search completes
+     */
+    public Map<String, SearchResponse> searchAll(AnalyticsClient analyticsClient,
+                                                 String generatorId,
+                                                 String index,
+                                                 Map<String, SearchSourceBuilder> queries,
+                                                 long deadline,
+                                                 BiConsumer<String, SearchResponse> searched) {
+        ReportQueryPlan plan = mergeQueries ? ReportQueryPlan.plan(queries) : ReportQueryPlan.unmerged(queries);
+        return plan.split(execute(analyticsClient,
+                                  generatorId,
+                                  index,
+                                  plan.getSearches(),
+                                  deadline,
+                                  plan.byChart(searched)));
+    }
+
+    protected Map<String, SearchResponse> execute(AnalyticsClient analyticsClient,
+                                                  String generatorId,
+                                                  String index,
+                                                  Map<String, SearchSourceBuilder> queries,
+                                                  long deadline,
+                                                  BiConsumer<String, SearchResponse> searched) {
+        if (queries.size() < 2) {
+            return searchSequentially(analyticsClient, generatorId, index, queries, deadline, searched);
+        } else if (MODE_MULTI_SEARCH.equals(mode) && directClient() != null) {
+            Map<String, SearchResponse> responses = multiSearch(generatorId, index, queries, deadline);
+            responses.forEach(searched);
+            return responses;
+        } else if (MODE_PARALLEL.equals(mode) || MODE_MULTI_SEARCH.equals(mode)) {
+            return searchInParallel(analyticsClient, generatorId, index, queries, deadline, searched);
+        }
+        return searchSequentially(analyticsClient, generatorId, index, queries, deadline, searched);
+    }
+
+    protected Map<String, SearchResponse> searchSequentially(AnalyticsClient analyticsClient,
+                                                             String generatorId,
+                                                             String index,
+                                                             Map<String, SearchSourceBuilder> queries,
+                                                             long deadline,
+                                                             BiConsumer<String, SearchResponse> searched) {
+        Map<String, SearchResponse> responses = new LinkedHashMap<>();
+        for (Map.Entry<String, SearchSourceBuilder> query : queries.entrySet()) {
+            SearchResponse response = search(analyticsClient,
+                                             generatorId,
+                                             query.getKey(),
+                                             index,
+                                             query.getValue(),
+                                             deadline);
+            searched.accept(query.getKey(), response);
+            responses.put(query.getKey(), response);
+        }
+        return responses;
+    }
+
+    protected Map<String, SearchResponse> searchInParallel(AnalyticsClient analyticsClient,
+                                                           String generatorId,
+                                                           String index,
+                                                           Map<String, SearchSourceBuilder> queries,
+                                                           long deadline,
+                                                           BiConsumer<String, SearchResponse> searched) {
+        Map<String, Future<SearchResponse>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, SearchSourceBuilder> query : queries.entrySet()) {
+            Map<String, String> tags = ReportMetrics.tags(generatorId, query.getKey(), index);
+            CompletableFuture<SearchResponse> future = searchAsync(analyticsClient,
+                                                                   tags,
+                                                                   index,
+                                                                   query.getValue(),
+                                                                   executor,
+                                                                   deadline);
+            notifyWhenSearched(query.getKey(), future, deadline, searched);
+            futures.put(query.getKey(), future);
+        }
+
+        Map<String, SearchResponse> responses = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<SearchResponse>> future : futures.entrySet()) {
+            responses.put(future.getKey(), await("chart " + future.getKey(), future.getValue(), deadline));
+        }
+        return responses;
+    }
+
+    /**
+     * Send all queries in one multi search request. A failed item only leaves its own response empty.
+     */
+    protected Map<String, SearchResponse> multiSearch(String index, Map<String, SearchSourceBuilder> queries) {
+        return multiSearch(null, index, queries, deadline());
+    }
+
+    protected Map<String, SearchResponse> multiSearch(String generatorId,
+                                                      String index,
+                                                      Map<String, SearchSourceBuilder> queries,
+                                                      long deadline) {
+        Map<String, byte[]> bodies = new LinkedHashMap<>();
+        StringBuilder key = new StringBuilder(index);
+        for (Map.Entry<String, SearchSourceBuilder> query : queries.entrySet()) {
+            String body = Strings.toString(withRequestTimeout(query.getValue()));
+            bodies.put(query.getKey(), body.getBytes(StandardCharsets.UTF_8));
+            key.append('\n').append(body);
+        }
+        return multiSearch(generatorId, index, key.toString(), bodies, deadline);
+    }
+
+    /**
+     * Hand out the items of a multi search response to the charts they were sent for, in the same order. A failed
+     * item only leaves its own response empty, a missing multi search response all of them.
+     */
+    protected Map<String, SearchResponse> multiSearchResponses(String generatorId,
+                                                               String index,
+                                                               Iterable<String> charts,
+                                                               MultiSearchResponse multiSearchResponse) {
+        Map<String, SearchResponse> responses = new LinkedHashMap<>();
+        int i = 0;
+        for (String chart : charts) {
+            MultiSearchResponse.Item item = multiSearchResponse != null ? multiSearchResponse.getResponses()[i++] : null;
+            Map<String, String> itemTags = ReportMetrics.tags(generatorId, chart, index);
+            if (item != null && item.isFailure()) {
+                reportMetrics.record(ReportMetrics.SEARCH_ERRORS, itemTags, 1);
+                logger.error("Error during elastic search for chart " + chart, item.getFailure());
+            } else if (item != null) {
+                reportMetrics.record(ReportMetrics.SEARCH_TOOK, itemTags, item.getResponse().getTook().millis());
+            }
+            responses.put(chart, item != null ? complete(itemTags, item.getResponse()) : null);
+        }
+        return responses;
+    }
+
+    /**
+     * The searches planned for the queries of a template key, each compiled into a template
+     */
+    protected static class TemplatedSearches {
+
+        protected final ReportQueryPlan plan;
+
+        protected final Map<String, QueryTemplate> templates;
+
+        protected TemplatedSearches(ReportQueryPlan plan, Map<String, QueryTemplate> templates) {
+            this.plan = plan;
+            this.templates = templates;
+        }
+    }
+
+    protected <T> CompletableFuture<T> runAsync(Callable<T> call, Executor searchExecutor) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            searchExecutor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Hand the response of a search to the listener as soon as it completes, unless it completes after the deadline
+     * when the report has already left its charts empty
+     */
+    protected void notifyWhenSearched(String searchKey,
+                                      CompletableFuture<SearchResponse> future,
+                                      long deadline,
+                                      BiConsumer<String, SearchResponse> searched) {
+        future.whenComplete((response, error) -> {
+            if (deadline - System.nanoTime() > 0) {
+                searched.accept(searchKey, error == null ? response : null);
+            }
+        });
+    }
+
+    /**
+     * Wait for a search until the deadline. A search which takes longer is left to complete in the background, as
+     * other reports may be waiting for the same search.
+     */
+    protected <T> T await(String description, Future<T> future, long deadline) {
+        try {
+            return future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            logger.warn("Search for " + description + " did not complete within the report timeout of "
+                                + timeoutMillis + "ms");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                logger.warn("Search for " + description + " refused, " + queueSize + " searches are already waiting");
+            } else {
+                logger.error("Error during elastic search for " + description, e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Counts the bytes read from a response body
+     */
+    protected static class CountingInputStream extends FilterInputStream {
+
+        protected long count;
+
+        protected CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Computes reports on a schedule so that they can be served without touching Elasticsearch.
+ *
+ * A report is taken on as a snapshot target the first time it is requested. That request generates the first snapshot
+ * itself, and from then on the report is regenerated in the background at the refresh interval of its generator,
+ * starting one interval later. If the first snapshot cannot be generated completely the caller falls back to a live
+ * query until a refresh succeeds. Requests get the latest snapshot straight away, as long as
+ * it is not older than the staleness limit of the generator; otherwise the caller falls back to a live query.
+ * Targets which have not been requested for a while are dropped again.
+ *
+ * Snapshots are enabled per generator by giving it a refresh interval, either for all generators with
+ * <code>custom.report.snapshot.refresh-interval</code> or for one generator with
+ * <code>custom.report.snapshot.&lt;generator id&gt;.refresh-interval</code>. The staleness limit can be set in the
+ * same two ways with <code>max-staleness</code>.
+ */
+@Component
+public class ReportSnapshots implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportSnapshots.class);
+
+    protected static final String PROPERTY_PREFIX = "custom.report.snapshot.";
+
+    @Autowired
+    protected Environment environment;
+
+    @Value("${custom.report.snapshot.refresh-interval:0}")
+    protected long refreshIntervalMillis;
+
+    @Value("${custom.report.snapshot.max-staleness:600000}")
+    protected long maxStalenessMillis;
+
+    @Value("${custom.report.snapshot.idle-timeout:3600000}")
+    protected long idleTimeoutMillis;
+
+    @Value("${custom.report.snapshot.max-targets:100}")
+    protected int maxTargets;
+
+    @Value("${custom.report.snapshot.threads:2}")
+    protected int threads;
+
+    protected ScheduledThreadPoolExecutor scheduler;
+
+    protected final ConcurrentMap<ReportResultCache.Key, Target> targets = new ConcurrentHashMap<>();
+
+    @Override
+    public void afterPropertiesSet() {
+        scheduler = new ScheduledThreadPoolExecutor(threads, new CustomizableThreadFactory("report-snapshot-"));
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    public boolean isEnabled(String generatorId) {
+        return refreshInterval(generatorId) > 0;
+    }
+
+    /**
+     * Get the latest snapshot of a report, or <code>null</code> if there is none recent enough. The report is taken
+     * on as a snapshot target if it is not yet, generating its first snapshot on the calling thread and using the
+     * given supplier to regenerate it. The supplier may return <code>null</code> if the report could not be generated
+     * completely, in which case the previous snapshot is kept.
+     */
+    public SnapshotReportDataRepresentation get(ReportResultCache.Key key,
+                                                Supplier<SnapshotReportDataRepresentation> generator) {
+        if (!isEnabled(key.getGeneratorId())) {
+            return null;
+        }
+
+        Target target = targets.get(key);
+        if (target == null) {
+            if (targets.size() >= maxTargets) {
+                return null;
+            }
+            Target newTarget = new Target(key, generator);
+            target = targets.putIfAbsent(key, newTarget);
+            if (target == null) {
+                target = newTarget;
+                // Rather than generating the report live while a refresh generates it once more
+                target.refresh();
+                target.schedule();
+            }
+        }
+        target.lastRead = System.currentTimeMillis();
+
+        SnapshotReportDataRepresentation snapshot = target.snapshot;
+        if (snapshot == null
+                || System.currentTimeMillis() - snapshot.getAsOf().getTime() > maxStaleness(key.getGeneratorId())) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Stop refreshing all snapshots and drop them
+     */
+    public void invalidateAll() {
+        for (Target target : targets.values()) {
+            target.cancel();
+        }
+    }
+
+    protected long refreshInterval(String generatorId) {
+        return environment.getProperty(PROPERTY_PREFIX + generatorId + ".refresh-interval",
+                                       Long.class,
+                                       refreshIntervalMillis);
+    }
+
+    protected long maxStaleness(String generatorId) {
+        return environment.getProperty(PROPERTY_PREFIX + generatorId + ".max-staleness",
+                                       Long.class,
+                                       maxStalenessMillis);
+    }
+
+    protected class Target implements Runnable {
+
+        protected final ReportResultCache.Key key;
+        protected final Supplier<SnapshotReportDataRepresentation> generator;
+        protected volatile SnapshotReportDataRepresentation snapshot;
+        protected volatile long lastRead = System.currentTimeMillis();
+        protected volatile ScheduledFuture<?> future;
+
+        protected Target(ReportResultCache.Key key, Supplier<SnapshotReportDataRepresentation> generator) {
+            this.key = key;
+            this.generator = generator;
+        }
+
+        protected void schedule() {
+            future = scheduler.scheduleWithFixedDelay(this,
+                                                      refreshInterval(key.getGeneratorId()),
+                                                      refreshInterval(key.getGeneratorId()),
+                                                      TimeUnit.MILLISECONDS);
+        }
+
+        protected void cancel() {
+            if (future != null) {
+                future.cancel(false);
+            }
+            targets.remove(key, this);
+        }
+
+        @Override
+        public void run() {
+            if (System.currentTimeMillis() - lastRead > idleTimeoutMillis) {
+                logger.debug("Dropping idle report snapshot " + key);
+                cancel();
+                return;
+            }
+            refresh();
+        }
+
+        protected void refresh() {
+            Date asOf = new Date();
+            try {
+                SnapshotReportDataRepresentation refreshed = generator.get();
+                if (refreshed != null) {
+                    refreshed.setAsOf(asOf);
+                    snapshot = refreshed;
+                }
+            } catch (RuntimeException e) {
+                // Keep the task scheduled, the next refresh may succeed
+                logger.error("Could not refresh report snapshot " + key, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending searches to a cluster which keeps failing, so that report threads fail fast instead of piling up
+ * behind a stalled node.
+ *
+ * The breaker opens after a number of consecutive failed searches. While open, searches are refused until the open
+ * duration has elapsed. A single trial search is then let through: if it succeeds the breaker closes again, if it
+ * fails the breaker stays open for another open duration.
+ */
+public class SearchCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    protected final int failureThreshold;
+
+    protected final long openNanos;
+
+    protected State state = State.CLOSED;
+
+    protected int consecutiveFailures;
+
+    protected long openedAt;
+
+    /**
+     * @param failureThreshold number of consecutive failures after which the breaker opens, <code>0</code> or less to
+     *                         never open it
+     * @param openMillis       time in milliseconds for which searches are refused once the breaker is open
+     */
+    public SearchCircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * Whether a search may be sent now. Once the open duration has elapsed, only the first caller is let through, or
+     * another one if the trial search has not come back within a further open duration.
+     */
+    public synchronized boolean allowRequest() {
+        long now = System.nanoTime();
+        if (state != State.CLOSED && now - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+            openedAt = now;
+            return true;
+        }
+        return state == State.CLOSED;
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Close the breaker, forgetting all failures
+     */
+    public synchronized void reset() {
+        recordSuccess();
+    }
+}
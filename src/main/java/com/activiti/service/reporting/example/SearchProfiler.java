@@ -0,0 +1,455 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.profile.ProfileResult;
+import org.elasticsearch.search.profile.ProfileShardResult;
+import org.elasticsearch.search.profile.aggregation.AggregationProfileShardResult;
+import org.elasticsearch.search.profile.query.QueryProfileShardResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Captures how the cluster spends its time on report searches, to find out which part of a slow chart costs the most.
+ *
+ * When enabled, a random share of the searches is run with <code>profile</code> set, and the time each shard spent
+ * on each part of the query and each aggregation is taken from the response. The slowest profiles of each chart are
+ * kept for operators to look at. Profiling can be switched on and off and the share changed while the application
+ * runs; when it is off, searches are not touched and only a flag is read for each of them.
+ *
+ * Profiles keep the shape of the query but not its values, which may be customer names or other data of a tenant:
+ * the values in the query are replaced with <code>?</code>, and the parts of the query are only described by the
+ * fields they search.
+ *
+ * The slowest profiles are kept for each chart and index, so that the searches of a busy tenant do not push out
+ * those of the other tenants.
+ *
+ * Only searches sent one by one are profiled, not those rendered from query templates or sent with
+ * <code>_msearch</code>. Profiled searches are parsed in full rather than streamed, as the profile is left out of
+ * streamed responses.
+ */
+@Component
+public class SearchProfiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(SearchProfiler.class);
+
+    public static final String REDACTED = "?";
+
+    /**
+     * Fields of a query whose text is part of its shape rather than a value searched for
+     */
+    protected static final Set<String> SHAPE_FIELDS = new HashSet<>(Arrays.asList(
+            "field", "format", "interval", "calendar_interval", "fixed_interval", "time_zone", "boost_mode",
+            "score_mode", "execution_hint", "collect_mode", "value_type", "order", "_name"));
+
+    /**
+     * Fields of a query whose number is a value searched for rather than a setting
+     */
+    protected static final Set<String> VALUE_FIELDS = new HashSet<>(Arrays.asList(
+            "value", "from", "to", "gt", "gte", "lt", "lte", "seed"));
+
+    /**
+     * A field searched in the description of a part of a Lucene query, which is followed by the value searched for
+     */
+    protected static final Pattern LUCENE_FIELD = Pattern.compile("(?:^|[\\s(+#-])([\\w.@]+):");
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${custom.report.profile.enabled:false}")
+    protected volatile boolean enabled;
+
+    @Value("${custom.report.profile.sample-rate:0.01}")
+    protected volatile double sampleRate;
+
+    @Value("${custom.report.profile.slowest:10}")
+    protected volatile int slowest;
+
+    /**
+     * The slowest profiles of each chart by index, the fastest of them first so that it is the one dropped
+     */
+    protected final Map<String, Map<String, PriorityQueue<SearchProfile>>> profiles = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        logger.info("Profiling of report searches " + (enabled ? "enabled for a share of " + sampleRate : "disabled"));
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Set the share of searches which are profiled, from <code>0</code> for none to <code>1</code> for all
+     */
+    public void setSampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1, not " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public int getSlowest() {
+        return slowest;
+    }
+
+    /**
+     * Set how many of the slowest profiles are kept for each chart and index, which applies as further profiles come
+     * in
+     */
+    public void setSlowest(int slowest) {
+        if (slowest < 1) {
+            throw new IllegalArgumentException("At least one profile must be kept for each chart, not " + slowest);
+        }
+        this.slowest = slowest;
+    }
+
+    /**
+     * Whether the next search should be profiled
+     */
+    public boolean sample() {
+        return enabled && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * A copy of the query asking for the search to be profiled
+     */
+    public static SearchSourceBuilder profiled(SearchSourceBuilder query) {
+        return query.copyWithNewSlice(query.slice()).profile(true);
+    }
+
+    /**
+     * Keep the profile of a response to a profiled search if it is among the slowest of its chart on its index
+     */
+    public void record(Map<String, String> tags, SearchSourceBuilder query, SearchResponse response) {
+        if (response == null || response.getProfileResults() == null || response.getProfileResults().isEmpty()) {
+            return;
+        }
+        SearchProfile profile = SearchProfile.of(tags, query, response);
+        PriorityQueue<SearchProfile> chartProfiles = profiles
+                .computeIfAbsent(String.valueOf(profile.getChart()), chart -> new ConcurrentHashMap<>())
+                .computeIfAbsent(String.valueOf(profile.getIndex()),
+                                 index -> new PriorityQueue<>(Comparator.comparingLong(SearchProfile::getTookMillis)));
+        synchronized (chartProfiles) {
+            chartProfiles.add(profile);
+            while (chartProfiles.size() > slowest) {
+                chartProfiles.poll();
+            }
+        }
+    }
+
+    /**
+     * The slowest profiles kept for each chart on any index, the slowest first
+     */
+    public Map<String, List<SearchProfile>> getProfiles() {
+        return getProfiles(index -> true);
+    }
+
+    /**
+     * The slowest profiles kept for each chart on the indices accepted by the given filter, the slowest first.
+     * Charts without profiles on those indices are left out.
+     */
+    public Map<String, List<SearchProfile>> getProfiles(Predicate<String> indices) {
+        Map<String, List<SearchProfile>> slowestByChart = new TreeMap<>();
+        for (Map.Entry<String, Map<String, PriorityQueue<SearchProfile>>> chartProfiles : profiles.entrySet()) {
+            List<SearchProfile> list = new ArrayList<>();
+            for (Map.Entry<String, PriorityQueue<SearchProfile>> indexProfiles : chartProfiles.getValue().entrySet()) {
+                if (indices.test(indexProfiles.getKey())) {
+                    synchronized (indexProfiles.getValue()) {
+                        list.addAll(indexProfiles.getValue());
+                    }
+                }
+            }
+            if (!list.isEmpty()) {
+                list.sort(Comparator.comparingLong(SearchProfile::getTookMillis).reversed());
+                slowestByChart.put(chartProfiles.getKey(), list);
+            }
+        }
+        return slowestByChart;
+    }
+
+    public void clear() {
+        profiles.clear();
+    }
+
+    /**
+     * The query with the values it searches for replaced, or only its size if it cannot be read
+     */
+    protected static String redactQuery(String query) {
+        try {
+            JsonNode node = objectMapper.readTree(query);
+            redact(node);
+            return objectMapper.writeValueAsString(node);
+        } catch (IOException e) {
+            return "<" + query.length() + " characters>";
+        }
+    }
+
+    protected static void redact(JsonNode node) {
+        if (node instanceof ObjectNode) {
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                JsonNode value = field.getValue();
+                if (SHAPE_FIELDS.contains(field.getKey())) {
+                    continue;
+                }
+                if (value.isTextual() || (value.isNumber() && VALUE_FIELDS.contains(field.getKey()))) {
+                    field.setValue(TextNode.valueOf(REDACTED));
+                } else if (value.isArray()) {
+                    for (int i = 0; i < value.size(); i++) {
+                        if (value.get(i).isValueNode() && !value.get(i).isBoolean()) {
+                            ((ArrayNode) value).set(i, TextNode.valueOf(REDACTED));
+                        } else {
+                            redact(value.get(i));
+                        }
+                    }
+                } else {
+                    redact(value);
+                }
+            }
+        } else if (node instanceof ArrayNode) {
+            for (JsonNode element : node) {
+                redact(element);
+            }
+        }
+    }
+
+    /**
+     * The fields searched by a part of a Lucene query, without the values searched for. The values are not quoted in
+     * the description and may contain anything, so only the fields are kept.
+     */
+    protected static String redactDescription(String description) {
+        List<String> fields = new ArrayList<>();
+        Matcher field = LUCENE_FIELD.matcher(description);
+        while (field.find()) {
+            fields.add(field.group(1) + ":" + REDACTED);
+        }
+        return String.join(" ", fields);
+    }
+
+    /**
+     * Where the time of a profiled search went, on each shard
+     */
+    public static class SearchProfile {
+
+        protected final String chart;
+
+        protected final String index;
+
+        protected final long timestamp;
+
+        protected final long tookMillis;
+
+        protected final String query;
+
+        protected final List<ShardProfile> shards;
+
+        public SearchProfile(String chart, String index, long timestamp, long tookMillis, String query,
+                             List<ShardProfile> shards) {
+            this.chart = chart;
+            this.index = index;
+            this.timestamp = timestamp;
+            this.tookMillis = tookMillis;
+            this.query = query;
+            this.shards = shards;
+        }
+
+        protected static SearchProfile of(Map<String, String> tags, SearchSourceBuilder query, SearchResponse response) {
+            List<ShardProfile> shards = new ArrayList<>();
+            for (Map.Entry<String, ProfileShardResult> shard : new TreeMap<>(response.getProfileResults()).entrySet()) {
+                shards.add(ShardProfile.of(shard.getKey(), shard.getValue()));
+            }
+            return new SearchProfile(tags.get(ReportMetrics.TAG_CHART),
+                                     tags.get(ReportMetrics.TAG_INDEX),
+                                     System.currentTimeMillis(),
+                                     response.getTook().millis(),
+                                     redactQuery(query.toString()),
+                                     Collections.unmodifiableList(shards));
+        }
+
+        public String getChart() {
+            return chart;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        /**
+         * When the search was made, in epoch milliseconds
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getTookMillis() {
+            return tookMillis;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public List<ShardProfile> getShards() {
+            return shards;
+        }
+    }
+
+    /**
+     * The time a shard spent on the parts of the query, collecting hits and on the aggregations, in nanoseconds
+     */
+    public static class ShardProfile {
+
+        protected final String shard;
+
+        protected final long queryNanos;
+
+        protected final long collectorNanos;
+
+        protected final long aggregationNanos;
+
+        protected final List<Timing> timings;
+
+        public ShardProfile(String shard, long queryNanos, long collectorNanos, long aggregationNanos,
+                            List<Timing> timings) {
+            this.shard = shard;
+            this.queryNanos = queryNanos;
+            this.collectorNanos = collectorNanos;
+            this.aggregationNanos = aggregationNanos;
+            this.timings = timings;
+        }
+
+        protected static ShardProfile of(String shard, ProfileShardResult result) {
+            long queryNanos = 0;
+            long collectorNanos = 0;
+            List<Timing> timings = new ArrayList<>();
+            for (QueryProfileShardResult search : result.getQueryProfileResults()) {
+                for (ProfileResult query : search.getQueryResults()) {
+                    queryNanos += query.getTime();
+                    addTimings(timings, Timing.QUERY, "", query);
+                }
+                if (search.getCollectorResult() != null) {
+                    collectorNanos += search.getCollectorResult().getTime();
+                }
+            }
+            long aggregationNanos = 0;
+            AggregationProfileShardResult aggregations = result.getAggregationProfileResults();
+            if (aggregations != null) {
+                for (ProfileResult aggregation : aggregations.getProfileResults()) {
+                    aggregationNanos += aggregation.getTime();
+                    addTimings(timings, Timing.AGGREGATION, "", aggregation);
+                }
+            }
+            timings.sort(Comparator.comparingLong(Timing::getNanos).reversed());
+            return new ShardProfile(shard, queryNanos, collectorNanos, aggregationNanos,
+                                    Collections.unmodifiableList(timings));
+        }
+
+        /**
+         * Add the time of a part and of the parts within it, each named by its path from the top
+         */
+        protected static void addTimings(List<Timing> timings, String kind, String parent, ProfileResult result) {
+            String description = Timing.QUERY.equals(kind)
+                    ? redactDescription(result.getLuceneDescription())
+                    : result.getLuceneDescription();
+            String path = parent + result.getQueryName() + "[" + description + "]";
+            timings.add(new Timing(kind, path, result.getTime()));
+            for (ProfileResult child : result.getProfiledChildren()) {
+                addTimings(timings, kind, path + " > ", child);
+            }
+        }
+
+        public String getShard() {
+            return shard;
+        }
+
+        public long getQueryNanos() {
+            return queryNanos;
+        }
+
+        public long getCollectorNanos() {
+            return collectorNanos;
+        }
+
+        public long getAggregationNanos() {
+            return aggregationNanos;
+        }
+
+        /**
+         * The time of every part of the query and every aggregation, the slowest first. The time of a part includes
+         * the parts within it.
+         */
+        public List<Timing> getTimings() {
+            return timings;
+        }
+    }
+
+    public static class Timing {
+
+        public static final String QUERY = "query";
+
+        public static final String AGGREGATION = "aggregation";
+
+        protected final String kind;
+
+        protected final String description;
+
+        protected final long nanos;
+
+        public Timing(String kind, String description, long nanos) {
+            this.kind = kind;
+            this.description = description;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Whether this is a part of the {@link #QUERY query} or an {@link #AGGREGATION aggregation}
+         */
+        public String getKind() {
+            return kind;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+}
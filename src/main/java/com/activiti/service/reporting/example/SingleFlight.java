@@ -0,0 +1,58 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Coalesces identical calls which overlap in time. While a call for a key is in flight, callers asking for the same
+ * key are handed its future instead of making the call again. Once it has completed the next caller starts a new one.
+ */
+public class SingleFlight<T> {
+
+    protected final ConcurrentMap<String, CompletableFuture<T>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * Get the future of the call in flight for the key, or start the call on the given executor
+     */
+    public CompletableFuture<T> submit(String key, Callable<T> call, Executor executor) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        CompletableFuture<T> inFlight = calls.putIfAbsent(key, future);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    calls.remove(key, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The callers which joined in the meantime fail with it
+            calls.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * The number of distinct calls currently in flight
+     */
+    public int size() {
+        return calls.size();
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.reporting.ReportDataRepresentation;
+
+import java.util.Date;
+
+/**
+ * Report data computed ahead of time by {@link ReportSnapshots}, carrying the time its data is from
+ */
+public class SnapshotReportDataRepresentation extends ReportDataRepresentation {
+
+    protected Date asOf;
+
+    public Date getAsOf() {
+        return asOf;
+    }
+
+    public void setAsOf(Date asOf) {
+        this.asOf = asOf;
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchResponseSections;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.aggregations.Aggregations;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A search response read as a stream, which keeps its aggregations as the JSON they came in, with typed keys.
+ *
+ * Charts are converted from the JSON by {@link StreamingChartConverter} without building the aggregations. They
+ * are only parsed into the usual aggregation objects when asked for, by the charts which change the response
+ * before it is converted, such as those rolled up by month or approximated.
+ */
+public class StreamedSearchResponse extends SearchResponse {
+
+    protected final byte[] aggregationsJson;
+
+    protected volatile Aggregations aggregations;
+
+    public StreamedSearchResponse(SearchResponseSections sections,
+                                  byte[] aggregationsJson,
+                                  int totalShards,
+                                  int successfulShards,
+                                  int skippedShards,
+                                  long took) {
+        super(sections,
+              null,
+              totalShards,
+              successfulShards,
+              skippedShards,
+              took,
+              ShardSearchFailure.EMPTY_ARRAY,
+              Clusters.EMPTY);
+        this.aggregationsJson = aggregationsJson;
+    }
+
+    /**
+     * The aggregations object of the response with typed keys, or <code>null</code> if it had none. It is shared
+     * by all charts of the response and must not be changed.
+     */
+    public byte[] getAggregationsJson() {
+        return aggregationsJson;
+    }
+
+    @Override
+    public Aggregations getAggregations() {
+        if (aggregationsJson == null) {
+            return null;
+        }
+        // Parsing twice when asked for at the same time gives the same aggregations, so it is not locked
+        Aggregations parsed = aggregations;
+        if (parsed == null) {
+            try {
+                parsed = ReportResponses.parseAggregations(aggregationsJson);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not parse the aggregations of a streamed response", e);
+            }
+            aggregations = parsed;
+        }
+        return parsed;
+    }
+
+    @Override
+    public XContentBuilder innerToXContent(XContentBuilder builder, Params params) throws IOException {
+        super.innerToXContent(builder, params);
+        if (aggregationsJson != null) {
+            builder.rawField(Aggregations.AGGREGATIONS_FIELD,
+                             new ByteArrayInputStream(aggregationsJson),
+                             XContentType.JSON);
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.elasticsearch.search.aggregations.Aggregation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the buckets of a chart from the aggregations of a {@link StreamedSearchResponse} with the Jackson streaming
+ * parser and hands them one at a time to the chart, without building the aggregations of the response.
+ *
+ * The aggregation of the chart is a <code>terms</code> or <code>date_histogram</code> aggregation, whose buckets
+ * are counted by documents or by the <code>sum</code> aggregation of the chart, optionally split into series by a
+ * <code>terms</code> aggregation in each bucket. Anything else in the response is skipped.
+ */
+public final class StreamingChartConverter {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final String BUCKETS = "buckets";
+
+    private static final String KEY = "key";
+
+    private static final String DOC_COUNT = "doc_count";
+
+    private static final String VALUE = "value";
+
+    private StreamingChartConverter() {
+    }
+
+    /**
+     * Receives the buckets of a chart in the order of the response
+     */
+    @FunctionalInterface
+    public interface BucketWriter {
+
+        /**
+         * @param series the key of the series of the bucket, or <code>null</code> if the chart has no series
+         * @param key    the key of the bucket, a string for terms and the time in milliseconds for histograms
+         * @param value  the number of documents of the bucket, or its sum
+         */
+        void write(String series, Object key, Number value);
+    }
+
+    /**
+     * Hand the buckets of the named aggregation to the writer
+     *
+     * @param valueName  the name of the sum aggregation giving the value of each bucket, or <code>null</code> to
+     *                   count the documents
+     * @param seriesName the name of the terms aggregation splitting each bucket into series, or <code>null</code>
+     * @return whether the response holds the aggregation
+     */
+    public static boolean convert(byte[] aggregationsJson,
+                                  String name,
+                                  String valueName,
+                                  String seriesName,
+                                  BucketWriter writer) throws IOException {
+        if (aggregationsJson == null) {
+            return false;
+        }
+        try (JsonParser parser = JSON.createParser(aggregationsJson)) {
+            if (!findAggregation(parser, name)) {
+                return false;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && BUCKETS.equals(field)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readBucket(parser, valueName, seriesName, writer);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Count the buckets of the named aggregation, including the buckets of nested aggregations
+     */
+    public static long countBuckets(byte[] aggregationsJson, String name) throws IOException {
+        if (aggregationsJson == null) {
+            return 0;
+        }
+        try (JsonParser parser = JSON.createParser(aggregationsJson)) {
+            return findAggregation(parser, name) ? countBuckets(parser) : 0;
+        }
+    }
+
+    /**
+     * Move the parser onto the start of the named aggregation among the top level aggregations
+     */
+    private static boolean findAggregation(JsonParser parser, String name) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT && name.equals(untyped(field))) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    /**
+     * Read a bucket and write it, or its series, once all of it has been read, as its fields may come in any order
+     */
+    private static void readBucket(JsonParser parser,
+                                   String valueName,
+                                   String seriesName,
+                                   BucketWriter writer) throws IOException {
+        Object key = null;
+        long docCount = 0;
+        double sum = 0;
+        List<String> seriesKeys = seriesName != null ? new ArrayList<>() : null;
+        List<Long> seriesCounts = seriesName != null ? new ArrayList<>() : null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (KEY.equals(field)) {
+                key = token == JsonToken.VALUE_NUMBER_INT ? (Object) parser.getLongValue() : parser.getText();
+            } else if (DOC_COUNT.equals(field)) {
+                docCount = parser.getLongValue();
+            } else if (token == JsonToken.START_OBJECT && valueName != null && valueName.equals(untyped(field))) {
+                sum = readValue(parser);
+            } else if (token == JsonToken.START_OBJECT && seriesName != null && seriesName.equals(untyped(field))) {
+                readSeries(parser, seriesKeys, seriesCounts);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (seriesName == null) {
+            writer.write(null, key, valueName != null ? (Number) sum : (Number) docCount);
+        } else {
+            for (int i = 0; i < seriesKeys.size(); i++) {
+                writer.write(seriesKeys.get(i), key, seriesCounts.get(i));
+            }
+        }
+    }
+
+    /**
+     * Read the value of a sum aggregation, which has none when no document has the field
+     */
+    private static double readValue(JsonParser parser) throws IOException {
+        double value = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (VALUE.equals(field) && token.isNumeric()) {
+                value = parser.getDoubleValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return value;
+    }
+
+    private static void readSeries(JsonParser parser, List<String> keys, List<Long> counts) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_ARRAY || !BUCKETS.equals(field)) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String key = null;
+                long docCount = 0;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (KEY.equals(field)) {
+                        key = parser.getText();
+                    } else if (DOC_COUNT.equals(field)) {
+                        docCount = parser.getLongValue();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                keys.add(key);
+                counts.add(docCount);
+            }
+        }
+    }
+
+    /**
+     * Count the buckets of the aggregation the parser is on, and of all aggregations within them
+     */
+    private static long countBuckets(JsonParser parser) throws IOException {
+        long count = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_ARRAY && BUCKETS.equals(field)) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    count++;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        if (parser.nextToken() == JsonToken.START_OBJECT) {
+                            count += countBuckets(parser);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The name of an aggregation without the type in front of it
+     */
+    private static String untyped(String typedKey) {
+        return typedKey.substring(typedKey.indexOf(Aggregation.TYPED_KEYS_DELIMITER) + 1);
+    }
+}
@@ -39,8 +39,11 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -66,16 +69,32 @@ public class CustomBootstrap implements BootstrapConfigurer {
 
     private final Logger log = LoggerFactory.getLogger(CustomBootstrap.class);
 
+    /**
+     * Bundled model JSON and thumbnails, read from the classpath once for each bootstrap and dropped after it
+     */
+    protected final Map<String, ModelArtifact> modelArtifacts = new HashMap<String, ModelArtifact>();
+
     public void applicationContextInitialized(ApplicationContext applicationContext) {
+        long start = System.currentTimeMillis();
+        try {
+            importApp();
+        } finally {
+            modelArtifacts.clear();
+        }
+        log.info("Custom App initialization took " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    protected void importApp() {
 
         // Need to be done in a separate TX, otherwise the LDAP sync won't see the created app
         // Can't use @Transactional here, cause it seems not to be applied as wanted
+        // All models of the app are saved and deployed in this one TX
 
         transactionTemplate.execute(new TransactionCallback<Void>() {
 
             public Void doInTransaction(TransactionStatus status) {
 
-                if (findAppWithName(APP_NAME) != null) {
+                if (appExists(APP_NAME)) {
                     log.info("The database already contains an app of the same name so skipping Custom App initialization");
                     return null;
                 }
@@ -118,7 +137,6 @@ public class CustomBootstrap implements BootstrapConfigurer {
                 return null;
             }
         });
-
     }
 
     @Autowired
@@ -146,6 +164,9 @@ public class CustomBootstrap implements BootstrapConfigurer {
     @Autowired
     protected ObjectMapper objectMapper;
 
+    @PersistenceContext
+    protected EntityManager entityManager;
+
     protected User findAdminUser() {
         User adminUser = null;
         List<User> userResults = userRepository.findUsersWithCapability(Capabilities.TENANT_MGMT);
@@ -158,14 +179,22 @@ public class CustomBootstrap implements BootstrapConfigurer {
         return adminUser;
     }
 
-    protected Model findAppWithName(String appName) {
-        List<Model> dataAppModels = modelRepository.findModelsByModelTypeAndReferenceIdOrNullReferenceId(Model.MODEL_TYPE_APP, 1L);
-        for (Model model : dataAppModels) {
-            if (model.getName().equalsIgnoreCase(appName)) {
-                return model;
-            }
-        }
-        return null;
+    /**
+     * Whether there is an app of the given name, looked up by the database rather than by loading every app model.
+     * The name is compared as the bootstrap stores it, so that an index on the name can be used; an app renamed
+     * to another case is not taken for the bundled one.
+     */
+    protected boolean appExists(String appName) {
+        // The same app models as findModelsByModelTypeAndReferenceIdOrNullReferenceId(MODEL_TYPE_APP, 1L)
+        return !entityManager.createQuery("select m.id from Model m where m.modelType = :modelType"
+                                                  + " and (m.referenceId = :referenceId or m.referenceId is null)"
+                                                  + " and m.name = :name", Long.class)
+                .setParameter("modelType", Model.MODEL_TYPE_APP)
+                .setParameter("referenceId", 1L)
+                .setParameter("name", appName)
+                .setMaxResults(1)
+                .getResultList()
+                .isEmpty();
     }
 
     protected Model createProcessModelAndUpdateIds(List<ModelJsonAndStepIdRelation> models, String processName, String processJsonFileName, User adminUser) {
@@ -177,8 +206,9 @@ public class CustomBootstrap implements BootstrapConfigurer {
 
         Model processModel;
         try {
-            String processJson = getModelAsString(processJsonFileName);
-            byte[] thumbnail = getThumbnailBytes(processJsonFileName);
+            ModelArtifact processArtifact = getModelArtifact(processJsonFileName);
+            String processJson = processArtifact.getJson();
+            byte[] thumbnail = processArtifact.getThumbnail();
             KickstartModelDefinition modelDefinition = kickstartModelService.getModelDefinition(processJson, true);
             if (modelDefinition.getStartForm() != null && modelIdMap.containsKey(modelDefinition.getStartForm().getId())) {
                 modelDefinition.getStartForm().setId(modelIdMap.get(modelDefinition.getStartForm().getId()).getId());
@@ -188,8 +218,8 @@ public class CustomBootstrap implements BootstrapConfigurer {
             processModel = createAndSaveModelArtifactWithJson(processName, null, processJson, thumbnail, Model.MODEL_TYPE_KICKSTART, adminUser);
             for (Model formModel : modelIdMap.values()) {
                 formModel.setReferenceId(processModel.getId());
-                modelRepository.save(formModel);
             }
+            modelRepository.save(modelIdMap.values());
             return processModel;
 
         } catch (Exception e) {
@@ -237,24 +267,42 @@ public class CustomBootstrap implements BootstrapConfigurer {
 
     protected Model createAndSaveModelArtifact(String name, String description, String filename, int modelType, User adminUser) {
         try {
-            String json = getModelAsString(filename);
-            byte[] thumbnail = getThumbnailBytes(filename);
-            return createAndSaveModelArtifactWithJson(name, description, json, thumbnail, modelType, adminUser);
+            ModelArtifact artifact = getModelArtifact(filename);
+            return createAndSaveModelArtifactWithJson(name, description, artifact.getJson(), artifact.getThumbnail(), modelType, adminUser);
         } catch (Exception e) {
             log.error("Error creating model artifact definition " + filename, e);
             return null;
         }
     }
 
-    protected String getModelAsString(String filename) throws IOException {
-        return IOUtils.toString(this.getClass().getClassLoader().getResourceAsStream(filename));
+    /**
+     * The JSON and thumbnail of a bundled model, read from the classpath the first time it is asked for during the
+     * bootstrap
+     */
+    public ModelArtifact getModelArtifact(String filename) throws IOException {
+        ModelArtifact artifact = modelArtifacts.get(filename);
+        if (artifact == null) {
+            artifact = new ModelArtifact(getModelAsString(filename), getThumbnailBytes(filename));
+            modelArtifacts.put(filename, artifact);
+        }
+        return artifact;
+    }
+
+    protected static String getModelAsString(String filename) throws IOException {
+        try (InputStream modelInputStream = CustomBootstrap.class.getClassLoader().getResourceAsStream(filename)) {
+            if (modelInputStream == null) {
+                throw new IOException("No model " + filename + " on the classpath");
+            }
+            return IOUtils.toString(modelInputStream, StandardCharsets.UTF_8);
+        }
     }
 
-    protected byte[] getThumbnailBytes(String filename) throws IOException {
+    protected static byte[] getThumbnailBytes(String filename) throws IOException {
         byte[] thumbnail = null;
-        InputStream thumbnailInputStream = this.getClass().getClassLoader().getResourceAsStream(filename.replace(".json", ".png"));
-        if (thumbnailInputStream != null) {
-            thumbnail = IOUtils.toByteArray(thumbnailInputStream);
+        try (InputStream thumbnailInputStream = CustomBootstrap.class.getClassLoader().getResourceAsStream(filename.replace(".json", ".png"))) {
+            if (thumbnailInputStream != null) {
+                thumbnail = IOUtils.toByteArray(thumbnailInputStream);
+            }
         }
         return thumbnail;
     }
@@ -296,6 +344,25 @@ public class CustomBootstrap implements BootstrapConfigurer {
         return appModelDef;
     }
 
+    public static class ModelArtifact {
+
+        protected final String json;
+        protected final byte[] thumbnail;
+
+        public ModelArtifact(String json, byte[] thumbnail) {
+            this.json = json;
+            this.thumbnail = thumbnail;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        public byte[] getThumbnail() {
+            return thumbnail;
+        }
+    }
+
     class ModelJsonAndStepIdRelation {
 
         protected String name;
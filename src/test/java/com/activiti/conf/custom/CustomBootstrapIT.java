@@ -0,0 +1,137 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.conf.custom;
+
+import com.activiti.domain.editor.Model;
+import com.activiti.service.editor.ModelInternalService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.orm.jpa.vendor.Database;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/**
+ * Integration tests of {@link CustomBootstrap}, looking up the app through the mapping of the application against an
+ * embedded database
+ */
+public class CustomBootstrapIT {
+
+    private static final Logger logger = LoggerFactory.getLogger(CustomBootstrapIT.class);
+
+    private static final String APP_NAME = "Fruit Orders";
+
+    private ObjectMapper objectMapper = new ObjectMapper();
+
+    private EmbeddedDatabase database;
+
+    private EntityManagerFactory entityManagerFactory;
+
+    private CustomBootstrap bootstrap;
+
+    @Before
+    public void before() {
+        database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .build();
+        HibernateJpaVendorAdapter vendorAdapter = new HibernateJpaVendorAdapter();
+        vendorAdapter.setDatabase(Database.H2);
+        vendorAdapter.setGenerateDdl(true);
+        LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+        factory.setDataSource(database);
+        factory.setPackagesToScan("com.activiti.domain");
+        factory.setJpaVendorAdapter(vendorAdapter);
+        factory.afterPropertiesSet();
+        entityManagerFactory = factory.getObject();
+
+        bootstrap = new CustomBootstrap();
+        bootstrap.entityManager = SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory);
+        bootstrap.transactionTemplate = new TransactionTemplate(new JpaTransactionManager(entityManagerFactory));
+        bootstrap.modelService = mock(ModelInternalService.class);
+    }
+
+    @After
+    public void after() {
+        entityManagerFactory.close();
+        database.shutdown();
+    }
+
+    @Test
+    public void testAppIsOnlyFoundAmongTheSharedAppModels() {
+        // Neither a process of the same name, nor an app of another user, nor an app renamed to another case
+        saveModel(APP_NAME, Model.MODEL_TYPE_KICKSTART, null);
+        saveModel(APP_NAME, Model.MODEL_TYPE_APP, 7L);
+        saveModel("Fruit orders", Model.MODEL_TYPE_APP, null);
+        assertFalse(appExists());
+
+        saveModel(APP_NAME, Model.MODEL_TYPE_APP, 1L);
+        assertTrue(appExists());
+    }
+
+    @Test
+    public void testCustomAppBootstrapOnlyLooksUpTheAppOnceImported() throws Exception {
+        saveModel(APP_NAME, Model.MODEL_TYPE_APP, null);
+
+        long start = System.nanoTime();
+        bootstrap.applicationContextInitialized(null);
+        logger.info("Bootstrap of an imported app took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        verifyZeroInteractions(bootstrap.modelService);
+    }
+
+    @Test
+    public void testBundledModelsAreReadOnceAndDroppedAfterTheBootstrap() throws Exception {
+        CustomBootstrap.ModelArtifact processModel = bootstrap.getModelArtifact("process-models/order-process-5000.json");
+        assertNotNull(objectMapper.readTree(processModel.getJson()));
+        assertSame(processModel, bootstrap.getModelArtifact("process-models/order-process-5000.json"));
+
+        saveModel(APP_NAME, Model.MODEL_TYPE_APP, null);
+        bootstrap.applicationContextInitialized(null);
+        assertTrue(bootstrap.modelArtifacts.isEmpty());
+    }
+
+    private boolean appExists() {
+        return bootstrap.transactionTemplate.execute(status -> bootstrap.appExists(APP_NAME));
+    }
+
+    private void saveModel(String name, int modelType, Long referenceId) {
+        bootstrap.transactionTemplate.execute(status -> {
+            Date now = new Date();
+            Model model = new Model();
+            model.setVersion(1);
+            model.setName(name);
+            model.setModelType(modelType);
+            model.setReferenceId(referenceId);
+            model.setCreated(now);
+            model.setLastUpdated(now);
+            model.setModelEditorJson("{}");
+            bootstrap.entityManager.persist(model);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Integration tests of {@link ApproximateMode}
+ */
+public class ApproximateModeIT extends ReportITSupport {
+
+    @Test
+    public void testSampleIsDrawnByTheRandomScoreAlone() throws Exception {
+        CompiledReport.CompiledChart chart = reportDefinitions.get(CustomVariablesReportGenerator.ID)
+                .chart(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS);
+        JsonNode query = objectMapper.readTree(approximateMode.sampledQuery(chart.filter(new ReportParameters(
+                PROCESS_KEY)), "sample", chart.getAggregation()).toString());
+
+        // The filter scores every order the same, so its score must not be multiplied into the random one
+        JsonNode functionScore = query.path("query").path("function_score");
+        assertEquals("replace", functionScore.path("boost_mode").asText());
+        assertEquals(20190101, functionScore.path("functions").get(0).path("random_score").path("seed").asInt());
+    }
+
+    @Test
+    public void testApproximateCountsAreBounded() throws Exception {
+        BoundedCache<String, Long> counts = approximateMode.counts;
+        approximateMode.counts = new BoundedCache<>(1, 0);
+        approximateMode.enabled = true;
+        try {
+            mockElasticSearchRoutes(0);
+            ReportParameters parameters = new ReportParameters(PROCESS_KEY);
+            approximateMode.isApproximate(analyticsClient, "a", INDEX_NAME, parameters, parameters.customerFilter(),
+                                          searchExecutor.deadline());
+            approximateMode.isApproximate(analyticsClient, "b", INDEX_NAME, parameters, parameters.customerFilter(),
+                                          searchExecutor.deadline());
+
+            assertEquals(1, approximateMode.counts.size());
+            assertEquals(1, approximateMode.counts.getEvictionCount());
+        } finally {
+            approximateMode.enabled = false;
+            approximateMode.counts = counts;
+        }
+    }
+}
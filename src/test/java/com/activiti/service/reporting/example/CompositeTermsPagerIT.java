@@ -0,0 +1,122 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Integration tests of {@link CompositeTermsPager}
+ */
+public class CompositeTermsPagerIT extends ReportITSupport {
+
+    @Test
+    public void testCustomersArePagedIntoTopTermsAndOther() throws Exception {
+        mockElasticSearchRoutes(0);
+        termsPager.topN = 2;
+        termsPager.pageSize = 3;
+        try {
+            SearchResponse response = termsPager.topTerms(analyticsClient,
+                                                          CustomVariablesReportGenerator.ID,
+                                                          CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS,
+                                                          INDEX_NAME,
+                                                          reportGenerator.customerOrderCountsQuery().query(),
+                                                          "customerOrders",
+                                                          "stringValue.keyword",
+                                                          searchExecutor.deadline());
+            verifySearchRoundTrips(2);
+
+            Terms customerOrders = response.getAggregations().get("customerOrders");
+            List<? extends Terms.Bucket> buckets = customerOrders.getBuckets();
+            assertEquals(3, buckets.size());
+            assertEquals("Bob's Store", buckets.get(0).getKeyAsString());
+            assertEquals(2, buckets.get(0).getDocCount());
+            assertEquals("Debbie Dolores", buckets.get(1).getKeyAsString());
+            assertEquals(2, buckets.get(1).getDocCount());
+            assertEquals(CompositeTermsPager.OTHER_KEY, buckets.get(2).getKeyAsString());
+            assertEquals(2, buckets.get(2).getDocCount());
+        } finally {
+            termsPager.topN = 10;
+            termsPager.pageSize = 500;
+        }
+    }
+
+    @Test
+    public void testPagesShareTheDeadlineOfTheReport() throws Exception {
+        mockElasticSearchRoutes(0);
+        SearchResponse response = termsPager.topTerms(analyticsClient,
+                                                      CustomVariablesReportGenerator.ID,
+                                                      CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS,
+                                                      INDEX_NAME,
+                                                      reportGenerator.customerOrderCountsQuery().query(),
+                                                      "customerOrders",
+                                                      "stringValue.keyword",
+                                                      System.nanoTime());
+
+        // A report out of time sends no further pages, and leaves its chart empty
+        assertNull(response);
+        verifySearchRoundTrips(0);
+    }
+
+    @Test
+    public void testCustomersArePagedIntoTheTopTermsOfEachMonth() throws Exception {
+        mockElasticSearchRoutes(0);
+        metricsRegistry.clear();
+        termsPager.topN = 2;
+        try {
+            SearchResponse response = termsPager.topTermsByMonth(analyticsClient,
+                                                                 CustomVariablesReportGenerator.ID,
+                                                                 CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH,
+                                                                 INDEX_NAME,
+                                                                 reportGenerator.numOrdersByCustomerAndMonthQuery().query(),
+                                                                 "ordersByMonth",
+                                                                 "createTime",
+                                                                 "customerName",
+                                                                 "stringValue.keyword",
+                                                                 searchExecutor.deadline());
+
+            Histogram ordersByMonth = response.getAggregations().get("ordersByMonth");
+            List<String> months = new ArrayList<>();
+            List<String> customers = new ArrayList<>();
+            for (Histogram.Bucket month : ordersByMonth.getBuckets()) {
+                months.add(month.getKeyAsString() + "=" + month.getDocCount());
+                Terms customerName = month.getAggregations().get("customerName");
+                for (Terms.Bucket customer : customerName.getBuckets()) {
+                    customers.add(month.getKeyAsString() + " " + customer.getKeyAsString() + "=" + customer.getDocCount());
+                }
+            }
+            // The pages are measured as searches of the chart
+            assertEquals(1, metricsRegistry.getSummary(ReportMetrics.SEARCH_ROUND_TRIP, ReportMetrics.tags(
+                    CustomVariablesReportGenerator.ID,
+                    CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH,
+                    INDEX_NAME)).getCount());
+
+            // A month without orders in between still gets its bucket
+            assertEquals(Arrays.asList("2019-11=5", "2019-12=7", "2020-01=0", "2020-02=1"), months);
+            // The top customers are those of each month, and the rest is not added to a customer called Other
+            assertEquals(Arrays.asList("2019-11 Anne=3",
+                                       "2019-11 Bob's Store=1",
+                                       "2019-11 Other=1",
+                                       "2019-12 Other=4",
+                                       "2019-12 Bob's Store=2",
+                                       "2019-12 Other (2)=1",
+                                       "2020-02 Anne=1"),
+                         customers);
+        } finally {
+            termsPager.topN = 10;
+        }
+    }
+}
@@ -1,88 +1,41 @@
 package com.activiti.service.reporting.example;
 
-import com.activiti.domain.idm.User;
-import com.activiti.service.api.ReportingIndexManager;
-import com.activiti.service.reporting.ReportingIndexManagerImpl;
-import com.activiti.service.reporting.searchClient.AnalyticsClient;
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
-import org.apache.http.concurrent.FutureCallback;
-import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
-import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
-import org.apache.http.protocol.HttpContext;
+import com.activiti.domain.reporting.ParameterDefinition;
+import com.activiti.domain.reporting.ReportDataRepresentation;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.client.CustomApplicationTestConfiguration;
 import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
 import org.elasticsearch.search.aggregations.bucket.histogram.ParsedDateHistogram;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.metrics.Sum;
-import org.junit.Before;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.SearchContext;
 import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.Resource;
-import org.springframework.test.context.ContextConfiguration;
-import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
-import static com.activiti.service.reporting.generators.ElasticSearchConstants.INDEX_VARIABLES;
-import static org.apache.http.HttpHeaders.CONTENT_TYPE;
-import static org.apache.http.HttpHeaders.WARNING;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
-import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.eq;
-import static org.mockito.Mockito.*;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Will Abson
  */
-
-@RunWith(SpringJUnit4ClassRunner.class)
-@ContextConfiguration(classes = CustomApplicationTestConfiguration.class)
-public class CustomVariablesReportGeneratorIT {
-
-    @Autowired
-    private CustomVariablesReportGenerator reportGenerator;
-
-    @Autowired
-    private AnalyticsClient analyticsClient;
-
-    @Autowired
-    private CloseableHttpAsyncClient httpClient;
-
-    private ReportingIndexManager indexManager = mock(ReportingIndexManagerImpl.class);
-
-    @Autowired
-    private User currentUser;
-
-    @Value("classpath:/elasticsearch/variables-count-orders-by-customer-month.json")
-    private Resource variablesCountOrdersByCustomerAndMonthJson;
-
-    @Value("classpath:/elasticsearch/variables-customer-orders.json")
-    private Resource customerOrdersJson;
-
-    @Value("classpath:/elasticsearch/variables-quantities-by-month.json")
-    private Resource quantitiesByMonthJson;
-
-    @Value("classpath:/elasticsearch/variables-orders-by-duedate.json")
-    private Resource ordersByDueDateJson;
-
-    private static final String INDEX_NAME = "activiti-test";
-
-    @Before
-    public void before() {
-        doReturn(INDEX_NAME)
-                .when(indexManager)
-                .getIndexForUser(eq(currentUser), eq(INDEX_VARIABLES));
-    }
+public class CustomVariablesReportGeneratorIT extends ReportITSupport {
 
     @Test
     public void testCustomerOrderCountsSearch() throws Exception {
@@ -200,45 +153,337 @@ public class CustomVariablesReportGeneratorIT {
         assertEquals(1, aprilTerms.get(1).getDocCount());
     }
 
-    private void mockElasticSearchRequest(Resource resource) throws Exception {
-        reset(httpClient);
-        doReturn(resourceAsHttpResponse(resource))
-                .when(httpClient)
-                .execute(any(HttpAsyncRequestProducer.class),
-                         any(HttpAsyncResponseConsumer.class),
-                         any(HttpContext.class),
-                         any(FutureCallback.class));
-    }
-
-    private Future<HttpResponse> resourceAsHttpResponse(Resource resource) throws Exception {
-        HttpEntity mockEntity = mock(HttpEntity.class);
-        doReturn(resource.getInputStream())
-                .when(mockEntity)
-                .getContent();
-        doReturn(new BasicHeader(CONTENT_TYPE, "application/json"))
-                .when(mockEntity)
-                .getContentType();
-
-        StatusLine mockStatusLine = mock(StatusLine.class);
-        doReturn(200)
-                .when(mockStatusLine)
-                .getStatusCode();
-
-        HttpResponse mockResponse = mock(HttpResponse.class);
-        doReturn(mockStatusLine)
-                .when(mockResponse)
-                .getStatusLine();
-        doReturn(mockEntity)
-                .when(mockResponse)
-                .getEntity();
-        doReturn(new Header[0])
-                .when(mockResponse)
-                .getHeaders(eq(WARNING));
-
-        Future<HttpResponse> mockFuture = mock(Future.class);
-        doReturn(mockResponse)
-                .when(mockFuture)
-                .get();
-        return mockFuture;
-    }
-}
\ No newline at end of file
+    @Test
+    public void testGenerateRunsChartQueriesInParallel() throws Exception {
+        // Searches are only answered once all three have been sent, which they only are when run in parallel
+        HeldSearches held = new HeldSearches(3);
+        mockElasticSearchRoutes(held);
+
+        ReportDataRepresentation reportData = generateReport();
+
+        // The two customer name queries share a search
+        verifySearchRoundTrips(3);
+        assertEquals(0, held.getLate());
+
+        // Charts should still be in their original order
+        assertEquals(CHART_TITLES, chartTitles(reportData));
+    }
+
+    @Test
+    public void testGenerateLeavesTimedOutChartsEmpty() throws Exception {
+        HeldSearches held = new HeldSearches(0);
+        mockElasticSearchRoutes(held);
+        long timeout = searchExecutor.timeoutMillis;
+        searchExecutor.timeoutMillis = 100L;
+        try {
+            // The report comes back while every search is still held back
+            ReportDataRepresentation reportData = generateReport();
+
+            assertEquals(0, held.getLate());
+            assertEquals(CHART_TITLES, chartTitles(reportData));
+            for (String description : objectMapper.valueToTree(reportData).findValuesAsText("description")) {
+                assertEquals(CustomVariablesReportGenerator.CHART_UNAVAILABLE, description);
+            }
+        } finally {
+            held.release();
+            searchExecutor.timeoutMillis = timeout;
+        }
+    }
+
+    @Test
+    public void testGenerateBatchesChartQueriesIntoOneRoundTrip() throws Exception {
+        // Before - one round trip per search
+        mockElasticSearchRoutes(0);
+        generateReport();
+        verifySearchRoundTrips(3);
+
+        // After - all charts in one multi search
+        resultCache.invalidateAll();
+        String mode = searchExecutor.mode;
+        searchExecutor.mode = ReportSearchExecutor.MODE_MULTI_SEARCH;
+        try {
+            mockElasticSearchRoutes(0);
+            ReportDataRepresentation reportData = generateReport();
+            verifySearchRoundTrips(1);
+            assertEquals(CHART_TITLES, chartTitles(reportData));
+        } finally {
+            searchExecutor.mode = mode;
+        }
+    }
+
+    @Test
+    public void testConcurrentReportsShareIdenticalSearches() throws Exception {
+        mockElasticSearchRoutes(300);
+
+        int users = 10;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService requestThreads = Executors.newFixedThreadPool(users);
+        try {
+            List<Future<ReportDataRepresentation>> reports = new ArrayList<>();
+            for (int i = 0; i < users; i++) {
+                reports.add(requestThreads.submit(() -> {
+                    start.await();
+                    return generateReport();
+                }));
+            }
+            start.countDown();
+
+            for (Future<ReportDataRepresentation> report : reports) {
+                assertEquals(CHART_TITLES, chartTitles(report.get()));
+            }
+        } finally {
+            requestThreads.shutdown();
+        }
+
+        // One backend call per distinct search, however many reports asked for it
+        verifySearchRoundTrips(3);
+    }
+
+    @Test
+    public void testReportQueriesOnlyAskForAggregations() {
+        for (SearchSourceBuilder query : reportGenerator.reportQueries().values()) {
+            assertEquals(0, query.size());
+            assertEquals(SearchContext.TRACK_TOTAL_HITS_DISABLED, query.trackTotalHitsUpTo().intValue());
+            assertFalse(query.toString().contains("\"must\""));
+            assertTrue(query.toString().contains("\"filter\""));
+        }
+    }
+
+    @Test
+    public void testParametersAreDefinedWithTheirValues() throws Exception {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put(ReportParameters.PARAMETER_CUSTOMER, "Alice Smith");
+
+        String parameters = reportGenerator.getParameters(objectMapper, values);
+
+        assertEquals(Arrays.asList(ReportParameters.PARAMETER_DATE_RANGE,
+                                   ReportParameters.PARAMETER_CUSTOMER,
+                                   ReportParameters.PARAMETER_PROCESS_DEFINITION),
+                     objectMapper.readTree(parameters).findValuesAsText("id"));
+        assertEquals("Alice Smith", objectMapper.readTree(parameters).get("parameters").get(1).get("value").asText());
+
+        // The same definitions are handed out without values
+        List<String> ids = new ArrayList<>();
+        for (ParameterDefinition definition : reportGenerator.getParameterDefinitions().getParameters()) {
+            ids.add(definition.getId());
+            assertNull(definition.getValue());
+        }
+        assertEquals(objectMapper.readTree(parameters).findValuesAsText("id"), ids);
+    }
+
+    @Test
+    public void testFailedChartsAreMarkedInThePartialReport() throws Exception {
+        mockElasticSearchRoutes(0, "ordersByMonthDue", badRequestJson, 400);
+
+        ReportDataRepresentation reportData = generateReport();
+
+        // All charts are there, only the failed one says it could not be loaded
+        assertEquals(CHART_TITLES, chartTitles(reportData));
+        List<String> descriptions = objectMapper.valueToTree(reportData).findValuesAsText("description");
+        assertEquals(CustomVariablesReportGenerator.CHART_UNAVAILABLE, descriptions.get(2));
+        assertEquals(1, descriptions.stream().filter(CustomVariablesReportGenerator.CHART_UNAVAILABLE::equals).count());
+
+        // The partial report is not cached
+        mockElasticSearchRoutes(0);
+        reportData = generateReport();
+        assertFalse(objectMapper.valueToTree(reportData).findValuesAsText("description")
+                            .contains(CustomVariablesReportGenerator.CHART_UNAVAILABLE));
+    }
+
+    @Test
+    public void testTimedOutSearchesAreNotShownCachedOrRolledUp() throws Exception {
+        monthlyRollups.clock = Clock.fixed(Instant.parse("2019-12-15T10:00:00Z"), ZoneOffset.UTC);
+        monthlyRollups.invalidateAll();
+        monthlyRollups.enabled = true;
+        try {
+            // Only one of the two shards answered before the request timeout
+            mockElasticSearchRoutes(0, "totalItems", quantitiesByMonthTimedOutJson, 200);
+
+            ReportDataRepresentation reportData = generateReport();
+
+            List<String> descriptions = objectMapper.valueToTree(reportData).findValuesAsText("description");
+            assertEquals(CustomVariablesReportGenerator.CHART_UNAVAILABLE, descriptions.get(1));
+            assertEquals(1, descriptions.stream().filter(CustomVariablesReportGenerator.CHART_UNAVAILABLE::equals).count());
+            assertTrue(monthlyRollups.rollups.keys().stream()
+                               .noneMatch(key -> key.contains("/" + CustomVariablesReportGenerator.CHART_QUANTITIES_BY_MONTH + "/")));
+
+            // The partial report is not cached, the next one searches again
+            mockElasticSearchRoutes(0);
+            reportData = generateReport();
+            assertFalse(objectMapper.valueToTree(reportData).findValuesAsText("description")
+                                .contains(CustomVariablesReportGenerator.CHART_UNAVAILABLE));
+        } finally {
+            monthlyRollups.enabled = false;
+            monthlyRollups.clock = Clock.systemUTC();
+            monthlyRollups.invalidateAll();
+        }
+    }
+
+    @Test
+    public void testBusyReportIsReturnedStraightAwayWhenTheTenantQueueIsFull() throws Exception {
+        mockElasticSearchRoutes(0);
+        metricsRegistry.clear();
+        reportAdmission.maxConcurrent = 1;
+        reportAdmission.tenantQueueSize = 0;
+        CountDownLatch blocking = new CountDownLatch(1);
+        ExecutorService threads = Executors.newSingleThreadExecutor();
+        try {
+            threads.submit(() -> reportAdmission.run(CustomVariablesReportGenerator.ID, INDEX_NAME, () -> {
+                awaitQuietly(blocking);
+                return null;
+            }));
+            waitUntil(() -> reportAdmission.getRunning() == 1);
+
+            ReportDataRepresentation reportData = generateReport();
+            assertEquals(CHART_TITLES, chartTitles(reportData));
+            for (String description : objectMapper.valueToTree(reportData).findValuesAsText("description")) {
+                assertEquals(CustomVariablesReportGenerator.CHART_BUSY, description);
+            }
+            verifySearchRoundTrips(0);
+            assertEquals(1, metricsRegistry.getSummary(ReportMetrics.ADMISSION_REJECTED,
+                                                       ReportMetrics.tags(CustomVariablesReportGenerator.ID, null, INDEX_NAME)).getCount());
+        } finally {
+            blocking.countDown();
+            threads.shutdownNow();
+            reportAdmission.maxConcurrent = 8;
+            reportAdmission.tenantQueueSize = 20;
+        }
+    }
+
+    @Test
+    public void testSlowReportIsPickedUpOnceItsJobIsDone() throws Exception {
+        HeldSearches held = new HeldSearches(0);
+        mockElasticSearchRoutes(held);
+        reportJobs.enabled = true;
+        reportJobs.waitMillis = 50L;
+        try {
+            // The request does not wait for the report, whose searches are still held back
+            ReportDataRepresentation reportData = generateReport();
+            assertEquals(CHART_TITLES, chartTitles(reportData));
+            String description = objectMapper.valueToTree(reportData).findValuesAsText("description").get(0);
+            assertTrue(description, description.startsWith("This report is being generated as job "));
+
+            // The job can be polled by its id
+            String jobId = description.substring("This report is being generated as job ".length()).split(",")[0];
+            ReportJob job = reportJobs.get(jobId);
+            assertNotNull(job);
+            held.release();
+            assertNotNull(job.getResult().get(5, TimeUnit.SECONDS));
+            assertEquals(ReportJob.Status.DONE, job.getStatus());
+            assertEquals(4, job.getChartsCompleted());
+            for (ReportJob.ChartStatus chartStatus : job.getCharts().values()) {
+                assertEquals(ReportJob.ChartStatus.DONE, chartStatus);
+            }
+
+            // The next request gets the report without searching again
+            reportData = generateReport();
+            assertEquals(CHART_TITLES, chartTitles(reportData));
+            assertFalse(objectMapper.valueToTree(reportData).findValuesAsText("description").get(0)
+                                .startsWith("This report is being generated"));
+            verifySearchRoundTrips(3);
+        } finally {
+            held.release();
+            reportJobs.enabled = false;
+            reportJobs.waitMillis = 2000L;
+        }
+    }
+
+    @Test
+    public void testTemplatedReportIsCompiledOnceAndOnlyFillsInItsParameters() throws Exception {
+        searchExecutor.templates = true;
+        searchExecutor.clearTemplates();
+        try {
+            mockElasticSearchRoutes(0);
+            ReportDataRepresentation reportData = generateReport();
+
+            // The customer charts still share a search
+            verifySearchRoundTrips(3);
+            assertEquals(CHART_TITLES, chartTitles(reportData));
+            assertFalse(objectMapper.valueToTree(reportData).findValuesAsText("description")
+                                .contains(CustomVariablesReportGenerator.CHART_UNAVAILABLE));
+            assertEquals(1, searchExecutor.templatedSearches.size());
+
+            resultCache.invalidateAll();
+            mockElasticSearchRoutes(0);
+            assertEquals(CHART_TITLES, chartTitles(generateReport()));
+            verifySearchRoundTrips(3);
+            assertEquals(1, searchExecutor.templatedSearches.size());
+        } finally {
+            searchExecutor.templates = false;
+            searchExecutor.clearTemplates();
+        }
+    }
+
+    @Test
+    public void testVeryLargeTenantsGetApproximateChartsByCustomer() throws Exception {
+        approximateMode.enabled = true;
+        approximateMode.threshold = 1000;
+        approximateMode.counts.clear();
+        try {
+            mockElasticSearchRoutes(0);
+            ReportDataRepresentation reportData = generateReport();
+
+            // One count, then the sampled charts by customer share a search
+            verifySearchRoundTrips(4);
+            assertEquals(CHART_TITLES, chartTitles(reportData));
+            List<String> descriptions = objectMapper.valueToTree(reportData).findValuesAsText("description");
+            CompiledReport report = reportDefinitions.get(CustomVariablesReportGenerator.ID);
+            assertEquals(report.chart(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS).getDescription()
+                                 + ". Approximate, scaled up from a random sample of 6 orders: "
+                                 + "shares are within 40.0 percentage points",
+                         descriptions.get(0));
+            assertTrue(descriptions.get(3).startsWith(
+                    report.chart(CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH).getDescription()
+                            + ". Approximate"));
+            assertTrue(descriptions.get(3).endsWith(
+                    ". Up to about 4210 distinct customers ordered in a month, counted to within 0.8%"));
+
+            // Counts are scaled up from the 6 orders sampled to the 60000 selected
+            SearchResponse unsampled = ApproximateMode.unsample(
+                    ReportResponses.parse(customerOrdersSampledJson.getInputStream()));
+            Terms customerOrders = unsampled.getAggregations().get("customerOrders");
+            assertEquals(20000, customerOrders.getBucketByKey("Bob's Store").getDocCount());
+            Histogram ordersByMonth = unsampled.getAggregations().get("ordersByMonth");
+            assertEquals(30000, ordersByMonth.getBuckets().get(0).getDocCount());
+
+            // The count is kept, only the charts are searched again
+            resultCache.invalidateAll();
+            mockElasticSearchRoutes(0);
+            generateReport();
+            verifySearchRoundTrips(3);
+        } finally {
+            approximateMode.enabled = false;
+            approximateMode.threshold = 10000000;
+            approximateMode.counts.clear();
+        }
+    }
+
+    @Test
+    public void testReportIsAnsweredFromOrderFactsWithOneSearch() throws Exception {
+        orderFacts.reports = true;
+        try {
+            mockElasticSearchRoutes(0);
+            ReportDataRepresentation reportData = generateReport();
+
+            verifySearchRoundTrips(1);
+            assertEquals(CHART_TITLES, chartTitles(reportData));
+            assertFalse(objectMapper.valueToTree(reportData).findValuesAsText("description")
+                                .contains(CustomVariablesReportGenerator.CHART_UNAVAILABLE));
+
+            // Orders are selected by tenant, and the customer only narrows down the charts by customer
+            Map<String, SearchSourceBuilder> queries = reportDefinitions
+                    .get(CustomVariablesReportGenerator.ORDER_FACTS_ID)
+                    .queries(ReportParameters.from(Collections.singletonMap(ReportParameters.PARAMETER_CUSTOMER, "Acme"),
+                                                   PROCESS_KEY)
+                                     .forTenant("tenant_1"));
+            for (SearchSourceBuilder query : queries.values()) {
+                assertTrue(query.toString().contains("\"tenant_1\""));
+                assertFalse(query.toString().contains("stringValue"));
+            }
+            assertTrue(queries.get(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS).toString().contains("Acme"));
+            assertFalse(queries.get(CustomVariablesReportGenerator.CHART_QUANTITIES_BY_MONTH).toString().contains("Acme"));
+        } finally {
+            orderFacts.reports = false;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.bucket.histogram.ParsedDateHistogram;
+import org.elasticsearch.search.aggregations.metrics.Sum;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of {@link MonthlyRollups}
+ */
+public class MonthlyRollupsIT extends ReportITSupport {
+
+    @Test
+    public void testClosedMonthsAreServedFromRollups() throws Exception {
+        monthlyRollups.clock = Clock.fixed(Instant.parse("2019-12-15T10:00:00Z"), ZoneOffset.UTC);
+        monthlyRollups.invalidateAll();
+        mockElasticSearchRoutes(0);
+
+        // First run queries the whole history and rolls up November
+        MonthlyRollups.Plan plan = monthlyRollups.plan("test");
+        SearchSourceBuilder query = plan.restrict(reportGenerator.totalQuantityByMonthQuery(), "createTime");
+        assertFalse(plan.isIncremental());
+        assertFalse(query.toString().contains("\"range\""));
+        plan.merge(searchExecutor.search(analyticsClient, INDEX_NAME, query), "ordersByMonth");
+
+        // Second run only queries December
+        plan = monthlyRollups.plan("test");
+        query = plan.restrict(reportGenerator.totalQuantityByMonthQuery(), "createTime");
+        assertTrue(plan.isIncremental());
+        assertTrue(query.toString().contains("\"range\""));
+        SearchResponse response = plan.merge(searchExecutor.search(analyticsClient, INDEX_NAME, query), "ordersByMonth");
+
+        ParsedDateHistogram aggregation = response.getAggregations().get("ordersByMonth");
+        List<? extends Histogram.Bucket> buckets = aggregation.getBuckets();
+        assertEquals(2, buckets.size());
+        assertEquals("2019-11-01T00:00Z", buckets.get(0).getKey().toString());
+        assertEquals(33, ((Sum) buckets.get(0).getAggregations().get("totalItems")).getValue(), 0);
+        assertEquals("2019-12-01T00:00Z", buckets.get(1).getKey().toString());
+        assertEquals(6, ((Sum) buckets.get(1).getAggregations().get("totalItems")).getValue(), 0);
+
+        // Once December has closed the whole history is queried again
+        monthlyRollups.clock = Clock.fixed(Instant.parse("2020-01-02T10:00:00Z"), ZoneOffset.UTC);
+        assertFalse(monthlyRollups.plan("test").isIncremental());
+
+        monthlyRollups.clock = Clock.systemUTC();
+        monthlyRollups.invalidateAll();
+    }
+
+    @Test
+    public void testRollupsAreBoundedAndOnlyTakenFromCompleteResponses() throws Exception {
+        BoundedCache<String, MonthlyRollups.Rollup> rollups = monthlyRollups.rollups;
+        monthlyRollups.rollups = new BoundedCache<>(2, 0);
+        monthlyRollups.clock = Clock.fixed(Instant.parse("2019-12-15T10:00:00Z"), ZoneOffset.UTC);
+        try {
+            mockElasticSearchRoutes(0);
+            for (String key : Arrays.asList("a", "b", "c")) {
+                MonthlyRollups.Plan plan = monthlyRollups.plan(key);
+                plan.merge(searchExecutor.search(analyticsClient,
+                                                 INDEX_NAME,
+                                                 plan.restrict(reportGenerator.totalQuantityByMonthQuery(), "createTime")),
+                           "ordersByMonth");
+            }
+            // The least recently used rollup made room
+            assertEquals(Arrays.asList("b", "c"), monthlyRollups.rollups.keys());
+            assertEquals(1, monthlyRollups.rollups.getEvictionCount());
+
+            // A response missing shards is not rolled up
+            MonthlyRollups.Plan plan = monthlyRollups.plan("d");
+            assertNull(plan.merge(ReportResponses.parse(quantitiesByMonthTimedOutJson.getInputStream()), "ordersByMonth"));
+            assertFalse(monthlyRollups.rollups.keys().contains("d"));
+        } finally {
+            monthlyRollups.clock = Clock.systemUTC();
+            monthlyRollups.rollups = rollups;
+            monthlyRollups.invalidateAll();
+        }
+    }
+}
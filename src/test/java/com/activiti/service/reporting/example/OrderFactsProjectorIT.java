@@ -0,0 +1,84 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.idm.User;
+import org.activiti.engine.delegate.event.ActivitiVariableEvent;
+import org.activiti.engine.repository.ProcessDefinition;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Integration tests of {@link OrderFactsProjector}
+ */
+public class OrderFactsProjectorIT extends ReportITSupport {
+
+    @Test
+    public void testVariablesAreProjectedOntoTheDocumentOfTheirOrder() {
+        ActivitiVariableEvent event = mock(ActivitiVariableEvent.class);
+        doReturn("duedate").when(event).getVariableName();
+        doReturn(new Date(1569888000000L)).when(event).getVariableValue();
+        doReturn("2501").when(event).getProcessInstanceId();
+
+        UpdateRequest update = orderFacts.update(event, PROCESS_KEY, "tenant_1");
+        assertEquals(orderFacts.getIndex(), update.index());
+        assertEquals("2501", update.id());
+        assertEquals(Collections.singletonMap(OrderFactsProjector.FIELD_DUE_DATE, 1569888000000L),
+                     update.doc().sourceAsMap());
+
+        // The first variable of an order creates it, with the time it was placed
+        Map<String, Object> order = update.upsertRequest().sourceAsMap();
+        assertEquals("tenant_1", order.get(OrderFactsProjector.FIELD_TENANT_ID));
+        assertEquals(1569888000000L, order.get(OrderFactsProjector.FIELD_DUE_DATE));
+        assertNotNull(order.get(ReportParameters.DATE_FIELD));
+    }
+
+    @Test
+    public void testOrdersWithoutATenantAreOnlyReadByUsersWithoutATenant() {
+        ActivitiVariableEvent event = mock(ActivitiVariableEvent.class);
+        doReturn("quantity").when(event).getVariableName();
+        doReturn(3L).when(event).getVariableValue();
+        doReturn("2502").when(event).getProcessInstanceId();
+
+        // The engine has no tenant as an empty tenant id
+        Map<String, Object> order = orderFacts.update(event, PROCESS_KEY, "")
+                .upsertRequest().sourceAsMap();
+        assertEquals(OrderFactsProjector.NO_TENANT, order.get(OrderFactsProjector.FIELD_TENANT_ID));
+
+        // A user without a tenant only reads those orders, the tenant is never left out of the filter
+        User user = mock(User.class);
+        assertEquals(OrderFactsProjector.NO_TENANT, orderFacts.tenantOf(user));
+        ReportParameters parameters = ReportParameters.from(null, PROCESS_KEY);
+        for (boolean byCustomer : new boolean[]{true, false}) {
+            assertTrue(parameters.orderFactsFilter(byCustomer).toString().contains(OrderFactsProjector.FIELD_TENANT_ID));
+            assertTrue(parameters.orderFactsFilter(byCustomer).toString().contains(OrderFactsProjector.NO_TENANT));
+        }
+    }
+
+    @Test
+    public void testOnlyTheOrdersOfTheReportedProcessesAreProjected() {
+        ProcessDefinition fruitOrders = mock(ProcessDefinition.class);
+        doReturn(PROCESS_KEY).when(fruitOrders).getKey();
+        ProcessDefinition other = mock(ProcessDefinition.class);
+        doReturn("stockcheckprocess").when(other).getKey();
+
+        assertTrue(orderFacts.isProjected(fruitOrders));
+        assertFalse(orderFacts.isProjected(other));
+        assertFalse(orderFacts.isProjected(null));
+    }
+}
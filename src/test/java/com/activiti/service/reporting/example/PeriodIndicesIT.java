@@ -0,0 +1,54 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of {@link PeriodIndices}
+ */
+public class PeriodIndicesIT extends ReportITSupport {
+
+    @Test
+    public void testOnlyTheIndicesOfTheDateRangeAreSearched() {
+        Map<String, Object> dateRange = new LinkedHashMap<>();
+        dateRange.put(ReportParameters.START_DATE, "2019-11-15");
+        dateRange.put(ReportParameters.END_DATE, "2020-01-10");
+        ReportParameters parameters = ReportParameters.from(
+                Collections.singletonMap(ReportParameters.PARAMETER_DATE_RANGE, dateRange),
+                PROCESS_KEY);
+
+        assertEquals(INDEX_NAME, periodIndices.indices(INDEX_NAME, parameters));
+
+        periodIndices.period = PeriodIndices.PERIOD_MONTH;
+        periodIndices.afterPropertiesSet();
+        try {
+            assertEquals(INDEX_NAME + "-2019.11*," + INDEX_NAME + "-2019.12*," + INDEX_NAME + "-2020.01*",
+                         periodIndices.indices(INDEX_NAME, parameters));
+            // The indices of the periods belong to the tenant index, and to no other
+            assertTrue(periodIndices.isOf(periodIndices.indices(INDEX_NAME, parameters), INDEX_NAME));
+            assertFalse(periodIndices.isOf(periodIndices.indices(INDEX_NAME + "0", parameters), INDEX_NAME));
+
+            // Open ranges search the whole index
+            dateRange.remove(ReportParameters.END_DATE);
+            assertEquals(INDEX_NAME, periodIndices.indices(INDEX_NAME, ReportParameters.from(
+                    Collections.singletonMap(ReportParameters.PARAMETER_DATE_RANGE, dateRange),
+                    PROCESS_KEY)));
+        } finally {
+            periodIndices.period = PeriodIndices.PERIOD_NONE;
+            periodIndices.afterPropertiesSet();
+        }
+    }
+}
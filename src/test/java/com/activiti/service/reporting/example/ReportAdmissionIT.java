@@ -0,0 +1,89 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Integration tests of {@link ReportAdmission}
+ */
+public class ReportAdmissionIT extends ReportITSupport {
+
+    @Test
+    public void testTenantsTakeTurnsOnceTheLimitIsReached() throws Exception {
+        reportAdmission.maxConcurrent = 1;
+        CountDownLatch blocking = new CountDownLatch(1);
+        List<String> generated = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            threads.submit(() -> reportAdmission.run(CustomVariablesReportGenerator.ID, "blocker", () -> {
+                awaitQuietly(blocking);
+                return null;
+            }));
+            waitUntil(() -> reportAdmission.getRunning() == 1);
+
+            // Tenant a queues two reports before tenant b queues one
+            String[][] reports = {{"a", "a1"}, {"a", "a2"}, {"b", "b1"}};
+            for (int i = 0; i < reports.length; i++) {
+                String[] report = reports[i];
+                threads.submit(() -> reportAdmission.run(CustomVariablesReportGenerator.ID, report[0], () -> generated.add(report[1])));
+                int queued = i + 1;
+                waitUntil(() -> reportAdmission.getQueued() == queued);
+            }
+
+            blocking.countDown();
+            threads.shutdown();
+            assertTrue(threads.awaitTermination(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("a1", "b1", "a2"), generated);
+        } finally {
+            threads.shutdownNow();
+            reportAdmission.maxConcurrent = 8;
+        }
+    }
+
+    @Test
+    public void testReportsWaitingLongerThanTheQueueTimeoutAreTurnedAway() throws Exception {
+        reportAdmission.maxConcurrent = 1;
+        reportAdmission.queueTimeoutMillis = 50L;
+        CountDownLatch blocking = new CountDownLatch(1);
+        ExecutorService threads = Executors.newSingleThreadExecutor();
+        try {
+            threads.submit(() -> reportAdmission.run(CustomVariablesReportGenerator.ID, "blocker", () -> {
+                awaitQuietly(blocking);
+                return null;
+            }));
+            waitUntil(() -> reportAdmission.getRunning() == 1);
+
+            try {
+                reportAdmission.run(CustomVariablesReportGenerator.ID, INDEX_NAME, () -> true);
+                fail("Expected the report to be turned away");
+            } catch (ReportBusyException e) {
+                // Turned away for having waited, not for finding the queue full
+                assertTrue(e.getMessage(), e.getMessage().contains("waited longer than 50ms"));
+            }
+            assertEquals(0, reportAdmission.getQueued());
+        } finally {
+            blocking.countDown();
+            threads.shutdownNow();
+            reportAdmission.maxConcurrent = 8;
+            reportAdmission.queueTimeoutMillis = 10000L;
+        }
+    }
+}
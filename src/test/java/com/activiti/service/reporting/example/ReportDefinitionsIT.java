@@ -0,0 +1,118 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Integration tests of {@link ReportDefinitions}
+ */
+public class ReportDefinitionsIT extends ReportITSupport {
+
+    @Test
+    public void testReportIsCompiledOnceFromItsDefinition() {
+        CompiledReport report = reportDefinitions.get(CustomVariablesReportGenerator.ID);
+        assertEquals(PROCESS_KEY, report.getProcessDefinitionKey());
+        assertEquals(Arrays.asList(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS,
+                                   CustomVariablesReportGenerator.CHART_QUANTITIES_BY_MONTH,
+                                   CustomVariablesReportGenerator.CHART_ORDERS_BY_DUE_DATE,
+                                   CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH),
+                     new ArrayList<>(reportGenerator.reportQueries().keySet()));
+
+        // The aggregations are shared by the queries of every request, only the filters are built each time
+        Map<String, SearchSourceBuilder> first = reportGenerator.reportQueries();
+        Map<String, SearchSourceBuilder> second = reportGenerator.reportQueries(
+                ReportParameters.from(Collections.singletonMap(ReportParameters.PARAMETER_CUSTOMER, "Acme"),
+                                      PROCESS_KEY));
+        for (String chart : first.keySet()) {
+            assertNotSame(first.get(chart), second.get(chart));
+            assertSame(first.get(chart).aggregations().getAggregatorFactories().iterator().next(),
+                       second.get(chart).aggregations().getAggregatorFactories().iterator().next());
+        }
+        assertTrue(second.get(CustomVariablesReportGenerator.CHART_QUANTITIES_BY_MONTH).toString()
+                           .contains("\"calendar_interval\":\"1M\""));
+        assertTrue(second.get(CustomVariablesReportGenerator.CHART_QUANTITIES_BY_MONTH).toString()
+                           .contains("\"totalItems\""));
+    }
+
+    @Test
+    public void testReportIsRunFromWhatItsDefinitionSays() {
+        CompiledReport bundled = reportDefinitions.get(CustomVariablesReportGenerator.ID);
+        assertEquals(bundled.getName(), reportGenerator.getName());
+
+        // The name and process of an edited definition are those of the report and of the projected orders
+        ReportDefinitions edited = new ReportDefinitions();
+        edited.reports = Collections.singletonMap(CustomVariablesReportGenerator.ID,
+                                                  new CompiledReport(CustomVariablesReportGenerator.ID,
+                                                                     "Vegetable orders overview",
+                                                                     "vegetableorderprocess",
+                                                                     bundled.getCharts()));
+        CustomVariablesReportGenerator generator = new CustomVariablesReportGenerator();
+        generator.reportDefinitions = edited;
+        assertEquals("Vegetable orders overview", generator.getName());
+        for (SearchSourceBuilder query : generator.reportQueries().values()) {
+            assertTrue(query.toString().contains("vegetableorderprocess"));
+            assertFalse(query.toString().contains(PROCESS_KEY));
+        }
+
+        OrderFactsProjector projector = new OrderFactsProjector();
+        projector.reportDefinitions = edited;
+        projector.processDefinitionKeys = new String[0];
+        projector.afterPropertiesSet();
+        assertArrayEquals(new String[]{"vegetableorderprocess"}, projector.processDefinitionKeys);
+    }
+
+    @Test
+    public void testInvalidReportDefinitionsAreRejected() {
+        ReportDefinition definition = new ReportDefinition();
+        definition.setId("report.generator.invalid");
+        definition.setProcessDefinitionKey("invalidprocess");
+        ReportDefinition.ChartDefinition chart = new ReportDefinition.ChartDefinition();
+        chart.setId("invalid");
+        chart.setType(ReportDefinition.CHART_BAR);
+        chart.setVariable("quantity");
+        ReportDefinition.BucketsDefinition buckets = new ReportDefinition.BucketsDefinition();
+        buckets.setName("byFortnight");
+        buckets.setType(ReportDefinition.BUCKETS_DATE_HISTOGRAM);
+        buckets.setField("createTime");
+        buckets.setInterval("fortnight");
+        chart.setBuckets(buckets);
+        definition.setCharts(Collections.singletonList(chart));
+
+        try {
+            ReportDefinitions.compile(definition);
+            fail("Unknown interval should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("fortnight"));
+        }
+
+        buckets.setInterval("week");
+        assertEquals("byFortnight", ReportDefinitions.compile(definition).chart("invalid").getAggregationName());
+
+        buckets.setType(ReportDefinition.BUCKETS_TERMS);
+        try {
+            ReportDefinitions.compile(definition);
+            fail("Bar charts need date buckets");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("dateHistogram"));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Integration tests of {@link ReportExporter}
+ */
+public class ReportExporterIT extends ReportITSupport {
+
+    @Test
+    public void testOrdersAreExportedAPageAtATime() throws Exception {
+        reportExporter.pageSize = 2;
+        try {
+            mockElasticSearchRoutes(0);
+            ReportParameters parameters = ReportParameters.from(null, PROCESS_KEY);
+
+            ByteArrayOutputStream csv = new ByteArrayOutputStream();
+            assertEquals(3, reportExporter.export(analyticsClient, INDEX_NAME, parameters,
+                                                  ReportExporter.DATASET_ORDERS, ReportExporter.FORMAT_CSV, csv));
+            verifySearchRoundTrips(2);
+            assertEquals("processInstanceId,createTime,customer,quantity,dueDate\n"
+                                 + "101,2019-11-01T09:20:00Z,Anne,5,2019-11-15T00:00:00Z\n"
+                                 + "102,2019-11-02T14:05:00Z,\"Bob's Store, \"\"Fruit\"\" dept\",12,2019-11-18T00:00:00Z\n"
+                                 + "103,2019-12-03T08:00:00Z,Charlie Brown,3,\n",
+                         new String(csv.toByteArray(), StandardCharsets.UTF_8));
+
+            ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+            assertEquals(3, reportExporter.export(analyticsClient, INDEX_NAME, parameters,
+                                                  ReportExporter.DATASET_ORDERS, ReportExporter.FORMAT_NDJSON, ndjson));
+            verifySearchRoundTrips(4);
+            String[] lines = new String(ndjson.toByteArray(), StandardCharsets.UTF_8).split("\n");
+            assertEquals(3, lines.length);
+            assertEquals("Bob's Store, \"Fruit\" dept", objectMapper.readTree(lines[1]).get("customer").asText());
+            assertEquals(12, objectMapper.readTree(lines[1]).get("quantity").asLong());
+            assertTrue(objectMapper.readTree(lines[2]).get("dueDate").isNull());
+
+            try {
+                reportExporter.export(analyticsClient, INDEX_NAME, parameters, "invoices", ReportExporter.FORMAT_CSV,
+                                      new ByteArrayOutputStream());
+                fail("Unknown datasets should not be exported");
+            } catch (IllegalArgumentException expected) {
+                verifySearchRoundTrips(4);
+            }
+            try {
+                ReportExporter.validate("../../etc/passwd", ReportExporter.FORMAT_CSV);
+                fail("Unknown datasets should be refused before anything is written");
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                ReportExporter.validate(ReportExporter.DATASET_ORDERS, "xlsx");
+                fail("Unknown formats should be refused before anything is written");
+            } catch (IllegalArgumentException expected) {
+            }
+        } finally {
+            reportExporter.pageSize = 1000;
+        }
+    }
+
+    @Test
+    public void testExportFailsWhenAPageComesBackWithoutAggregations() throws Exception {
+        mockElasticSearchRoutes(0, ReportExporter.DATASET_ORDERS, ordersCountJson, 200);
+        try {
+            reportExporter.export(analyticsClient, INDEX_NAME, ReportParameters.from(null, PROCESS_KEY),
+                                  ReportExporter.DATASET_ORDERS, ReportExporter.FORMAT_CSV, new ByteArrayOutputStream());
+            fail("An export without its rows should fail");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains(ReportExporter.DATASET_ORDERS));
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.idm.User;
+import com.activiti.service.api.ReportingIndexManager;
+import com.activiti.service.reporting.ReportingIndexManagerImpl;
+import com.activiti.domain.reporting.ReportDataRepresentation;
+import com.activiti.service.reporting.searchClient.AnalyticsClient;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.CustomApplicationTestConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static com.activiti.service.reporting.generators.ElasticSearchConstants.INDEX_VARIABLES;
+import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.apache.http.HttpHeaders.WARNING;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * The application context, Elasticsearch fixtures and helpers shared by the integration tests of the report
+ * components. Searches go through a mocked HTTP client, answered with the fixture matching each request. They are sent
+ * through the direct client, which the analytics client of the tests shares its HTTP client with.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = CustomApplicationTestConfiguration.class)
+@TestPropertySource(properties = "custom.report.search.direct-client=true")
+public abstract class ReportITSupport {
+
+    @Autowired
+    protected CustomVariablesReportGenerator reportGenerator;
+
+    @Autowired
+    protected AnalyticsClient analyticsClient;
+
+    @Autowired
+    protected CloseableHttpAsyncClient httpClient;
+
+    @Autowired
+    protected ReportSearchExecutor searchExecutor;
+
+    @Autowired
+    protected ReportResultCache resultCache;
+
+    @Autowired
+    protected MonthlyRollups monthlyRollups;
+
+    @Autowired
+    protected ReportSnapshots reportSnapshots;
+
+    @Autowired
+    protected CompositeTermsPager termsPager;
+
+    @Autowired
+    protected ReportMetrics reportMetrics;
+
+    @Autowired
+    protected InMemoryReportMetricsRegistry metricsRegistry;
+
+    @Autowired
+    protected PeriodIndices periodIndices;
+
+    @Autowired
+    protected ReportAdmission reportAdmission;
+
+    @Autowired
+    protected ReportJobs reportJobs;
+
+    @Autowired
+    protected ReportDefinitions reportDefinitions;
+
+    @Autowired
+    protected ApproximateMode approximateMode;
+
+    @Autowired
+    protected OrderFactsProjector orderFacts;
+
+    @Autowired
+    protected ReportExporter reportExporter;
+
+    @Autowired
+    protected SearchProfiler searchProfiler;
+
+    protected ReportingIndexManager indexManager = mock(ReportingIndexManagerImpl.class);
+
+    @Autowired
+    protected User currentUser;
+
+    @Value("classpath:/elasticsearch/variables-count-orders-by-customer-month.json")
+    protected Resource variablesCountOrdersByCustomerAndMonthJson;
+
+    @Value("classpath:/elasticsearch/variables-customer-orders.json")
+    protected Resource customerOrdersJson;
+
+    @Value("classpath:/elasticsearch/variables-quantities-by-month.json")
+    protected Resource quantitiesByMonthJson;
+
+    @Value("classpath:/elasticsearch/variables-quantities-by-month-timed-out.json")
+    protected Resource quantitiesByMonthTimedOutJson;
+
+    @Value("classpath:/elasticsearch/variables-orders-by-duedate.json")
+    protected Resource ordersByDueDateJson;
+
+    @Value("classpath:/elasticsearch/variables-customer-orders-and-by-month.json")
+    protected Resource customerOrdersAndOrdersByMonthJson;
+
+    @Value("classpath:/elasticsearch/variables-fruit-orders-msearch.json")
+    protected Resource fruitOrdersMultiSearchJson;
+
+    @Value("classpath:/elasticsearch/variables-fruit-orders-msearch-partial-failure.json")
+    protected Resource fruitOrdersMultiSearchPartialFailureJson;
+
+    @Value("classpath:/elasticsearch/variables-customer-orders-trimmed.json")
+    protected Resource customerOrdersTrimmedJson;
+
+    @Value("classpath:/elasticsearch/variables-customer-orders-composite-page1.json")
+    protected Resource customerOrdersCompositePage1Json;
+
+    @Value("classpath:/elasticsearch/variables-customer-orders-composite-page2.json")
+    protected Resource customerOrdersCompositePage2Json;
+
+    @Value("classpath:/elasticsearch/variables-customer-orders-by-month-composite.json")
+    protected Resource customerOrdersByMonthCompositeJson;
+
+    @Value("classpath:/elasticsearch/variables-orders-count-gte.json")
+    protected Resource ordersCountJson;
+
+    @Value("classpath:/elasticsearch/variables-customer-orders-sampled.json")
+    protected Resource customerOrdersSampledJson;
+
+    @Value("classpath:/elasticsearch/order-facts-fruit-orders.json")
+    protected Resource orderFactsJson;
+
+    @Value("classpath:/elasticsearch/variables-customer-orders-profiled.json")
+    protected Resource customerOrdersProfiledJson;
+
+    @Value("classpath:/elasticsearch/export-orders-page1.json")
+    protected Resource exportOrdersPage1Json;
+
+    @Value("classpath:/elasticsearch/export-orders-page2.json")
+    protected Resource exportOrdersPage2Json;
+
+    @Value("classpath:/elasticsearch/error-service-unavailable.json")
+    protected Resource serviceUnavailableJson;
+
+    @Value("classpath:/elasticsearch/error-bad-request.json")
+    protected Resource badRequestJson;
+
+    protected static final String INDEX_NAME = "activiti-test";
+
+    /**
+     * The process of the orders in <code>reports/fruit-orders.json</code>
+     */
+    protected static final String PROCESS_KEY = "fruitorderprocess";
+
+    protected static final List<String> CHART_TITLES = Arrays.asList("No. of orders by customer",
+                                                                     "Total quantities ordered per month",
+                                                                     "No. of orders by due date",
+                                                                     "Monthly no. of orders by customer");
+
+    protected ObjectMapper objectMapper = new ObjectMapper();
+
+    @Before
+    public void before() {
+        doReturn(INDEX_NAME)
+                .when(indexManager)
+                .getIndexForUser(any(User.class), eq(INDEX_VARIABLES));
+        resultCache.invalidateAll();
+        searchExecutor.getCircuitBreaker().reset();
+    }
+
+    @After
+    public void after() throws Exception {
+        awaitSearches();
+    }
+
+    /**
+     * Wait for the searches left running by a test to complete, so that they are not shared with the next one
+     */
+    protected void awaitSearches() throws InterruptedException {
+        waitUntil(() -> searchExecutor.searches.size() == 0 && searchExecutor.multiSearches.size() == 0);
+    }
+
+    protected static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for the condition to hold, failing the test if it does not within 5 seconds
+     */
+    protected static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for condition", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    protected ReportDataRepresentation generateReport() {
+        return reportGenerator.generate(null,
+                                        analyticsClient,
+                                        indexManager,
+                                        currentUser,
+                                        null,
+                                        objectMapper,
+                                        null);
+    }
+
+    protected List<String> chartTitles(ReportDataRepresentation reportData) {
+        return objectMapper.valueToTree(reportData).findValuesAsText("title");
+    }
+
+    protected void verifySearchRoundTrips(int expected) throws Exception {
+        verify(httpClient, times(expected)).execute(any(HttpAsyncRequestProducer.class),
+                                                    any(HttpAsyncResponseConsumer.class),
+                                                    any(HttpContext.class),
+                                                    any(FutureCallback.class));
+    }
+
+    /**
+     * Answer every search with the fixture matching the aggregations in its request body, after the given delay
+     */
+    protected void mockElasticSearchRoutes(long delayMillis) throws Exception {
+        mockElasticSearchRoutes(delayMillis, null, null, 200, null);
+    }
+
+    /**
+     * As {@link #mockElasticSearchRoutes(long)}, holding back the answers until the held searches are released
+     */
+    protected void mockElasticSearchRoutes(HeldSearches held) throws Exception {
+        mockElasticSearchRoutes(0, null, null, 200, held);
+    }
+
+    protected void mockElasticSearchRoutes(long delayMillis,
+                                           String failingAggregation,
+                                           Resource error,
+                                           int errorStatus) throws Exception {
+        mockElasticSearchRoutes(delayMillis, failingAggregation, error, errorStatus, null);
+    }
+
+    /**
+     * As {@link #mockElasticSearchRoutes(long)}, answering searches for the given aggregation with an error instead
+     */
+    protected void mockElasticSearchRoutes(long delayMillis,
+                                           String failingAggregation,
+                                           Resource error,
+                                           int errorStatus,
+                                           HeldSearches held) throws Exception {
+        reset(httpClient);
+        doAnswer(invocation -> {
+            if (held != null) {
+                held.sent();
+            }
+            HttpAsyncRequestProducer requestProducer = (HttpAsyncRequestProducer) invocation.getArguments()[0];
+            HttpEntityEnclosingRequest request = (HttpEntityEnclosingRequest) requestProducer.generateRequest();
+            String requestBody = EntityUtils.toString(request.getEntity());
+            if (failingAggregation != null && requestBody.contains("\"" + failingAggregation + "\"")) {
+                return resourceAsHttpResponse(error, delayMillis, errorStatus, held);
+            }
+            return resourceAsHttpResponse(fixtureFor(request.getRequestLine().getUri(), requestBody),
+                                          delayMillis,
+                                          200,
+                                          held);
+        })
+                .when(httpClient)
+                .execute(any(HttpAsyncRequestProducer.class),
+                         any(HttpAsyncResponseConsumer.class),
+                         any(HttpContext.class),
+                         any(FutureCallback.class));
+    }
+
+    protected Resource fixtureFor(String uri, String requestBody) {
+        if (uri.contains(orderFacts.getIndex())) {
+            return orderFactsJson;
+        } else if (uri.contains("_msearch")) {
+            return fruitOrdersMultiSearchJson;
+        } else if (requestBody.contains("\"profile\":true")) {
+            return customerOrdersProfiledJson;
+        } else if (!requestBody.contains("\"aggregations\"")) {
+            return ordersCountJson;
+        } else if (requestBody.contains("\"sampler\"")) {
+            return customerOrdersSampledJson;
+        } else if (requestBody.contains("\"composite\"") && requestBody.contains("\"processInstanceId\"")) {
+            return requestBody.contains("\"after\"") ? exportOrdersPage2Json : exportOrdersPage1Json;
+        } else if (requestBody.contains("\"composite\"") && requestBody.contains("\"date_histogram\"")) {
+            return customerOrdersByMonthCompositeJson;
+        } else if (requestBody.contains("\"composite\"")) {
+            return requestBody.contains("\"after\"") ? customerOrdersCompositePage2Json : customerOrdersCompositePage1Json;
+        } else if (uri.contains("filter_path=") && requestBody.contains("\"customerOrders\"")
+                && !requestBody.contains("\"customerName\"")) {
+            return customerOrdersTrimmedJson;
+        } else if (requestBody.contains("\"customerOrders\"") && requestBody.contains("\"customerName\"")) {
+            return customerOrdersAndOrdersByMonthJson;
+        } else if (requestBody.contains("\"customerOrders\"")) {
+            return customerOrdersJson;
+        } else if (requestBody.contains("\"ordersByMonthDue\"")) {
+            return ordersByDueDateJson;
+        } else if (requestBody.contains("\"totalItems\"")) {
+            return quantitiesByMonthJson;
+        } else if (requestBody.contains("\"customerName\"")) {
+            return variablesCountOrdersByCustomerAndMonthJson;
+        }
+        throw new IllegalArgumentException("No fixture for request " + requestBody);
+    }
+
+    protected void mockElasticSearchRequest(Resource resource) throws Exception {
+        reset(httpClient);
+        doReturn(resourceAsHttpResponse(resource))
+                .when(httpClient)
+                .execute(any(HttpAsyncRequestProducer.class),
+                         any(HttpAsyncResponseConsumer.class),
+                         any(HttpContext.class),
+                         any(FutureCallback.class));
+    }
+
+    protected Future<HttpResponse> resourceAsHttpResponse(Resource resource) throws Exception {
+        return resourceAsHttpResponse(resource, 0);
+    }
+
+    protected Future<HttpResponse> resourceAsHttpResponse(Resource resource, long delayMillis) throws Exception {
+        return resourceAsHttpResponse(resource, delayMillis, 200);
+    }
+
+    protected Future<HttpResponse> resourceAsHttpResponse(Resource resource, long delayMillis, int status) throws Exception {
+        return resourceAsHttpResponse(resource, delayMillis, status, null);
+    }
+
+    protected Future<HttpResponse> resourceAsHttpResponse(Resource resource,
+                                                          long delayMillis,
+                                                          int status,
+                                                          HeldSearches held) throws Exception {
+        HttpEntity mockEntity = mock(HttpEntity.class);
+        doReturn(resource.getInputStream())
+                .when(mockEntity)
+                .getContent();
+        doReturn(new BasicHeader(CONTENT_TYPE, "application/json"))
+                .when(mockEntity)
+                .getContentType();
+
+        StatusLine mockStatusLine = mock(StatusLine.class);
+        doReturn(status)
+                .when(mockStatusLine)
+                .getStatusCode();
+
+        HttpResponse mockResponse = mock(HttpResponse.class);
+        doReturn(mockStatusLine)
+                .when(mockResponse)
+                .getStatusLine();
+        doReturn(mockEntity)
+                .when(mockResponse)
+                .getEntity();
+        doReturn(new Header[0])
+                .when(mockResponse)
+                .getHeaders(eq(WARNING));
+
+        Future<HttpResponse> mockFuture = mock(Future.class);
+        doAnswer(invocation -> {
+            if (held != null) {
+                held.await();
+            }
+            Thread.sleep(delayMillis);
+            return mockResponse;
+        })
+                .when(mockFuture)
+                .get();
+        return mockFuture;
+    }
+
+    /**
+     * Holds back the answers to searches until released, or until a given number of searches has been sent, so that
+     * tests can tell which searches were in flight at the same time without timing them. An answer held back for more
+     * than 5 seconds is given anyway and counted as late, so that a test never hangs on it.
+     */
+    protected static class HeldSearches {
+
+        protected final int releaseAfter;
+
+        protected final CountDownLatch released = new CountDownLatch(1);
+
+        protected final AtomicInteger sent = new AtomicInteger();
+
+        protected final AtomicInteger late = new AtomicInteger();
+
+        /**
+         * @param releaseAfter the number of searches sent once which every answer is given, or 0 to hold them until
+         *                     {@link #release()}
+         */
+        public HeldSearches(int releaseAfter) {
+            this.releaseAfter = releaseAfter;
+        }
+
+        protected void sent() {
+            if (sent.incrementAndGet() == releaseAfter) {
+                release();
+            }
+        }
+
+        protected void await() throws InterruptedException {
+            if (!released.await(5, TimeUnit.SECONDS)) {
+                late.incrementAndGet();
+            }
+        }
+
+        public void release() {
+            released.countDown();
+        }
+
+        public int getSent() {
+            return sent.get();
+        }
+
+        /**
+         * The number of answers which were given before being released, because they were held for too long
+         */
+        public int getLate() {
+            return late.get();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.reporting.ReportDataRepresentation;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of {@link ReportJobs}
+ */
+public class ReportJobsIT extends ReportITSupport {
+
+    @Test
+    public void testJobShowsEachChartAsSoonAsItsSearchIsBack() throws Exception {
+        mockElasticSearchRoutes(0);
+        ReportJob job = new ReportJob("progress-test", CustomVariablesReportGenerator.ID, null);
+        job.chartsStarted(reportGenerator.report().getChartIds());
+        List<String> searched = Collections.synchronizedList(new ArrayList<>());
+
+        searchExecutor.searchAll(analyticsClient,
+                                 CustomVariablesReportGenerator.ID,
+                                 INDEX_NAME,
+                                 reportGenerator.reportQueries(),
+                                 searchExecutor.deadline(),
+                                 (chart, response) -> {
+                                     searched.add(chart);
+                                     job.chartSearched(chart, response != null);
+                                 });
+
+        // Every chart is ready before any is converted, including both charts sharing the merged search
+        assertEquals(4, searched.size());
+        assertEquals(4, job.getChartsCompleted());
+
+        // A search coming back late does not change a chart already completed
+        job.chartCompleted(CustomVariablesReportGenerator.CHART_ORDERS_BY_DUE_DATE, false);
+        job.chartSearched(CustomVariablesReportGenerator.CHART_ORDERS_BY_DUE_DATE, true);
+        assertEquals(ReportJob.ChartStatus.FAILED,
+                     job.getCharts().get(CustomVariablesReportGenerator.CHART_ORDERS_BY_DUE_DATE));
+    }
+
+    @Test
+    public void testReportJobsAreSharedUntilPickedUpAndThenExpire() throws Exception {
+        ReportResultCache.Key key = new ReportResultCache.Key(CustomVariablesReportGenerator.ID, "jobs-test", null);
+        CountDownLatch blocking = new CountDownLatch(1);
+        reportJobs.resultTtlMillis = 100L;
+        try {
+            ReportJob job = reportJobs.submit(CustomVariablesReportGenerator.ID, key, submitted -> {
+                awaitQuietly(blocking);
+                return new ReportDataRepresentation();
+            });
+            assertSame(job, reportJobs.get(job.getId()));
+            assertSame(job, reportJobs.submit(CustomVariablesReportGenerator.ID, key, submitted -> null));
+
+            // Listeners are notified once the job is done
+            CountDownLatch notified = new CountDownLatch(1);
+            job.getResult().thenAccept(report -> notified.countDown());
+            blocking.countDown();
+            assertTrue(notified.await(5, TimeUnit.SECONDS));
+
+            // Still handed out until picked up
+            assertSame(job, reportJobs.submit(CustomVariablesReportGenerator.ID, key, submitted -> null));
+            job.markDelivered();
+
+            Thread.sleep(150);
+            assertNull(reportJobs.get(job.getId()));
+        } finally {
+            blocking.countDown();
+            reportJobs.resultTtlMillis = 600000L;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.idm.User;
+import com.activiti.domain.reporting.ReportDataRepresentation;
+import com.activiti.service.api.ReportingIndexManager;
+import com.activiti.service.reporting.ReportingIndexManagerImpl;
+import com.activiti.service.reporting.searchClient.AnalyticsClient;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.client.ElasticsearchStubServer;
+import org.elasticsearch.client.StubApplicationTestConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.activiti.service.reporting.generators.ElasticSearchConstants.INDEX_VARIABLES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Generates reports from many threads at once against an {@link ElasticsearchStubServer}, and reports the
+ * throughput, the latency of the reports and the heap used. Only runs with the <code>load-test</code> profile
+ *
+ *     mvn verify -Pload-test -Dload.threads=32 -Dload.latency=50
+ *
+ * taking the following system properties: <code>load.threads</code>, <code>load.reports</code>,
+ * <code>load.warmup</code> and <code>load.customers</code> for the driver, and <code>load.latency</code>,
+ * <code>load.jitter</code>, <code>load.error-rate</code>, <code>load.scale</code>, <code>load.stub-threads</code>
+ * and <code>load.stub-port</code> for the stub. Cached reports are turned off, so that every report searches.
+ *
+ * To compare with the tuned {@link ReportRestClient}, enable it, and it searches the stub as the application does
+ *
+ *     mvn verify -Pload-test -Dload.scale=20 -Dcustom.report.client.enabled=true
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = StubApplicationTestConfiguration.class)
+@TestPropertySource(properties = {
+        "custom.report.cache.enabled=false",
+        "custom.report.admission.max-concurrent-per-tenant=0"
+})
+public class ReportLoadIT {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportLoadIT.class);
+
+    private static final String INDEX_NAME = "activiti-load-test";
+
+    @Autowired
+    private CustomVariablesReportGenerator reportGenerator;
+
+    @Autowired
+    private AnalyticsClient analyticsClient;
+
+    @Autowired
+    private ElasticsearchStubServer stub;
+
+    @Autowired
+    private ReportRestClient reportRestClient;
+
+    @Autowired
+    private User currentUser;
+
+    private ReportingIndexManager indexManager = mock(ReportingIndexManagerImpl.class);
+
+    private ObjectMapper objectMapper = new ObjectMapper();
+
+    private final int threads = Integer.getInteger("load.threads", 16);
+
+    private final int reports = Integer.getInteger("load.reports", 2000);
+
+    private final int warmup = Integer.getInteger("load.warmup", 200);
+
+    private final int customers = Integer.getInteger("load.customers", 50);
+
+    @Before
+    public void before() {
+        doReturn(INDEX_NAME)
+                .when(indexManager)
+                .getIndexForUser(any(User.class), eq(INDEX_VARIABLES));
+    }
+
+    @Test
+    public void testReportsUnderLoad() throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            generate(i);
+        }
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        AtomicLong heapPeak = new AtomicLong(heapBefore);
+        ScheduledExecutorService heapSampler = Executors.newSingleThreadScheduledExecutor();
+        heapSampler.scheduleAtFixedRate(() -> heapPeak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                                        0, 10, TimeUnit.MILLISECONDS);
+        long requestsBefore = stub.getRequests();
+        long errorsBefore = stub.getErrors();
+        long bytesBefore = stub.getResponseBytes();
+
+        long[] latencies = new long[reports];
+        AtomicInteger degraded = new AtomicInteger();
+        ExecutorService drivers = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < reports; i++) {
+            int report = i;
+            results.add(drivers.submit(() -> {
+                long reportStart = System.nanoTime();
+                ReportDataRepresentation reportData = generate(report);
+                latencies[report] = System.nanoTime() - reportStart;
+                if (objectMapper.valueToTree(reportData).findValuesAsText("description")
+                        .contains(CustomVariablesReportGenerator.CHART_UNAVAILABLE)) {
+                    degraded.incrementAndGet();
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        drivers.shutdown();
+        heapSampler.shutdownNow();
+        memory.gc();
+        long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+        Arrays.sort(latencies);
+        logger.info(String.format("%d reports from %d threads in %d ms: %.1f reports/s, p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+                                  reports, threads, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                                  reports * 1e9 / elapsed,
+                                  percentile(latencies, 50), percentile(latencies, 99), percentile(latencies, 100)));
+        logger.info(String.format("Heap %d MB before, %d MB peak, %d MB after; %d searches, %d errors injected, "
+                                          + "%d KB of responses at scale %d; %d reports with charts missing",
+                                  heapBefore >> 20, heapPeak.get() >> 20, heapAfter >> 20,
+                                  stub.getRequests() - requestsBefore, stub.getErrors() - errorsBefore,
+                                  (stub.getResponseBytes() - bytesBefore) >> 10, stub.getScale(), degraded.get()));
+
+        if (reportRestClient.isEnabled()) {
+            logger.info(String.format("Tuned client received %d KB for %d KB of responses",
+                                      reportRestClient.getWireBytes() >> 10, reportRestClient.getContentBytes() >> 10));
+        }
+
+        if (stub.getErrors() == errorsBefore) {
+            assertEquals("Reports with charts missing while no errors were injected", 0, degraded.get());
+        }
+    }
+
+    /**
+     * Generate the report for one of the customers, so that reports for different customers do not share searches
+     */
+    private ReportDataRepresentation generate(int report) {
+        Map<String, Object> parameters = Collections.<String, Object>singletonMap(ReportParameters.PARAMETER_CUSTOMER,
+                                                                                  "Customer " + report % customers);
+        ReportDataRepresentation reportData = reportGenerator.generate(null,
+                                                                       analyticsClient,
+                                                                       indexManager,
+                                                                       currentUser,
+                                                                       null,
+                                                                       objectMapper,
+                                                                       parameters);
+        assertNotNull(reportData);
+        return reportData;
+    }
+
+    private static double percentile(long[] sortedNanos, int percentile) {
+        int index = Math.max(0, (int) Math.ceil(percentile / 100.0 * sortedNanos.length) - 1);
+        return sortedNanos[index] / 1e6;
+    }
+}
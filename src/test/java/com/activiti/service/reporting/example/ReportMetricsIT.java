@@ -0,0 +1,55 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of {@link ReportMetrics}
+ */
+public class ReportMetricsIT extends ReportITSupport {
+
+    @Test
+    public void testSearchesAndConversionsAreMeasuredPerChart() throws Exception {
+        mockElasticSearchRoutes(0);
+        metricsRegistry.clear();
+        reportMetrics.slowReportThresholdMillis = 0L;
+        try {
+            generateReport();
+
+            String id = CustomVariablesReportGenerator.ID;
+            String mergedSearch = CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS
+                    + ReportQueryPlan.SEARCH_KEY_SEPARATOR
+                    + CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH;
+            Map<String, String> searchTags = ReportMetrics.tags(id, mergedSearch, INDEX_NAME);
+            assertEquals(1, metricsRegistry.getSummary(ReportMetrics.SEARCH_ROUND_TRIP, searchTags).getCount());
+            assertEquals(13, metricsRegistry.getSummary(ReportMetrics.SEARCH_TOOK, searchTags).getTotal(), 0);
+            assertEquals(0, metricsRegistry.getSummary(ReportMetrics.SEARCH_ERRORS, searchTags).getCount());
+            // The size of the response is known without streaming as well
+            assertTrue(metricsRegistry.getSummary(ReportMetrics.SEARCH_RESPONSE_BYTES, searchTags).getTotal() > 0);
+
+            Map<String, String> chartTags = ReportMetrics.tags(id, CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS, INDEX_NAME);
+            assertEquals(1, metricsRegistry.getSummary(ReportMetrics.CHART_CONVERSION, chartTags).getCount());
+            assertEquals(4, metricsRegistry.getSummary(ReportMetrics.CHART_BUCKETS, chartTags).getTotal(), 0);
+
+            // Buckets of the histogram and of the customers in each month
+            chartTags = ReportMetrics.tags(id, CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH, INDEX_NAME);
+            assertEquals(2 + 3 + 2, metricsRegistry.getSummary(ReportMetrics.CHART_BUCKETS, chartTags).getTotal(), 0);
+
+            Map<String, String> reportTags = ReportMetrics.tags(id, null, INDEX_NAME);
+            assertEquals(1, metricsRegistry.getSummary(ReportMetrics.REPORT_GENERATION, reportTags).getCount());
+            assertEquals(1, metricsRegistry.getSummary(ReportMetrics.SLOW_REPORTS, reportTags).getCount());
+        } finally {
+            reportMetrics.slowReportThresholdMillis = 5000L;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of {@link ReportParameters}
+ */
+public class ReportParametersIT extends ReportITSupport {
+
+    @Test
+    public void testEndDatesAreInclusiveWhicheverWayTheyAreGiven() {
+        Instant end = Instant.parse("2019-11-30T12:00:00Z");
+        Instant after = end.plusMillis(1);
+        assertEquals(after, ReportParameters.toInstant(end.toEpochMilli(), true));
+        assertEquals(after, ReportParameters.toInstant(Date.from(end), true));
+        assertEquals(after, ReportParameters.toInstant(end.toString(), true));
+        assertEquals(Instant.parse("2019-12-01T00:00:00Z"), ReportParameters.toInstant("2019-11-30", true));
+        assertEquals(end, ReportParameters.toInstant(end.toEpochMilli(), false));
+    }
+
+    @Test
+    public void testParametersFilterTheReportQueries() {
+        Map<String, Object> dateRange = new LinkedHashMap<>();
+        dateRange.put(ReportParameters.START_DATE, "2019-11-01");
+        dateRange.put(ReportParameters.END_DATE, "2019-11-30");
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put(ReportParameters.PARAMETER_DATE_RANGE, dateRange);
+        values.put(ReportParameters.PARAMETER_CUSTOMER, "Alice Smith");
+        values.put(ReportParameters.PARAMETER_PROCESS_DEFINITION, "otherorderprocess:3:2504");
+
+        ReportParameters parameters = ReportParameters.from(values, PROCESS_KEY);
+        assertEquals("otherorderprocess", parameters.getProcessDefinitionKey());
+        assertEquals(Instant.parse("2019-11-01T00:00:00Z"), parameters.getFrom());
+        // The whole of the last day is included
+        assertEquals(Instant.parse("2019-12-01T00:00:00Z"), parameters.getTo());
+
+        Map<String, SearchSourceBuilder> queries = reportGenerator.reportQueries(parameters);
+        for (Map.Entry<String, SearchSourceBuilder> query : queries.entrySet()) {
+            String json = query.getValue().toString();
+            assertTrue(json.contains("\"otherorderprocess\""));
+            assertFalse(json.contains("\"" + PROCESS_KEY + "\""));
+            assertTrue(json.contains("\"range\""));
+            assertTrue(json.contains("\"" + ReportParameters.DATE_FIELD + "\""));
+            assertTrue(json.contains(String.valueOf(Instant.parse("2019-11-01T00:00:00Z").toEpochMilli())));
+        }
+        assertTrue(queries.get(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS).toString().contains("\"Alice Smith\""));
+        assertTrue(queries.get(CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH).toString().contains("\"Alice Smith\""));
+        assertFalse(queries.get(CustomVariablesReportGenerator.CHART_QUANTITIES_BY_MONTH).toString().contains("\"Alice Smith\""));
+
+        // Without values the report covers everything, as before
+        for (SearchSourceBuilder query : reportGenerator.reportQueries(ReportParameters.from(null, PROCESS_KEY)).values()) {
+            assertFalse(query.toString().contains("\"range\""));
+        }
+    }
+
+    @Test
+    public void testQueryTemplatesRenderTheSameQueriesAsTheBuilders() throws Exception {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put(ReportParameters.PARAMETER_CUSTOMER, "Bob's \"Store\"\\");
+        values.put(ReportParameters.PARAMETER_PROCESS_DEFINITION, "otherorderprocess:3:2504");
+        ReportParameters parameters = ReportParameters.from(values, PROCESS_KEY);
+
+        Map<String, SearchSourceBuilder> queries = reportGenerator.reportQueries(parameters);
+        Map<String, SearchSourceBuilder> templateQueries = reportGenerator.reportQueries(parameters.asTemplate());
+        for (String chart : queries.keySet()) {
+            QueryTemplate template = QueryTemplate.compile(templateQueries.get(chart));
+            assertTrue(template.getSlots().contains(ReportParameters.PARAMETER_PROCESS_DEFINITION));
+            byte[] rendered = template.render(parameters.templateValues());
+            assertEquals(objectMapper.readTree(queries.get(chart).toString()), objectMapper.readTree(rendered));
+        }
+
+        // Dates are filled in as epoch millis strings
+        Map<String, Object> dateRange = new LinkedHashMap<>();
+        dateRange.put(ReportParameters.START_DATE, "2019-11-01");
+        ReportParameters dated = ReportParameters.from(
+                Collections.singletonMap(ReportParameters.PARAMETER_DATE_RANGE, dateRange),
+                PROCESS_KEY);
+        QueryTemplate template = QueryTemplate.compile(reportGenerator.totalQuantityByMonthQuery(dated.asTemplate()));
+        assertEquals(Arrays.asList(ReportParameters.PARAMETER_PROCESS_DEFINITION, ReportParameters.START_DATE),
+                     template.getSlots());
+        assertEquals(String.valueOf(Instant.parse("2019-11-01T00:00:00Z").toEpochMilli()),
+                     objectMapper.readTree(template.render(dated.templateValues())).findValue("gte").asText());
+    }
+}
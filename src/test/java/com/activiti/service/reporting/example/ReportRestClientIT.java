@@ -0,0 +1,136 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.ElasticsearchStubServer;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Integration tests of {@link ReportRestClient}
+ */
+public class ReportRestClientIT extends ReportITSupport {
+
+    @Test
+    public void testTunedClientCompressesSearchesAndSpreadsThemOverNodes() throws Exception {
+        // Two nodes answering with the histograms repeated 20 times, as for a longer date range
+        ElasticsearchStubServer first = new ElasticsearchStubServer(4, 20);
+        ElasticsearchStubServer second = new ElasticsearchStubServer(4, 20);
+        first.start();
+        second.start();
+        // The application searches both nodes, so the report client does as well
+        RestHighLevelClient applicationClient = new RestHighLevelClient(
+                RestClient.builder(new Node(first.getHttpHost()), new Node(second.getHttpHost())));
+        ReportRestClient client = new ReportRestClient();
+        client.enabled = true;
+        client.applicationClient = applicationClient;
+        client.compression = true;
+        client.maxConnections = 8;
+        client.maxConnectionsPerNode = 4;
+        client.keepAliveMillis = 60000L;
+        client.nodeSelection = ReportRestClient.NODE_SELECTION_ROUND_ROBIN;
+        client.afterPropertiesSet();
+        RestHighLevelClient restHighLevelClient = searchExecutor.restHighLevelClient;
+        ReportRestClient reportRestClient = searchExecutor.reportRestClient;
+        searchExecutor.reportRestClient = client;
+        searchExecutor.restHighLevelClient = client.getRestHighLevelClient();
+        try {
+            for (int i = 0; i < 4; i++) {
+                SearchResponse response = searchExecutor.search(analyticsClient,
+                                                                CustomVariablesReportGenerator.ID,
+                                                                CustomVariablesReportGenerator.CHART_QUANTITIES_BY_MONTH,
+                                                                INDEX_NAME,
+                                                                reportGenerator.totalQuantityByMonthQuery());
+                assertNotNull(response);
+                assertEquals(40, ((Histogram) response.getAggregations().get("ordersByMonth")).getBuckets().size());
+            }
+
+            // Searches go to the nodes in turn, over connections which are kept alive
+            assertEquals(2, first.getRequests());
+            assertEquals(2, second.getRequests());
+            assertEquals(4, first.getCompressedRequests() + second.getCompressedRequests());
+            PoolStats connections = client.getConnectionManager().getTotalStats();
+            assertEquals(2, connections.getAvailable() + connections.getLeased());
+
+            // The histograms are parsed as sent, from a fraction of the bytes
+            int histogramBytes = first.response("variables-quantities-by-month.json").length;
+            assertEquals(4L * histogramBytes, client.getContentBytes());
+            assertEquals(first.getResponseBytes() + second.getResponseBytes(), client.getWireBytes());
+            assertTrue("Compressed " + client.getContentBytes() + " bytes to " + client.getWireBytes(),
+                       client.getWireBytes() * 4 < client.getContentBytes());
+
+            // Streamed searches send their body compressed as well
+            searchExecutor.streaming = true;
+            SearchResponse streamed = searchExecutor.search(analyticsClient,
+                                                            CustomVariablesReportGenerator.ID,
+                                                            CustomVariablesReportGenerator.CHART_QUANTITIES_BY_MONTH,
+                                                            INDEX_NAME,
+                                                            reportGenerator.totalQuantityByMonthQuery());
+            assertEquals(40, ((Histogram) streamed.getAggregations().get("ordersByMonth")).getBuckets().size());
+            assertEquals(5, first.getRequests() + second.getRequests());
+        } finally {
+            searchExecutor.streaming = false;
+            searchExecutor.reportRestClient = reportRestClient;
+            searchExecutor.restHighLevelClient = restHighLevelClient;
+            client.destroy();
+            applicationClient.close();
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void testTunedClientSearchesWithTheCredentialsOfTheApplication() {
+        ReportRestClient client = new ReportRestClient();
+        assertNull(client.credentialsProvider().getCredentials(AuthScope.ANY));
+
+        client.authEnabled = true;
+        client.username = "reports";
+        client.password = "secret";
+        Credentials credentials = client.credentialsProvider().getCredentials(new AuthScope(new HttpHost("es1", 9200)));
+        assertEquals("reports", credentials.getUserPrincipal().getName());
+        assertEquals("secret", credentials.getPassword());
+    }
+
+    @Test
+    public void testLeastLoadedNodeSelectionKeepsTheNodesWithFewestSearchesInFlight() {
+        HttpHost busy = new HttpHost("es1", 9200);
+        HttpHost idle = new HttpHost("es2", 9200);
+        HttpHost alsoIdle = new HttpHost("es3");
+        PoolingNHttpClientConnectionManager connectionManager = mock(PoolingNHttpClientConnectionManager.class);
+        doReturn(new PoolStats(3, 1, 0, 4)).when(connectionManager).getStats(new HttpRoute(busy));
+        doReturn(new PoolStats(1, 0, 3, 4)).when(connectionManager).getStats(new HttpRoute(idle));
+        doReturn(new PoolStats(0, 1, 3, 4)).when(connectionManager).getStats(new HttpRoute(new HttpHost("es3", 80)));
+
+        List<Node> nodes = new ArrayList<>(Arrays.asList(new Node(busy), new Node(idle), new Node(alsoIdle)));
+        new ReportRestClient.LeastLoadedNodeSelector(connectionManager).select(nodes);
+        assertEquals(2, nodes.size());
+        assertEquals(idle, nodes.get(0).getHost());
+        assertEquals(alsoIdle, nodes.get(1).getHost());
+    }
+}
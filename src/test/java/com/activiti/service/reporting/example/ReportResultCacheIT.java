@@ -0,0 +1,112 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.idm.User;
+import com.activiti.domain.reporting.ReportDataRepresentation;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.impl.cfg.TransactionContext;
+import org.activiti.engine.impl.cfg.TransactionListener;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Integration tests of {@link ReportResultCache}
+ */
+public class ReportResultCacheIT extends ReportITSupport {
+
+    @Test
+    public void testGeneratedReportIsCachedPerIndex() throws Exception {
+        mockElasticSearchRoutes(0);
+        long hits = resultCache.getHitCount();
+        long misses = resultCache.getMissCount();
+
+        ReportDataRepresentation reportData = generateReport();
+        verifySearchRoundTrips(3);
+
+        // Another user of the same tenant index gets the cached report without any search
+        mockElasticSearchRoutes(0);
+        User otherUser = mock(User.class);
+        assertSame(reportData, reportGenerator.generate(null,
+                                                        analyticsClient,
+                                                        indexManager,
+                                                        otherUser,
+                                                        null,
+                                                        objectMapper,
+                                                        null));
+        verifySearchRoundTrips(0);
+        assertEquals(hits + 1, resultCache.getHitCount());
+        assertEquals(misses + 1, resultCache.getMissCount());
+
+        // Invalidating the index recomputes the report
+        resultCache.invalidateIndex(INDEX_NAME);
+        mockElasticSearchRoutes(0);
+        generateReport();
+        verifySearchRoundTrips(3);
+    }
+
+    @Test
+    public void testCachedReportsAreInvalidatedOnceTheVariableIsCommitted() {
+        ReportResultCache.Key key = new ReportResultCache.Key(CustomVariablesReportGenerator.ID,
+                                                              INDEX_NAME,
+                                                              null,
+                                                              PROCESS_KEY);
+        ReportDataRepresentation report = new ReportDataRepresentation();
+        resultCache.put(key, report);
+
+        ActivitiEvent event = mock(ActivitiEvent.class);
+        doReturn(PROCESS_KEY + ":1:5001").when(event).getProcessDefinitionId();
+        CommandContext commandContext = mock(CommandContext.class);
+        TransactionContext transactionContext = mock(TransactionContext.class);
+        doReturn(transactionContext).when(commandContext).getTransactionContext();
+
+        Context.setCommandContext(commandContext);
+        try {
+            resultCache.new InvalidatingEventListener().onEvent(event);
+        } finally {
+            Context.removeCommandContext();
+        }
+
+        // Kept while the variable is not committed
+        assertSame(report, resultCache.get(key));
+        ArgumentCaptor<TransactionListener> committed = ArgumentCaptor.forClass(TransactionListener.class);
+        verify(transactionContext).addTransactionListener(eq(TransactionState.COMMITTED), committed.capture());
+
+        committed.getValue().execute(commandContext);
+        assertNull(resultCache.get(key));
+    }
+
+    @Test
+    public void testCacheKeyIgnoresParameterOrder() {
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put("a", 1);
+        parameters.put("b", "two");
+        Map<String, Object> reordered = new LinkedHashMap<>();
+        reordered.put("b", "two");
+        reordered.put("a", 1);
+
+        assertEquals(new ReportResultCache.Key(CustomVariablesReportGenerator.ID, INDEX_NAME, parameters),
+                     new ReportResultCache.Key(CustomVariablesReportGenerator.ID, INDEX_NAME, reordered));
+        assertNotEquals(new ReportResultCache.Key(CustomVariablesReportGenerator.ID, INDEX_NAME, parameters),
+                        new ReportResultCache.Key(CustomVariablesReportGenerator.ID, "other-index", parameters));
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.service.reporting.searchClient.AnalyticsClient;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.bucket.histogram.ParsedDateHistogram;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Integration tests of {@link ReportSearchExecutor}
+ */
+public class ReportSearchExecutorIT extends ReportITSupport {
+
+    @Test
+    public void testMultiSearchFailureOnlyAffectsItsOwnChart() throws Exception {
+        mockElasticSearchRequest(fruitOrdersMultiSearchPartialFailureJson);
+
+        Map<String, SearchResponse> responses = searchExecutor.multiSearch(INDEX_NAME, reportGenerator.reportQueries());
+
+        assertEquals(4, responses.size());
+        assertNotNull(responses.get(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS));
+        assertNotNull(responses.get(CustomVariablesReportGenerator.CHART_QUANTITIES_BY_MONTH));
+        assertNull(responses.get(CustomVariablesReportGenerator.CHART_ORDERS_BY_DUE_DATE));
+        assertNotNull(responses.get(CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH));
+
+        Terms termsAggregation = responses.get(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS)
+                .getAggregations().get("customerOrders");
+        assertEquals(4, termsAggregation.getBuckets().size());
+    }
+
+    @Test
+    public void testQueriesWithSameFilterAreMerged() throws Exception {
+        ReportQueryPlan plan = ReportQueryPlan.plan(reportGenerator.reportQueries());
+
+        Map<String, SearchSourceBuilder> searches = plan.getSearches();
+        assertEquals(3, searches.size());
+        String mergedKey = CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS
+                + ReportQueryPlan.SEARCH_KEY_SEPARATOR
+                + CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH;
+        assertEquals(2, searches.get(mergedKey).aggregations().count());
+
+        mockElasticSearchRoutes(0);
+        Map<String, SearchResponse> responses = searchExecutor.searchAll(analyticsClient,
+                                                                         INDEX_NAME,
+                                                                         reportGenerator.reportQueries());
+
+        // Every chart gets a response, in chart order, and the customer charts share theirs
+        assertEquals(Arrays.asList(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS,
+                                   CustomVariablesReportGenerator.CHART_QUANTITIES_BY_MONTH,
+                                   CustomVariablesReportGenerator.CHART_ORDERS_BY_DUE_DATE,
+                                   CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH),
+                     new ArrayList<>(responses.keySet()));
+        SearchResponse customerResponse = responses.get(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS);
+        assertSame(customerResponse, responses.get(CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH));
+
+        Terms customerOrders = customerResponse.getAggregations().get("customerOrders");
+        assertEquals(4, customerOrders.getBuckets().size());
+        ParsedDateHistogram ordersByMonth = customerResponse.getAggregations().get("ordersByMonth");
+        assertEquals(2, ordersByMonth.getBuckets().size());
+    }
+
+    @Test
+    public void testSearchesGoThroughTheGivenAnalyticsClientUnlessTheDirectClientIsOn() throws Exception {
+        mockElasticSearchRoutes(0);
+        AnalyticsClient tenantClient = spy(analyticsClient);
+        searchExecutor.directClient = false;
+        try {
+            SearchResponse response = searchExecutor.search(tenantClient,
+                                                            INDEX_NAME,
+                                                            reportGenerator.customerOrderCountsQuery());
+            assertNotNull(response);
+            verify(tenantClient).search(any(SearchRequest.class));
+        } finally {
+            searchExecutor.directClient = true;
+        }
+
+        reset(tenantClient);
+        assertNotNull(searchExecutor.search(tenantClient, INDEX_NAME, reportGenerator.totalQuantityByMonthQuery()));
+        verify(tenantClient, never()).search(any(SearchRequest.class));
+    }
+
+    @Test
+    public void testSearchesFindingThePoolFullAreRefused() throws Exception {
+        SingleFlight<String> calls = new SingleFlight<>();
+        CompletableFuture<String> future = calls.submit("search", () -> "response", command -> {
+            throw new RejectedExecutionException("full");
+        });
+
+        // The search fails rather than running on the calling thread, and the next caller may try again
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, calls.size());
+    }
+
+    @Test
+    public void testStreamingSearchKeepsOnlyAggregations() throws Exception {
+        mockElasticSearchRoutes(0);
+        searchExecutor.streaming = true;
+        try {
+            SearchResponse response = searchExecutor.search(analyticsClient,
+                                                            INDEX_NAME,
+                                                            reportGenerator.customerOrderCountsQuery());
+            verifySearchRoundTrips(1);
+            assertNull(response.getHits().getTotalHits());
+            assertEquals(0, response.getHits().getHits().length);
+
+            Terms customerOrders = response.getAggregations().get("customerOrders");
+            assertEquals(4, customerOrders.getBuckets().size());
+            assertEquals("Bob's Store", customerOrders.getBuckets().get(0).getKeyAsString());
+        } finally {
+            searchExecutor.streaming = false;
+        }
+    }
+
+    @Test
+    public void testFilteredResponseIsSmallerWithTheSameBuckets() throws Exception {
+        mockElasticSearchRoutes(0);
+        metricsRegistry.clear();
+        searchExecutor.streaming = true;
+        try {
+            SearchResponse response = searchExecutor.search(analyticsClient,
+                                                            CustomVariablesReportGenerator.ID,
+                                                            CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS,
+                                                            INDEX_NAME,
+                                                            reportGenerator.customerOrderCountsQuery());
+
+            // The fixture without hits is only returned for requests asking for a filtered response
+            Map<String, String> tags = ReportMetrics.tags(CustomVariablesReportGenerator.ID,
+                                                          CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS,
+                                                          INDEX_NAME);
+            double responseBytes = metricsRegistry.getSummary(ReportMetrics.SEARCH_RESPONSE_BYTES, tags).getTotal();
+            assertEquals(customerOrdersTrimmedJson.contentLength(), responseBytes, 0);
+            assertTrue(responseBytes < customerOrdersJson.contentLength() / 2);
+
+            Terms customerOrders = response.getAggregations().get("customerOrders");
+            try (InputStream json = customerOrdersJson.getInputStream()) {
+                Terms fullCustomerOrders = ReportResponses.parse(json).getAggregations().get("customerOrders");
+                assertEquals(fullCustomerOrders.getBuckets().size(), customerOrders.getBuckets().size());
+                for (int i = 0; i < customerOrders.getBuckets().size(); i++) {
+                    assertEquals(fullCustomerOrders.getBuckets().get(i).getKey(), customerOrders.getBuckets().get(i).getKey());
+                    assertEquals(fullCustomerOrders.getBuckets().get(i).getDocCount(), customerOrders.getBuckets().get(i).getDocCount());
+                }
+            }
+        } finally {
+            searchExecutor.streaming = false;
+        }
+    }
+
+    @Test
+    public void testRetryableFailuresAreRetried() throws Exception {
+        reset(httpClient);
+        doReturn(resourceAsHttpResponse(serviceUnavailableJson, 0, 503))
+                .doReturn(resourceAsHttpResponse(customerOrdersJson))
+                .when(httpClient)
+                .execute(any(HttpAsyncRequestProducer.class),
+                         any(HttpAsyncResponseConsumer.class),
+                         any(HttpContext.class),
+                         any(FutureCallback.class));
+
+        SearchResponse response = searchExecutor.search(analyticsClient,
+                                                        INDEX_NAME,
+                                                        reportGenerator.customerOrderCountsQuery());
+
+        assertNotNull(response);
+        verifySearchRoundTrips(2);
+        assertEquals(SearchCircuitBreaker.State.CLOSED, searchExecutor.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testOtherFailuresAreNotRetried() throws Exception {
+        reset(httpClient);
+        doReturn(resourceAsHttpResponse(badRequestJson, 0, 400))
+                .when(httpClient)
+                .execute(any(HttpAsyncRequestProducer.class),
+                         any(HttpAsyncResponseConsumer.class),
+                         any(HttpContext.class),
+                         any(FutureCallback.class));
+
+        assertNull(searchExecutor.search(analyticsClient, INDEX_NAME, reportGenerator.customerOrderCountsQuery()));
+        verifySearchRoundTrips(1);
+        // The cluster did answer, so its breaker stays closed
+        assertEquals(SearchCircuitBreaker.State.CLOSED, searchExecutor.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testCircuitBreakerStopsSearchingAFailingCluster() throws Exception {
+        reset(httpClient);
+        doAnswer(invocation -> resourceAsHttpResponse(serviceUnavailableJson, 0, 503))
+                .when(httpClient)
+                .execute(any(HttpAsyncRequestProducer.class),
+                         any(HttpAsyncResponseConsumer.class),
+                         any(HttpContext.class),
+                         any(FutureCallback.class));
+        metricsRegistry.clear();
+        SearchCircuitBreaker circuitBreaker = searchExecutor.getCircuitBreaker();
+        searchExecutor.circuitBreaker = new SearchCircuitBreaker(2, 60000);
+        searchExecutor.retries = 1;
+        try {
+            // The first search fails after its retry, which opens the breaker
+            assertNull(searchExecutor.search(analyticsClient, INDEX_NAME, reportGenerator.customerOrderCountsQuery()));
+            verifySearchRoundTrips(2);
+            assertEquals(SearchCircuitBreaker.State.OPEN, searchExecutor.getCircuitBreaker().getState());
+
+            // Further searches fail straight away without a round trip
+            assertNull(searchExecutor.search(analyticsClient, INDEX_NAME, reportGenerator.totalQuantityByMonthQuery()));
+            verifySearchRoundTrips(2);
+            assertEquals(1, metricsRegistry.getSummary(ReportMetrics.SEARCH_REJECTED,
+                                                       ReportMetrics.tags(null, null, INDEX_NAME)).getCount());
+        } finally {
+            searchExecutor.circuitBreaker = circuitBreaker;
+            searchExecutor.retries = 2;
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerLetsATrialSearchThroughOnceOpenDurationHasElapsed() throws Exception {
+        SearchCircuitBreaker circuitBreaker = new SearchCircuitBreaker(1, 50);
+        circuitBreaker.recordFailure();
+        assertFalse(circuitBreaker.allowRequest());
+
+        Thread.sleep(60);
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(SearchCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        // Only one trial search at a time
+        assertFalse(circuitBreaker.allowRequest());
+
+        circuitBreaker.recordSuccess();
+        assertEquals(SearchCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import com.activiti.domain.reporting.ReportDataRepresentation;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of {@link ReportSnapshots}
+ */
+public class ReportSnapshotsIT extends ReportITSupport {
+
+    @Test
+    public void testFirstRequestSeedsTheSnapshotWhichIsThenServedWithoutSearching() throws Exception {
+        mockElasticSearchRoutes(0);
+        reportSnapshots.refreshIntervalMillis = 60000L;
+        try {
+            // The first request generates the first snapshot, and nothing refreshes it until an interval later
+            ReportDataRepresentation first = generateReport();
+            verifySearchRoundTrips(3);
+            assertTrue(first instanceof SnapshotReportDataRepresentation);
+            assertEquals(CHART_TITLES, chartTitles(first));
+
+            ReportResultCache.Key reportKey = new ReportResultCache.Key(CustomVariablesReportGenerator.ID,
+                                                                        INDEX_NAME,
+                                                                        null);
+            ReportSnapshots.Target target = reportSnapshots.targets.get(reportKey);
+            assertSame(first, target.snapshot);
+            assertTrue(target.future.getDelay(TimeUnit.MILLISECONDS) > 50000L);
+
+            mockElasticSearchRoutes(0);
+            ReportDataRepresentation reportData = generateReport();
+            verifySearchRoundTrips(0);
+            assertSame(first, reportData);
+            assertNotNull(((SnapshotReportDataRepresentation) reportData).getAsOf());
+        } finally {
+            reportSnapshots.refreshIntervalMillis = 0L;
+            reportSnapshots.invalidateAll();
+        }
+    }
+}
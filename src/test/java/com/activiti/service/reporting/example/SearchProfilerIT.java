@@ -0,0 +1,93 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of {@link SearchProfiler}
+ */
+public class SearchProfilerIT extends ReportITSupport {
+
+    @Test
+    public void testSampledSearchesAreProfiledAndTheSlowestKeptPerChart() throws Exception {
+        searchProfiler.setSampleRate(1);
+        searchProfiler.setSlowest(2);
+        searchProfiler.setEnabled(true);
+        try {
+            mockElasticSearchRoutes(0);
+            for (int i = 0; i < 3; i++) {
+                searchExecutor.search(analyticsClient,
+                                      CustomVariablesReportGenerator.ID,
+                                      CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS,
+                                      INDEX_NAME,
+                                      reportGenerator.customerOrderCountsQuery());
+            }
+
+            List<SearchProfiler.SearchProfile> profiles = searchProfiler.getProfiles()
+                    .get(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS);
+            assertEquals(2, profiles.size());
+            SearchProfiler.SearchProfile profile = profiles.get(0);
+            assertEquals(INDEX_NAME, profile.getIndex());
+            assertEquals(27, profile.getTookMillis());
+            assertFalse(profile.getQuery().contains("\"profile\""));
+            // The shape of the query is kept, not the values searched for
+            assertTrue(profile.getQuery().contains("\"stringValue.keyword\""));
+            assertFalse(profile.getQuery().contains(PROCESS_KEY));
+            assertFalse(profile.getQuery().contains(ReportParameters.CUSTOMER_VARIABLE));
+
+            SearchProfiler.ShardProfile shard = profile.getShards().get(0);
+            assertEquals("[q8bZ3NzSTvOcMx7i5GIVnA][activiti-test][0]", shard.getShard());
+            assertEquals(412000, shard.getQueryNanos());
+            assertEquals(1650000, shard.getCollectorNanos());
+            assertEquals(1920000, shard.getAggregationNanos());
+            // The slowest part comes first, and parts are named by their path
+            assertEquals(SearchProfiler.Timing.AGGREGATION, shard.getTimings().get(0).getKind());
+            assertEquals("GlobalOrdinalsStringTermsAggregator[customerOrders]", shard.getTimings().get(0).getDescription());
+            assertEquals(4, shard.getTimings().size());
+            assertTrue(shard.getTimings().get(2).getDescription().endsWith(" > TermQuery[processDefinitionKey:?]"));
+
+            // A busy tenant keeps its own slowest profiles, without pushing out those of the other tenants
+            for (int i = 0; i < 3; i++) {
+                searchExecutor.search(analyticsClient,
+                                      CustomVariablesReportGenerator.ID,
+                                      CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS,
+                                      "activiti-busy",
+                                      reportGenerator.customerOrderCountsQuery());
+            }
+            assertEquals(4, searchProfiler.getProfiles().get(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS).size());
+            List<SearchProfiler.SearchProfile> tenantProfiles = searchProfiler.getProfiles(INDEX_NAME::equals)
+                    .get(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS);
+            assertEquals(2, tenantProfiles.size());
+            assertEquals(INDEX_NAME, tenantProfiles.get(1).getIndex());
+            assertTrue(searchProfiler.getProfiles("activiti-other"::equals).isEmpty());
+
+            // Once switched off searches are left as they are
+            searchProfiler.setEnabled(false);
+            searchProfiler.clear();
+            SearchResponse response = searchExecutor.search(analyticsClient,
+                                                            CustomVariablesReportGenerator.ID,
+                                                            CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS,
+                                                            INDEX_NAME,
+                                                            reportGenerator.customerOrderCountsQuery());
+            assertTrue(response.getProfileResults() == null || response.getProfileResults().isEmpty());
+            assertTrue(searchProfiler.getProfiles().isEmpty());
+        } finally {
+            searchProfiler.setEnabled(false);
+            searchProfiler.setSampleRate(0.01);
+            searchProfiler.setSlowest(10);
+            searchProfiler.clear();
+        }
+    }
+}
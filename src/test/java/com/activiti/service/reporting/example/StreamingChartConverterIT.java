@@ -0,0 +1,111 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package com.activiti.service.reporting.example;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of {@link StreamingChartConverter}
+ */
+public class StreamingChartConverterIT extends ReportITSupport {
+
+    @Test
+    public void testStreamedChartsMatchTheParsedCharts() throws Exception {
+        Map<String, Resource> fixtures = new LinkedHashMap<>();
+        fixtures.put(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS, customerOrdersJson);
+        fixtures.put(CustomVariablesReportGenerator.CHART_QUANTITIES_BY_MONTH, quantitiesByMonthJson);
+        fixtures.put(CustomVariablesReportGenerator.CHART_ORDERS_BY_DUE_DATE, ordersByDueDateJson);
+        fixtures.put(CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH,
+                     variablesCountOrdersByCustomerAndMonthJson);
+        for (Map.Entry<String, Resource> fixture : fixtures.entrySet()) {
+            CompiledReport.CompiledChart chart = reportGenerator.report().chart(fixture.getKey());
+            SearchResponse parsed;
+            StreamedSearchResponse streamed;
+            try (InputStream json = fixture.getValue().getInputStream()) {
+                parsed = ReportResponses.parse(json);
+            }
+            try (InputStream json = fixture.getValue().getInputStream()) {
+                streamed = ReportResponses.parseAggregationsOnly(json);
+            }
+
+            assertEquals(fixture.getKey(),
+                         objectMapper.valueToTree(chart.convert(parsed)),
+                         objectMapper.valueToTree(chart.convert(streamed)));
+            // The buckets went straight from the JSON into the chart
+            assertNull(streamed.aggregations);
+            // and the aggregations are still written out for the charts which are rolled up
+            assertNotNull(ReportResponses.findAggregation(ReportResponses.toMap(streamed), chart.getAggregationName()));
+        }
+    }
+
+    @Test
+    public void testTermsOnNumericFieldsAreConverted() throws Exception {
+        CompiledReport.CompiledChart chart = reportGenerator.report()
+                .chart(CustomVariablesReportGenerator.CHART_CUSTOMER_ORDERS);
+        String json = "{\"took\":1,\"timed_out\":false,"
+                + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+                + "\"hits\":{\"total\":{\"value\":5,\"relation\":\"eq\"},\"max_score\":null,\"hits\":[]},"
+                + "\"aggregations\":{\"lterms#" + chart.getAggregationName() + "\":{"
+                + "\"doc_count_error_upper_bound\":0,\"sum_other_doc_count\":0,"
+                + "\"buckets\":[{\"key\":42,\"doc_count\":3},{\"key\":7,\"doc_count\":2}]}}}";
+
+        SearchResponse parsed = ReportResponses.parse(json);
+        StreamedSearchResponse streamed = ReportResponses.parseAggregationsOnly(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, ((Terms) parsed.getAggregations().get(chart.getAggregationName())).getBuckets().size());
+        assertEquals(objectMapper.valueToTree(chart.convert(parsed)),
+                     objectMapper.valueToTree(chart.convert(streamed)));
+        assertEquals(2, ((Terms) streamed.getAggregations().get(chart.getAggregationName())).getBuckets().size());
+    }
+
+    @Test
+    public void testStreamedConversionAllocatesLessThanParsedConversion() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemoryEnabled());
+
+        CompiledReport.CompiledChart chart = reportGenerator.report()
+                .chart(CustomVariablesReportGenerator.CHART_ORDERS_BY_CUSTOMER_AND_MONTH);
+        long threadId = Thread.currentThread().getId();
+        long parsedConversion = 0;
+        long streamedConversion = 0;
+        // The first rounds warm up both paths, only the last ones are measured
+        for (int round = 0; round < 200; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            try (InputStream json = variablesCountOrdersByCustomerAndMonthJson.getInputStream()) {
+                chart.convert(ReportResponses.parse(json));
+            }
+            long between = threads.getThreadAllocatedBytes(threadId);
+            try (InputStream json = variablesCountOrdersByCustomerAndMonthJson.getInputStream()) {
+                chart.convert(ReportResponses.parseAggregationsOnly(json));
+            }
+            long after = threads.getThreadAllocatedBytes(threadId);
+            if (round >= 100) {
+                parsedConversion += between - before;
+                streamedConversion += after - between;
+            }
+        }
+        assertTrue("Streamed conversion allocated " + streamedConversion + " bytes, parsed " + parsedConversion,
+                   streamedConversion < parsedConversion);
+    }
+}
@@ -0,0 +1,341 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.elasticsearch.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local HTTP server answering searches with the canned responses in <code>src/test/resources/elasticsearch</code>,
+ * so that the report generator can be run against a real HTTP connection without a cluster.
+ *
+ * A search is answered with the response matching the aggregations in its body, in the same way as
+ * <code>CustomVariablesReportGeneratorIT</code> picks them. The responses can be scaled up to have more buckets, and
+ * each response can be held back for a while or replaced with an error, to see how reports behave when the cluster is
+ * slow or failing. Request bodies may be gzip compressed, and responses are compressed for requests accepting it.
+ */
+public class ElasticsearchStubServer {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final String FIXTURES = "elasticsearch/";
+
+    /**
+     * A month in milliseconds, the step of added date histogram buckets if a histogram has a single bucket
+     */
+    private static final long MONTH_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final int scale;
+
+    private final Map<String, byte[]> responses = new LinkedHashMap<>();
+
+    private final List<Route> routes = new ArrayList<>();
+
+    private volatile long latencyMillis;
+
+    private volatile long jitterMillis;
+
+    private volatile double errorRate;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong responseBytes = new AtomicLong();
+
+    private final AtomicLong compressedRequests = new AtomicLong();
+
+    /**
+     * Create a server on a free port of the loopback address
+     *
+     * @param threads the number of requests answered at the same time, including those being held back
+     * @param scale   how many times the buckets of each response are repeated, <code>1</code> for the responses as
+     *                they are
+     */
+    public ElasticsearchStubServer(int threads, int scale) throws IOException {
+        this(threads, scale, 0);
+    }
+
+    /**
+     * Create a server on the given port of the loopback address, or on a free port if it is <code>0</code>
+     */
+    public ElasticsearchStubServer(int threads, int scale, int port) throws IOException {
+        this.scale = scale;
+        route("variables-fruit-orders-msearch.json", (uri, body) -> uri.contains("_msearch"));
+        route("variables-orders-count-gte.json", (uri, body) -> !body.contains("\"aggregations\""));
+        route("variables-customer-orders-sampled.json", (uri, body) -> body.contains("\"sampler\""));
+        route("export-orders-page2.json",
+              (uri, body) -> body.contains("\"composite\"") && body.contains("\"processInstanceId\"") && body.contains("\"after\""));
+        route("export-orders-page1.json",
+              (uri, body) -> body.contains("\"composite\"") && body.contains("\"processInstanceId\""));
+        route("variables-customer-orders-composite-page2.json",
+              (uri, body) -> body.contains("\"composite\"") && body.contains("\"after\""));
+        route("variables-customer-orders-composite-page1.json", (uri, body) -> body.contains("\"composite\""));
+        route("variables-customer-orders-and-by-month.json",
+              (uri, body) -> body.contains("\"customerOrders\"") && body.contains("\"customerName\""));
+        route("variables-customer-orders.json", (uri, body) -> body.contains("\"customerOrders\""));
+        route("variables-orders-by-duedate.json", (uri, body) -> body.contains("\"ordersByMonthDue\""));
+        route("variables-quantities-by-month.json", (uri, body) -> body.contains("\"totalItems\""));
+        route("variables-count-orders-by-customer-month.json", (uri, body) -> body.contains("\"customerName\""));
+        load("error-service-unavailable.json");
+        load("error-bad-request.json");
+
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads);
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public HttpHost getHttpHost() {
+        return new HttpHost(server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    /**
+     * Hold each response back for the given time, plus a random time up to the given jitter
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Answer the given share of requests with a 503 error instead of their response
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * The number of requests answered with a gzip compressed body, as asked for by their <code>Accept-Encoding</code>
+     */
+    public long getCompressedRequests() {
+        return compressedRequests.get();
+    }
+
+    /**
+     * The number of bytes of the response bodies sent so far, as sent when compressed
+     */
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    /**
+     * The body of a canned response as it is served, after scaling
+     */
+    public byte[] response(String fixture) {
+        return responses.get(fixture);
+    }
+
+    private void route(String fixture, BiPredicate<String, String> matches) throws IOException {
+        load(fixture);
+        routes.add(new Route(fixture, matches));
+    }
+
+    private void load(String fixture) throws IOException {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(FIXTURES + fixture)) {
+            if (in == null) {
+                throw new IOException("No fixture " + FIXTURES + fixture + " on the classpath");
+            }
+            JsonNode response = objectMapper.readTree(in);
+            if (scale > 1) {
+                scale(response, scale);
+            }
+            responses.put(fixture, objectMapper.writeValueAsBytes(response));
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String uri = exchange.getRequestURI().toString();
+            InputStream requestBody = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+                    ? new GZIPInputStream(exchange.getRequestBody())
+                    : exchange.getRequestBody();
+            String body = new String(readFully(requestBody), StandardCharsets.UTF_8);
+            requests.incrementAndGet();
+
+            long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                respond(exchange, 503, responses.get("error-service-unavailable.json"));
+                return;
+            }
+            for (Route route : routes) {
+                if (route.matches.test(uri, body)) {
+                    respond(exchange, 200, responses.get(route.fixture));
+                    return;
+                }
+            }
+            respond(exchange, 400, responses.get("error-bad-request.json"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(body);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            compressedRequests.incrementAndGet();
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        responseBytes.addAndGet(body.length);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Repeat the buckets of every aggregation in a response the given number of times, nested buckets included.
+     * Repeated terms get their key followed by the number of the copy, and repeated date histogram buckets follow on
+     * from the last bucket, so that all keys stay distinct and in order.
+     */
+    static void scale(JsonNode node, int times) {
+        if (node.isArray()) {
+            for (JsonNode element : node) {
+                scale(element, times);
+            }
+            return;
+        }
+        for (Iterator<Map.Entry<String, JsonNode>> fields = node.fields(); fields.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            scale(field.getValue(), times);
+            if ("buckets".equals(field.getKey()) && field.getValue().isArray() && field.getValue().size() > 0) {
+                repeatBuckets((ArrayNode) field.getValue(), times);
+            }
+        }
+    }
+
+    private static void repeatBuckets(ArrayNode buckets, int times) {
+        List<JsonNode> originals = new ArrayList<>();
+        buckets.forEach(originals::add);
+        JsonNode firstKey = originals.get(0).get("key");
+        if (firstKey == null || !(firstKey.isTextual() || firstKey.isNumber())) {
+            // Composite buckets are paged through by their keys, which are left as they are
+            return;
+        }
+
+        long lastKey = firstKey.isNumber() ? originals.get(originals.size() - 1).get("key").asLong() : 0;
+        long step = firstKey.isNumber() && originals.size() > 1
+                ? lastKey - originals.get(originals.size() - 2).get("key").asLong()
+                : MONTH_MILLIS;
+        for (int copy = 1; copy < times; copy++) {
+            for (JsonNode original : originals) {
+                ObjectNode bucket = original.deepCopy();
+                if (firstKey.isTextual()) {
+                    bucket.put("key", original.get("key").asText() + " " + (copy + 1));
+                } else {
+                    lastKey += step;
+                    bucket.put("key", lastKey);
+                    if (bucket.has("key_as_string")) {
+                        bucket.put("key_as_string", formatLike(original.get("key_as_string").asText(), lastKey));
+                    }
+                }
+                buckets.add(bucket);
+            }
+        }
+    }
+
+    /**
+     * Format a date key in the same format as the given key, which is a month, a day or an instant
+     */
+    private static String formatLike(String example, long key) {
+        Instant instant = Instant.ofEpochMilli(key);
+        if (example.length() == 7) {
+            return DateTimeFormatter.ofPattern("yyyy-MM").withZone(ZoneOffset.UTC).format(instant);
+        } else if (example.length() == 10) {
+            return DateTimeFormatter.ISO_LOCAL_DATE.withZone(ZoneOffset.UTC).format(instant);
+        }
+        return instant.toString();
+    }
+
+    private static class Route {
+
+        private final String fixture;
+
+        private final BiPredicate<String, String> matches;
+
+        private Route(String fixture, BiPredicate<String, String> matches) {
+            this.fixture = fixture;
+            this.matches = matches;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2005-2015 Alfresco Software, Ltd. All rights reserved.
+ * License rights for this program may be obtained from Alfresco Software, Ltd.
+ * pursuant to a written agreement and any use of this program without such an
+ * agreement is prohibited.
+ */
+package org.elasticsearch.client;
+
+import org.apache.http.Header;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * {@link CustomApplicationTestConfiguration} with the analytics client connected to an
+ * {@link ElasticsearchStubServer} over HTTP, instead of a mocked HTTP client. The stub is set up from the
+ * <code>load.*</code> system properties.
+ */
+@Configuration
+public class StubApplicationTestConfiguration extends CustomApplicationTestConfiguration {
+
+    @Value("${load.stub-threads:64}")
+    private int threads;
+
+    @Value("${load.stub-port:0}")
+    private int port;
+
+    @Value("${load.scale:1}")
+    private int scale;
+
+    @Value("${load.latency:20}")
+    private long latencyMillis;
+
+    @Value("${load.jitter:10}")
+    private long jitterMillis;
+
+    @Value("${load.error-rate:0}")
+    private double errorRate;
+
+    @Bean(destroyMethod = "stop")
+    public ElasticsearchStubServer elasticsearchStub() {
+        ElasticsearchStubServer stub;
+        try {
+            stub = new ElasticsearchStubServer(threads, scale, port);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start the Elasticsearch stub", e);
+        }
+        stub.setLatency(latencyMillis, jitterMillis);
+        stub.setErrorRate(errorRate);
+        stub.start();
+        return stub;
+    }
+
+    @Override
+    @Bean
+    public RestClient restClient(CloseableHttpAsyncClient httpClient) {
+        return new RestClient(httpClient,
+                              new Header[0],
+                              singletonList(new Node(elasticsearchStub().getHttpHost())),
+                              "/",
+                              new RestClient.FailureListener(),
+                              NodeSelector.ANY,
+                              false);
+    }
+
+    @Override
+    @Bean
+    public CloseableHttpAsyncClient httpClient() {
+        CloseableHttpAsyncClient httpClient = HttpAsyncClients.custom()
+                .setMaxConnTotal(threads)
+                .setMaxConnPerRoute(threads)
+                .build();
+        httpClient.start();
+        return httpClient;
+    }
+}